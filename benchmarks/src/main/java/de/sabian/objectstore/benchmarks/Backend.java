@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.sabian.objectstore.ChannelFilesystemStorage;
+import de.sabian.objectstore.CompressingStorage;
+import de.sabian.objectstore.FilesystemStorage;
+import de.sabian.objectstore.IJsonStorage;
+import de.sabian.objectstore.LogStructuredStorage;
+
+/**
+ * The storages which run on the JVM, as a benchmark parameter.
+ */
+public enum Backend {
+	FILESYSTEM {
+		@Override
+		IJsonStorage open(File directory) {
+			return new FilesystemStorage(directory);
+		}
+	},
+	SHARDED {
+		@Override
+		IJsonStorage open(File directory) {
+			return new FilesystemStorage(directory, 1);
+		}
+	},
+	CHANNEL {
+		@Override
+		IJsonStorage open(File directory) {
+			return new ChannelFilesystemStorage(directory);
+		}
+	},
+	LOG_STRUCTURED {
+		@Override
+		IJsonStorage open(File directory) throws IOException {
+			return new LogStructuredStorage(directory);
+		}
+	},
+	COMPRESSING {
+		@Override
+		IJsonStorage open(File directory) {
+			return new CompressingStorage(new FilesystemStorage(directory));
+		}
+	};
+
+	abstract IJsonStorage open(File directory) throws IOException;
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.sabian.objectstore.ObjectStoreRaw;
+
+/**
+ * Stores and reads lists and maps of small elements by their cardinality.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CollectionBenchmark {
+
+	private static final String LIST = "list";
+	private static final String MAP = "map";
+	private static final String WRITTEN_LIST = "writtenList";
+	private static final String WRITTEN_MAP = "writtenMap";
+
+	@Param({ "10", "1000", "100000" })
+	public int cardinality;
+
+	@Param
+	public Backend backend;
+
+	private StoreFixture mFixture;
+	private ObjectStoreRaw mStore;
+	private List<Item> mList;
+	private Map<Integer, Item> mMap;
+
+	@Setup
+	public void setUp() throws IOException {
+		mFixture = new StoreFixture(backend);
+		mStore = mFixture.getStore();
+		mList = new ArrayList<Item>(cardinality);
+		mMap = new HashMap<Integer, Item>();
+		for (int i = 0; i < cardinality; i++) {
+			Item item = new Item(i);
+			mList.add(item);
+			mMap.put(i, item);
+		}
+		mStore.storeList(LIST, mList);
+		mStore.storeMap(MAP, mMap);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mFixture.close();
+	}
+
+	@Benchmark
+	public boolean storeList() throws IOException {
+		return mStore.storeList(WRITTEN_LIST, mList);
+	}
+
+	@Benchmark
+	public List<Item> getList() throws IOException {
+		return mStore.getList(LIST, Item.class);
+	}
+
+	@Benchmark
+	public boolean storeMap() throws IOException {
+		return mStore.storeMap(WRITTEN_MAP, mMap);
+	}
+
+	@Benchmark
+	public Map<Integer, Item> getMap() throws IOException {
+		return mStore.getMap(MAP, Integer.class, Item.class);
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+/**
+ * A small element of the collection benchmarks.
+ */
+public class Item {
+
+	int id;
+	String name;
+	double score;
+	boolean active;
+
+	public Item() {
+	}
+
+	public Item(int id) {
+		this.id = id;
+		this.name = "item" + id;
+		this.score = id * 0.5;
+		this.active = id % 2 == 0;
+	}
+
+}
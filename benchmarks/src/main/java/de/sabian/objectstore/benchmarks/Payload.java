@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+import java.util.Random;
+
+/**
+ * A value whose json takes about the given number of bytes, mostly as text
+ * of random words, so it compresses like typical text.
+ */
+public class Payload {
+
+	private static final String[] WORDS = { "store", "object", "value",
+			"list", "map", "identifier", "json", "file", "cache", "index",
+			"entry", "stream", "key", "record", "shard", "filter" };
+
+	long id;
+	String name;
+	String text;
+
+	public Payload() {
+	}
+
+	public Payload(long id, int size) {
+		this.id = id;
+		this.name = "payload" + id;
+		this.text = randomText(new Random(id), size);
+	}
+
+	static String randomText(Random random, int size) {
+		StringBuilder sb = new StringBuilder(size + 16);
+		while (sb.length() < size) {
+			sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+		}
+		sb.setLength(size);
+		return sb.toString();
+	}
+
+}
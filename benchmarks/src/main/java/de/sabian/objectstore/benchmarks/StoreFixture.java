@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import de.sabian.objectstore.IJsonStorage;
+import de.sabian.objectstore.ObjectStoreRaw;
+
+/**
+ * An object store on a fresh temporary directory, which is deleted on
+ * {@link #close()}.
+ */
+class StoreFixture implements Closeable {
+
+	private final File mDirectory;
+	private final IJsonStorage mStorage;
+	private final ObjectStoreRaw mStore;
+
+	public StoreFixture(Backend backend) throws IOException {
+		mDirectory = File.createTempFile("objectstore", ".bench");
+		if (!mDirectory.delete() || !mDirectory.mkdirs())
+			throw new IOException("Could not create " + mDirectory);
+		mStorage = backend.open(mDirectory);
+		mStore = new ObjectStoreRaw(mStorage);
+	}
+
+	public ObjectStoreRaw getStore() {
+		return mStore;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mStorage instanceof Closeable)
+			((Closeable) mStorage).close();
+		delete(mDirectory);
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.sabian.objectstore.ObjectStoreRaw;
+
+/**
+ * Stores and reads single values of 1 KB up to 50 MB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ValueBenchmark {
+
+	private static final String STORED = "stored";
+	private static final String WRITTEN = "written";
+
+	@Param({ "1024", "65536", "1048576", "52428800" })
+	public int valueSize;
+
+	@Param
+	public Backend backend;
+
+	private StoreFixture mFixture;
+	private ObjectStoreRaw mStore;
+	private Payload mPayload;
+
+	@Setup
+	public void setUp() throws IOException {
+		mFixture = new StoreFixture(backend);
+		mStore = mFixture.getStore();
+		mPayload = new Payload(1, valueSize);
+		mStore.store(STORED, mPayload);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		mFixture.close();
+	}
+
+	@Benchmark
+	public boolean store() throws IOException {
+		return mStore.store(WRITTEN, mPayload);
+	}
+
+	@Benchmark
+	public Payload get() throws IOException {
+		return mStore.get(STORED, Payload.class);
+	}
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.File;
+
+/**
+ * The object store of the JVM core. The android library adds the
+ * constructors with a context and async() to its version of this class.
+ */
+public class ObjectStoreRaw extends AbstractObjectStore {
+
+	/**
+	 * Creates a store which keeps its values in the flat layout of a
+	 * {@link FilesystemStorage} in the given directory.
+	 */
+	public ObjectStoreRaw(File directory) {
+		super(new FilesystemStorage(directory));
+	}
+
+	public ObjectStoreRaw(IJsonStorage storage) {
+		super(storage);
+	}
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests every storage has to pass. Subclasses create the storage under test.
+ */
+public abstract class AbstractStorageTest {
+
+	// larger than the chunks of SQLiteStorage and the buffers of the streams
+	private static final int LARGE_VALUE_SIZE = 600 * 1024;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	protected File mDirectory;
+	protected IJsonStorage mStorage;
+
+	protected abstract IJsonStorage createStorage(File directory)
+			throws IOException;
+
+	@Before
+	public void setUp() throws IOException {
+		mDirectory = mFolder.newFolder("storage");
+		mStorage = createStorage(mDirectory);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (mStorage instanceof Closeable)
+			((Closeable) mStorage).close();
+	}
+
+	@Test
+	public void storeJsonRoundTrip() throws IOException {
+		mStorage.storeJson("a", "{\"x\":1}");
+		assertTrue(mStorage.contains("a"));
+		assertEquals("{\"x\":1}", mStorage.getJson("a"));
+		assertNull(mStorage.getJson("missing"));
+	}
+
+	@Test
+	public void writerRoundTrip() throws IOException {
+		Writer writer = mStorage.openWriter("a");
+		writer.write("[1,");
+		writer.write("2]");
+		writer.close();
+		assertEquals("[1,2]", mStorage.getJson("a"));
+		assertEquals("[1,2]", read(mStorage.openReader("a")));
+	}
+
+	@Test
+	public void abortedWriterKeepsValue() throws IOException {
+		mStorage.storeJson("a", "\"old\"");
+		Writer writer = mStorage.openWriter("a");
+		writer.write("\"new\"");
+		writer.flush();
+		AbstractJsonStorage.abort(writer);
+		assertEquals("\"old\"", mStorage.getJson("a"));
+	}
+
+	@Test
+	public void abortedStreamStoresNothing() throws IOException {
+		OutputStream out = mStorage.openOutputStream("b");
+		out.write(new byte[] { '[', '1', ']' });
+		AbstractJsonStorage.abort(out);
+		assertFalse(mStorage.contains("b"));
+		assertEquals(Collections.<String> emptyList(), keys());
+	}
+
+	@Test
+	public void abortAfterCloseKeepsValue() throws IOException {
+		OutputStream out = mStorage.openOutputStream("a");
+		out.write(new byte[] { '1' });
+		out.close();
+		AbstractJsonStorage.abort(out);
+		assertEquals("1", mStorage.getJson("a"));
+	}
+
+	@Test
+	public void failedStoreKeepsValue() throws IOException {
+		ObjectStoreRaw store = new ObjectStoreRaw(mStorage);
+		store.storeList("list", Arrays.asList(1.0, 2.0));
+		try {
+			// gson refuses to write NaN, after the first element was written
+			store.storeList("list", Arrays.asList(3.0, Double.NaN));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList(1.0, 2.0),
+				store.getList("list", Double.class));
+		assertEquals(Arrays.asList("list"), keys());
+	}
+
+	@Test
+	public void failedStoreOfNewValueStoresNothing() throws IOException {
+		ObjectStoreRaw store = new ObjectStoreRaw(mStorage);
+		try {
+			store.store("value", Arrays.asList(Double.NaN));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertFalse(store.contains("value"));
+		assertNull(store.get("value", Double[].class));
+	}
+
+	@Test
+	public void largeValueRoundTrip() throws IOException {
+		byte[] value = randomBytes(LARGE_VALUE_SIZE);
+		OutputStream out = mStorage.openOutputStream("large");
+		// written in pieces which do not line up with any buffer
+		for (int offset = 0; offset < value.length; offset += 7001) {
+			out.write(value, offset, Math.min(7001, value.length - offset));
+		}
+		out.close();
+		assertArrayEquals(value, readBytes("large"));
+	}
+
+	@Test
+	public void appendToLargeValue() throws IOException {
+		byte[] value = randomBytes(LARGE_VALUE_SIZE);
+		byte[] appended = randomBytes(LARGE_VALUE_SIZE / 2);
+		OutputStream out = mStorage.openOutputStream("large");
+		out.write(value);
+		out.close();
+		out = mStorage.openAppendStream("large");
+		out.write(appended);
+		out.close();
+		byte[] expected = Arrays.copyOf(value, value.length
+				+ appended.length);
+		System.arraycopy(appended, 0, expected, value.length,
+				appended.length);
+		assertArrayEquals(expected, readBytes("large"));
+	}
+
+	@Test
+	public void abortedLargeWriteKeepsValue() throws IOException {
+		byte[] value = randomBytes(LARGE_VALUE_SIZE);
+		OutputStream out = mStorage.openOutputStream("large");
+		out.write(value);
+		out.close();
+		out = mStorage.openOutputStream("large");
+		out.write(randomBytes(LARGE_VALUE_SIZE));
+		AbstractJsonStorage.abort(out);
+		assertArrayEquals(value, readBytes("large"));
+	}
+
+	@Test
+	public void keyedMapEntries() throws IOException {
+		mStorage.storeJson("map", "1");
+		mStorage.storeEntryJson("map", "a", "{\"x\":1}");
+		mStorage.storeEntryJson("map", "b", "2");
+		mStorage.storeEntryJson("other", "a", "3");
+		assertEquals("{\"x\":1}", mStorage.getEntryJson("map", "a"));
+		assertNull(mStorage.getEntryJson("map", "c"));
+		assertEquals(2, mStorage.getEntryCount("map"));
+		Map<String, String> entries = new HashMap<String, String>();
+		entries.put("a", "{\"x\":1}");
+		entries.put("b", "2");
+		assertEquals(entries, mStorage.getAllEntriesJson("map"));
+		assertEquals(Collections.singletonList("map"), keys());
+
+		assertTrue(mStorage.removeEntry("map", "a"));
+		assertFalse(mStorage.removeEntry("map", "a"));
+		assertEquals(1, mStorage.getEntryCount("map"));
+		assertTrue(mStorage.removeEntries("map"));
+		assertEquals(0, mStorage.getEntryCount("map"));
+		assertEquals("3", mStorage.getEntryJson("other", "a"));
+		assertEquals("1", mStorage.getJson("map"));
+	}
+
+	protected List<String> keys() throws IOException {
+		List<String> keys = new ArrayList<String>();
+		CloseableIterator<String> iterator = mStorage.keys();
+		try {
+			while (iterator.hasNext()) {
+				keys.add(iterator.next());
+			}
+		} finally {
+			iterator.close();
+		}
+		return keys;
+	}
+
+	protected byte[] readBytes(String identifier) throws IOException {
+		InputStream in = mStorage.openInputStream(identifier);
+		if (in == null)
+			return null;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		try {
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	protected static byte[] randomBytes(int count) {
+		byte[] bytes = new byte[count];
+		new Random(count).nextBytes(bytes);
+		return bytes;
+	}
+
+	protected static String read(Reader reader) throws IOException {
+		StringBuilder sb = new StringBuilder();
+		char[] buffer = new char[1024];
+		try {
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+		} finally {
+			reader.close();
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AppendToListTest {
+
+	// the appends after which a list is compacted
+	private static final int COMPACTION_INTERVAL = 64;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private FilesystemStorage mStorage;
+	private ObjectStoreRaw mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = new FilesystemStorage(mFolder.newFolder("store"));
+		mStore = new ObjectStoreRaw(mStorage);
+	}
+
+	@Test
+	public void appendCreatesList() throws IOException {
+		mStore.appendToList("list", Arrays.asList("a"));
+		assertEquals(Arrays.asList("a"), mStore.getList("list", String.class));
+	}
+
+	@Test
+	public void appendedSegmentsAreReadAsOneList() throws IOException {
+		mStore.storeList("list", Arrays.asList("a", "b"));
+		mStore.appendToList("list", Arrays.asList("c"));
+		mStore.appendToList("list", Collections.<String> emptyList());
+		mStore.appendToList("list", Arrays.asList("d", "e"));
+		List<String> expected = Arrays.asList("a", "b", "c", "d", "e");
+		assertEquals("[\"a\",\"b\"][\"c\"][\"d\",\"e\"]",
+				mStorage.getJson("list"));
+		assertEquals(expected, mStore.getList("list", String.class));
+		assertArrayEquals(expected.toArray(),
+				mStore.get("list", String[].class));
+		assertEquals(new HashSet<String>(expected),
+				mStore.getSet("list", String.class));
+		List<String> iterated = new ArrayList<String>();
+		CloseableIterator<String> iterator = mStore.iterate("list",
+				String.class);
+		while (iterator.hasNext()) {
+			iterated.add(iterator.next());
+		}
+		assertEquals(expected, iterated);
+	}
+
+	@Test
+	public void appendsAreCompacted() throws IOException {
+		mStore.storeList("list", Arrays.asList(0));
+		for (int i = 1; i <= COMPACTION_INTERVAL; i++) {
+			mStore.appendToList("list", Arrays.asList(i));
+		}
+		String json = mStorage.getJson("list");
+		assertEquals(json.indexOf('['), json.lastIndexOf('['));
+		assertEquals(COMPACTION_INTERVAL + 1,
+				mStore.getList("list", Integer.class).size());
+	}
+
+	@Test
+	public void appendToValueWhichIsNoListFails() throws IOException {
+		mStore.store("object", Collections.singletonMap("a", 1));
+		mStore.store("scalar", "a");
+		mStore.storeIntArray("packed", new int[] { 1 });
+		for (String identifier : Arrays.asList("object", "scalar", "packed")) {
+			String stored = mStorage.getJson(identifier);
+			try {
+				mStore.appendToList(identifier, Arrays.asList("b"));
+				fail();
+			} catch (IOException e) {
+				// expected
+			}
+			assertEquals(stored, mStorage.getJson(identifier));
+		}
+	}
+
+	@Test
+	public void appendToBinaryList() throws IOException {
+		mStore.setCodec(new BinaryCodec());
+		mStore.storeList("list", Arrays.asList("a"));
+		mStore.appendToList("list", Arrays.asList("b"));
+		assertEquals(Arrays.asList("a", "b"),
+				mStore.getList("list", String.class));
+	}
+
+	@Test
+	public void removeResetsAppendCount() throws IOException {
+		mStore.storeList("list", Arrays.asList(0));
+		for (int i = 1; i < COMPACTION_INTERVAL; i++) {
+			mStore.appendToList("list", Arrays.asList(i));
+		}
+		mStore.remove("list");
+		mStore.storeList("list", Arrays.asList(0));
+		mStore.appendToList("list", Arrays.asList(1));
+		assertEquals("[0][1]", mStorage.getJson("list"));
+	}
+
+	@Test
+	public void failedAppendIsRolledBackOnFilesystem() throws IOException {
+		assertFailedAppendIsRolledBack(new FilesystemStorage(mFolder
+				.newFolder()));
+	}
+
+	@Test
+	public void failedAppendIsRolledBackOnChannels() throws IOException {
+		assertFailedAppendIsRolledBack(new ChannelFilesystemStorage(mFolder
+				.newFolder()));
+	}
+
+	@Test
+	public void failedAppendIsRolledBackInLog() throws IOException {
+		LogStructuredStorage storage = new LogStructuredStorage(
+				mFolder.newFolder());
+		try {
+			assertFailedAppendIsRolledBack(storage);
+		} finally {
+			storage.close();
+		}
+	}
+
+	@Test
+	public void failedAppendIsRolledBackWhenCompressed() throws IOException {
+		// compressed values are rewritten on append
+		assertFailedAppendIsRolledBack(new CompressingStorage(
+				new FilesystemStorage(mFolder.newFolder()), 0,
+				CompressingStorage.Algorithm.DEFLATE,
+				Deflater.DEFAULT_COMPRESSION));
+	}
+
+	private static void assertFailedAppendIsRolledBack(IJsonStorage storage)
+			throws IOException {
+		ObjectStoreRaw store = new ObjectStoreRaw(storage);
+		store.storeList("list", Arrays.asList(1.0, 2.0));
+		store.appendToList("list", Arrays.asList(3.0));
+		try {
+			store.appendToList("list", Arrays.asList(4.0, Double.NaN));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(Arrays.asList(1.0, 2.0, 3.0),
+				store.getList("list", Double.class));
+		store.appendToList("list", Arrays.asList(4.0));
+		assertEquals(Arrays.asList(1.0, 2.0, 3.0, 4.0),
+				store.getList("list", Double.class));
+	}
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import com.google.gson.stream.MalformedJsonException;
+
+public class BinaryCodecTest {
+
+	private static class Item {
+		String name;
+		long id;
+		double score;
+		boolean active;
+		List<Integer> tags;
+		Map<String, String> attributes;
+		Item child;
+	}
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private ObjectStoreRaw mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		mStore = new ObjectStoreRaw(mFolder.newFolder("store"));
+		mStore.setCodec(new BinaryCodec());
+	}
+
+	@Test
+	public void objectRoundTrip() throws IOException {
+		Item item = new Item();
+		item.name = "n\u00e4me";
+		item.id = Long.MIN_VALUE;
+		item.score = 0.1;
+		item.active = true;
+		item.tags = Arrays.asList(1, -1, Integer.MAX_VALUE);
+		item.attributes = new LinkedHashMap<String, String>();
+		item.attributes.put("name", "repeated name");
+		item.child = new Item();
+		item.child.name = "child";
+		mStore.store("item", item);
+		Gson gson = new Gson();
+		assertEquals(gson.toJson(item),
+				gson.toJson(mStore.get("item", Item.class)));
+	}
+
+	@Test
+	public void numbersKeepTheirPrecision() throws IOException {
+		BigDecimal decimal = new BigDecimal("1.000000000000000000001");
+		BigInteger integer = BigInteger.ONE.shiftLeft(100);
+		mStore.store("decimal", decimal);
+		mStore.store("integer", integer);
+		mStore.store("long", Long.MAX_VALUE);
+		assertEquals(decimal, mStore.get("decimal", BigDecimal.class));
+		assertEquals(integer, mStore.get("integer", BigInteger.class));
+		assertEquals(Long.valueOf(Long.MAX_VALUE),
+				mStore.get("long", Long.class));
+	}
+
+	@Test
+	public void mapWithNumberKeys() throws IOException {
+		Map<Integer, List<String>> map = new HashMap<Integer, List<String>>();
+		map.put(1, Arrays.asList("a"));
+		map.put(-2, new ArrayList<String>());
+		mStore.storeMap("map", map);
+		assertEquals(map, mStore.getMap("map", Integer.class, List.class));
+	}
+
+	@Test
+	public void appendedListRoundTrip() throws IOException {
+		mStore.storeList("list", Arrays.asList("a", "b"));
+		mStore.appendToList("list", Arrays.asList("c"));
+		assertEquals(Arrays.asList("a", "b", "c"),
+				mStore.getList("list", String.class));
+	}
+
+	@Test
+	public void valuesOfOtherCodecsAreRead() throws IOException {
+		mStore.store("binary", "b");
+		mStore.setCodec(new JsonCodec());
+		mStore.store("json", "j");
+		assertEquals("b", mStore.get("binary", String.class));
+		mStore.setCodec(new BinaryCodec());
+		assertEquals("j", mStore.get("json", String.class));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void nanIsRejected() throws IOException {
+		newWriter().value(Double.NaN);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void rawJsonIsRejected() throws IOException {
+		((BinaryJsonWriter) newWriter()).jsonValue("{}");
+	}
+
+	@Test(expected = MalformedJsonException.class)
+	public void unknownTypeIsRejected() throws IOException {
+		newReader(0x7F).peek();
+	}
+
+	@Test(expected = MalformedJsonException.class)
+	public void unknownNameReferenceIsRejected() throws IOException {
+		JsonReader reader = newReader(BinaryCodec.TYPE_BEGIN_OBJECT,
+				BinaryCodec.TYPE_NAME_REFERENCE, 5);
+		reader.beginObject();
+		reader.nextName();
+	}
+
+	@Test
+	public void truncatedStringFails() throws IOException {
+		JsonReader reader = newReader(BinaryCodec.TYPE_STRING, 10, 'a');
+		try {
+			reader.nextString();
+			fail();
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * Every method of the Gson stream classes which could write to or read
+	 * from their dummy document has to be overridden. This fails when Gson
+	 * is upgraded to a version with further methods.
+	 */
+	@Test
+	public void allStreamMethodsAreOverridden() {
+		// the writer only reads its lenient setting
+		assertOverridesAll(JsonWriter.class, BinaryJsonWriter.class,
+				"isLenient");
+		assertOverridesAll(JsonReader.class, BinaryJsonReader.class);
+	}
+
+	private static void assertOverridesAll(Class<?> base, Class<?> subclass,
+			String... ignored) {
+		List<String> ignoredNames = Arrays.asList(ignored);
+		for (Method method : base.getDeclaredMethods()) {
+			int modifiers = method.getModifiers();
+			if (!Modifier.isPublic(modifiers) || Modifier.isFinal(modifiers)
+					|| Modifier.isStatic(modifiers)
+					|| ignoredNames.contains(method.getName()))
+				continue;
+			try {
+				subclass.getDeclaredMethod(method.getName(),
+						method.getParameterTypes());
+			} catch (NoSuchMethodException e) {
+				fail(subclass.getSimpleName() + " does not override "
+						+ method);
+			}
+		}
+	}
+
+	private static JsonWriter newWriter() {
+		return new BinaryCodec().newWriter(new ByteArrayOutputStream());
+	}
+
+	private static JsonReader newReader(int... bytes) {
+		byte[] data = new byte[bytes.length];
+		for (int i = 0; i < bytes.length; i++) {
+			data[i] = (byte) bytes[i];
+		}
+		return new BinaryCodec().newReader(new ByteArrayInputStream(data));
+	}
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+public class ChannelFilesystemStorageTest extends FilesystemStorageTest {
+
+	@Override
+	protected IJsonStorage createStorage(File directory) {
+		return new ChannelFilesystemStorage(directory);
+	}
+
+	@Test
+	public void failedReadIsNotReportedAsMissing() throws IOException {
+		assertNull(mStorage.openInputStream("value"));
+		// a directory exists but can not be read as a value
+		assertTrue(((ChannelFilesystemStorage) mStorage).getFile("value")
+				.mkdirs());
+		try {
+			mStorage.openInputStream("value");
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+}
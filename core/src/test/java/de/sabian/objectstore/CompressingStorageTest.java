@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+public class CompressingStorageTest extends AbstractStorageTest {
+
+	/**
+	 * Fails to commit on close and remembers whether it was aborted.
+	 */
+	private static class FailingCloseStream extends FilterOutputStream
+			implements IAbortable {
+		private boolean mAborted;
+
+		public FailingCloseStream() {
+			super(new ByteArrayOutputStream());
+		}
+
+		@Override
+		public void close() throws IOException {
+			throw new IOException("close failed");
+		}
+
+		@Override
+		public void abort() {
+			mAborted = true;
+		}
+	}
+
+	@Override
+	protected IJsonStorage createStorage(File directory) {
+		// compress every value, so the aborts go through the deflater
+		return new CompressingStorage(new FilesystemStorage(directory), 0,
+				CompressingStorage.Algorithm.DEFLATE,
+				Deflater.DEFAULT_COMPRESSION);
+	}
+
+	@Test
+	public void failedCloseAbortsTarget() throws IOException {
+		final FailingCloseStream target = new FailingCloseStream();
+		IJsonStorage storage = new CompressingStorage(new FilesystemStorage(
+				mDirectory) {
+			@Override
+			public OutputStream openOutputStream(String identifier) {
+				return target;
+			}
+		}, 0, CompressingStorage.Algorithm.DEFLATE,
+				Deflater.DEFAULT_COMPRESSION);
+		OutputStream out = storage.openOutputStream("value");
+		out.write("{\"x\":1}".getBytes("UTF-8"));
+		try {
+			out.close();
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertTrue(target.mAborted);
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FieldIndexTest {
+
+	private static class Owner {
+		String name;
+
+		Owner(String name) {
+			this.name = name;
+		}
+	}
+
+	private static class Item {
+		int id;
+		String color;
+		Owner owner;
+
+		Item(int id, String color, String owner) {
+			this.id = id;
+			this.color = color;
+			this.owner = owner != null ? new Owner(owner) : null;
+		}
+	}
+
+	private static final String INDEX = "items.index.color";
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private FilesystemStorage mStorage;
+	private ObjectStoreRaw mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = new FilesystemStorage(mFolder.newFolder("store"));
+		mStore = new ObjectStoreRaw(mStorage);
+		mStore.storeList("items", Arrays.asList(new Item(1, "red", "ann"),
+				new Item(2, "blue", null), new Item(3, "red", "bob")));
+	}
+
+	@Test
+	public void findWithoutIndex() throws IOException {
+		assertEquals(Arrays.asList(1, 3), findIds("color", "red"));
+		assertEquals(Arrays.asList(2), findIds("owner.name", null));
+		assertFalse(mStorage.contains(INDEX));
+	}
+
+	@Test
+	public void findWithIndex() throws IOException {
+		mStore.addIndex("items", "color");
+		mStore.addIndex("items", "owner.name");
+		assertTrue(mStorage.contains(INDEX));
+		assertEquals(Arrays.asList(1, 3), findIds("color", "red"));
+		assertEquals(Arrays.asList(3), findIds("owner.name", "bob"));
+		assertEquals(new ArrayList<Integer>(), findIds("color", "green"));
+	}
+
+	@Test
+	public void indexFollowsStoresAndAppends() throws IOException {
+		mStore.addIndex("items", "color");
+		mStore.appendToList("items", Arrays.asList(new Item(4, "red", null)));
+		assertEquals(Arrays.asList(1, 3, 4), findIds("color", "red"));
+		mStore.storeList("items", Arrays.asList(new Item(5, "blue", null),
+				new Item(6, "red", null)));
+		assertEquals(Arrays.asList(6), findIds("color", "red"));
+	}
+
+	@Test
+	public void removeIndex() throws IOException {
+		mStore.addIndex("items", "color");
+		mStore.removeIndex("items", "color");
+		assertFalse(mStorage.contains(INDEX));
+		assertEquals(Arrays.asList(1, 3), findIds("color", "red"));
+	}
+
+	@Test
+	public void indexOfResizedListIsRebuilt() throws IOException {
+		mStore.addIndex("items", "color");
+		// written past the store, so the index is not updated
+		mStorage.storeJson("items", "[{\"id\":7,\"color\":\"red\"}]");
+		assertEquals(Arrays.asList(7), findIds("color", "red"));
+	}
+
+	@Test
+	public void indexOfChangedListOfSameSizeIsRebuilt() throws IOException {
+		mStore.addIndex("items", "color");
+		String json = mStorage.getJson("items");
+		mStorage.storeJson("items", json.replace("blue", "gray")
+				.replaceFirst("red", "tan"));
+		assertEquals(Arrays.asList(3), findIds("color", "red"));
+		assertEquals(Arrays.asList(1), findIds("color", "tan"));
+	}
+
+	@Test
+	public void damagedIndexIsRebuilt() throws IOException {
+		mStore.addIndex("items", "color");
+		mStorage.storeJson(INDEX, "{\"field\":");
+		assertEquals(Arrays.asList(1, 3), findIds("color", "red"));
+		mStorage.storeJson(INDEX, "[]");
+		assertEquals(Arrays.asList(1, 3), findIds("color", "red"));
+	}
+
+	private List<Integer> findIds(String field, Object value)
+			throws IOException {
+		List<Integer> ids = new ArrayList<Integer>();
+		for (Item item : mStore.findBy("items", field, value, Item.class)) {
+			ids.add(item.id);
+		}
+		return ids;
+	}
+
+}
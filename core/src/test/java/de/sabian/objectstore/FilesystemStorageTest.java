@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FilesystemStorageTest extends AbstractStorageTest {
+
+	@Override
+	protected IJsonStorage createStorage(File directory) {
+		return new FilesystemStorage(directory);
+	}
+
+	@Test
+	public void failedStoreLeavesNoTempFile() throws IOException {
+		ObjectStoreRaw store = new ObjectStoreRaw(mStorage);
+		store.store("value", "old");
+		try {
+			store.store("value", Arrays.asList(1.0, Double.NaN));
+			fail();
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals("old", store.get("value", String.class));
+		File[] tempFiles = new File(mDirectory, ".tmp").listFiles();
+		assertEquals(0, tempFiles != null ? tempFiles.length : 0);
+	}
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GetAllTest {
+
+	/**
+	 * Counts the batch and the single reads.
+	 */
+	private static class CountingStorage extends FilesystemStorage {
+		private int mBatchReads;
+		private int mSingleReads;
+
+		public CountingStorage(File baseDir) {
+			super(baseDir);
+		}
+
+		@Override
+		public Map<String, String> getAllJson(Collection<String> identifiers)
+				throws IOException {
+			mBatchReads++;
+			return super.getAllJson(identifiers);
+		}
+
+		@Override
+		public InputStream openInputStream(String identifier)
+				throws IOException {
+			mSingleReads++;
+			return super.openInputStream(identifier);
+		}
+	}
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private CountingStorage mStorage;
+	private ObjectStoreRaw mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		mStorage = new CountingStorage(mFolder.newFolder("store"));
+		mStore = new ObjectStoreRaw(mStorage);
+	}
+
+	@Test
+	public void jsonValuesAreReadInOneBatch() throws IOException {
+		mStore.store("a", new String[] { "1" });
+		mStore.storeList("b", Arrays.asList("2"));
+		mStore.appendToList("c", Arrays.asList("3"));
+		mStore.appendToList("c", Arrays.asList("4"));
+		mStorage.mSingleReads = 0;
+		Map<String, String[]> values = mStore.getAll(
+				Arrays.asList("a", "b", "c", "missing"), String[].class);
+		assertEquals(1, mStorage.mBatchReads);
+		assertEquals(0, mStorage.mSingleReads);
+		assertEquals(Arrays.asList("1"), Arrays.asList(values.get("a")));
+		assertEquals(Arrays.asList("2"), Arrays.asList(values.get("b")));
+		assertEquals(Arrays.asList("3", "4"), Arrays.asList(values.get("c")));
+		assertEquals(3, values.size());
+	}
+
+	@Test
+	public void valuesOfOtherCodecsAreReadOneByOne() throws IOException {
+		mStore.store("json", "a");
+		mStore.setCodec(new BinaryCodec());
+		mStore.store("binary", "b");
+		mStorage.mSingleReads = 0;
+		Map<String, String> expected = new HashMap<String, String>();
+		expected.put("json", "a");
+		expected.put("binary", "b");
+		assertEquals(expected, mStore.getAll(
+				Arrays.asList("json", "binary", "missing"), String.class));
+		assertEquals(1, mStorage.mSingleReads);
+	}
+
+	@Test
+	public void cachedValuesAreNotRead() throws IOException {
+		mStore.setCache(new ObjectCache(16, 1024 * 1024,
+				ObjectCache.Policy.COPY_ON_READ));
+		mStore.store("a", "1");
+		mStore.store("b", "2");
+		assertEquals(2, mStore.getAll(Arrays.asList("a", "b"), String.class)
+				.size());
+		mStorage.mSingleReads = 0;
+		assertEquals("1", mStore.get("a", String.class));
+		assertEquals(0, mStorage.mSingleReads);
+	}
+
+}
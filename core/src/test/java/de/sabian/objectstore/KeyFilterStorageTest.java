@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.junit.Test;
+
+public class KeyFilterStorageTest extends AbstractStorageTest {
+
+	@Override
+	protected IJsonStorage createStorage(File directory) throws IOException {
+		return new KeyFilterStorage(new FilesystemStorage(directory), 4);
+	}
+
+	@Test
+	public void grownFilterFindsAllKeys() throws IOException {
+		for (int i = 0; i < 1000; i++) {
+			mStorage.storeJson("key" + i, String.valueOf(i));
+		}
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(String.valueOf(i), mStorage.getJson("key" + i));
+		}
+		reopen();
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(mStorage.contains("key" + i));
+		}
+		assertFalse(mStorage.contains("missing"));
+	}
+
+	@Test
+	public void damagedFilterIsRebuilt() throws IOException {
+		mStorage.storeJson("a", "1");
+		close();
+		// version, hash count and a negative length
+		OutputStream out = new FilesystemStorage(mDirectory)
+				.openOutputStream(KeyFilterStorage.FILTER_IDENTIFIER);
+		out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 7, -1, -1, -1, -1 });
+		out.close();
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+	}
+
+	@Test
+	public void oversizedFilterLengthIsRebuilt() throws IOException {
+		mStorage.storeJson("a", "1");
+		close();
+		OutputStream out = new FilesystemStorage(mDirectory)
+				.openOutputStream(KeyFilterStorage.FILTER_IDENTIFIER);
+		out.write(new byte[] { 0, 0, 0, 1, 0, 0, 0, 7, 0x7F, -1, -1, -1 });
+		out.close();
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+	}
+
+	private void reopen() throws IOException {
+		close();
+		mStorage = createStorage(mDirectory);
+	}
+
+	private void close() throws IOException {
+		((KeyFilterStorage) mStorage).close();
+	}
+
+}
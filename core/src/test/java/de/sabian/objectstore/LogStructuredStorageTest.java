@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+public class LogStructuredStorageTest extends AbstractStorageTest {
+
+	@Override
+	protected IJsonStorage createStorage(File directory) throws IOException {
+		// compaction only runs when a test asks for it
+		return new LogStructuredStorage(directory, Long.MAX_VALUE);
+	}
+
+	@Test
+	public void reopenWithHint() throws IOException {
+		mStorage.storeJson("a", "1");
+		mStorage.storeJson("b", "2");
+		mStorage.remove("a");
+		reopen();
+		assertTrue(new File(mDirectory, "data.hint").exists());
+		assertFalse(mStorage.contains("a"));
+		assertEquals("2", mStorage.getJson("b"));
+	}
+
+	@Test
+	public void reopenWithoutHintReplaysLog() throws IOException {
+		mStorage.storeJson("a", "1");
+		mStorage.storeJson("a", "2");
+		mStorage.storeJson("b", "3");
+		close();
+		assertTrue(new File(mDirectory, "data.hint").delete());
+		mStorage = createStorage(mDirectory);
+		assertEquals("2", mStorage.getJson("a"));
+		assertEquals("3", mStorage.getJson("b"));
+	}
+
+	@Test
+	public void tornRecordIsDropped() throws IOException {
+		mStorage.storeJson("a", "1");
+		close();
+		File dataFile = new File(mDirectory, "data.log");
+		long length = dataFile.length();
+		FileOutputStream out = new FileOutputStream(dataFile, true);
+		out.write(new byte[] { 1, 0, 0 });
+		out.close();
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+		assertEquals(length, dataFile.length());
+		mStorage.storeJson("b", "2");
+		reopen();
+		assertEquals("2", mStorage.getJson("b"));
+	}
+
+	@Test
+	public void oversizedRecordLengthIsRejected() throws IOException {
+		mStorage.storeJson("a", "1");
+		close();
+		File dataFile = new File(mDirectory, "data.log");
+		long length = dataFile.length();
+		// a put record whose value length exceeds the file by far
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				dataFile, true));
+		out.writeByte(1);
+		out.writeInt(1);
+		out.writeInt(Integer.MAX_VALUE - 64);
+		out.writeInt(0);
+		out.writeByte('x');
+		out.close();
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+		assertEquals(length, dataFile.length());
+	}
+
+	@Test
+	public void tornLastRecordWithBadChecksumIsDropped() throws IOException {
+		mStorage.storeJson("a", "1");
+		mStorage.storeJson("b", "2");
+		close();
+		assertTrue(new File(mDirectory, "data.hint").delete());
+		File dataFile = new File(mDirectory, "data.log");
+		flipByte(dataFile, dataFile.length() - 1);
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+		assertFalse(mStorage.contains("b"));
+	}
+
+	@Test
+	public void corruptRecordBeforeTheEndFailsOpen() throws IOException {
+		mStorage.storeJson("a", "1");
+		mStorage.storeJson("b", "2");
+		close();
+		assertTrue(new File(mDirectory, "data.hint").delete());
+		File dataFile = new File(mDirectory, "data.log");
+		long length = dataFile.length();
+		// the value of the first record, behind its header and key
+		flipByte(dataFile, 13 + 1);
+		try {
+			createStorage(mDirectory);
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+		assertEquals(length, dataFile.length());
+	}
+
+	@Test
+	public void damagedHintIsIgnored() throws IOException {
+		mStorage.storeJson("a", "1");
+		close();
+		// version, covered length, dead bytes, count and a negative key length
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				new File(mDirectory, "data.hint")));
+		out.writeInt(1);
+		out.writeLong(0);
+		out.writeLong(0);
+		out.writeInt(1);
+		out.writeInt(-1);
+		out.close();
+		mStorage = createStorage(mDirectory);
+		assertEquals("1", mStorage.getJson("a"));
+	}
+
+	@Test
+	public void compactionDropsDeadRecords() throws IOException {
+		LogStructuredStorage storage = (LogStructuredStorage) mStorage;
+		for (int i = 0; i < 100; i++) {
+			storage.storeJson("a", String.valueOf(i));
+		}
+		storage.storeJson("b", "\"b\"");
+		storage.storeJson("c", "\"c\"");
+		storage.remove("c");
+		storage.storeEntryJson("map", "key", "1");
+		File dataFile = new File(mDirectory, "data.log");
+		long length = dataFile.length();
+		assertTrue(storage.getDeadBytes() > 0);
+
+		storage.compact();
+		assertEquals(0, storage.getDeadBytes());
+		assertTrue(dataFile.length() < length);
+		assertValues();
+		reopen();
+		assertValues();
+	}
+
+	private void assertValues() throws IOException {
+		assertEquals("99", mStorage.getJson("a"));
+		assertEquals("\"b\"", mStorage.getJson("b"));
+		assertFalse(mStorage.contains("c"));
+		assertEquals("1", mStorage.getEntryJson("map", "key"));
+	}
+
+	private static void flipByte(File file, long position) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(position);
+			int b = raf.read();
+			raf.seek(position);
+			raf.write(b ^ 0xFF);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void reopen() throws IOException {
+		close();
+		mStorage = createStorage(mDirectory);
+	}
+
+	private void close() throws IOException {
+		((LogStructuredStorage) mStorage).close();
+	}
+
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.File;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Runs the storage tests against the default implementations of
+ * {@link AbstractJsonStorage}, with a storage which only keeps strings.
+ */
+public class MemoryStorageTest extends AbstractStorageTest {
+
+	private static class MemoryStorage extends AbstractJsonStorage {
+		private final Map<String, String> mValues =
+				new ConcurrentSkipListMap<String, String>();
+
+		@Override
+		public void storeJson(String identifier, String json) {
+			mValues.put(identifier, json);
+		}
+
+		@Override
+		public String getJson(String identifier) {
+			return mValues.get(identifier);
+		}
+
+		@Override
+		public boolean remove(String identifier) {
+			return mValues.remove(identifier) != null;
+		}
+
+		@Override
+		public boolean contains(String identifier) {
+			return mValues.containsKey(identifier);
+		}
+
+		@Override
+		public Writer openWriter(String identifier) {
+			return new DeferredJsonWriter(this, identifier);
+		}
+
+		@Override
+		public Reader openReader(String identifier) {
+			String json = getJson(identifier);
+			return json != null ? new StringReader(json) : null;
+		}
+
+		@Override
+		public CloseableIterator<String> keys() {
+			return keysWithPrefix("");
+		}
+
+		@Override
+		public CloseableIterator<String> keysWithPrefix(final String prefix) {
+			return new KeyIterator(mValues.keySet().iterator()) {
+				@Override
+				protected boolean accept(String key) {
+					return key.startsWith(prefix) && !isEntryKey(key, prefix);
+				}
+			};
+		}
+	}
+
+	@Override
+	protected IJsonStorage createStorage(File directory) {
+		return new MemoryStorage();
+	}
+
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PackedArraysTest {
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	private FilesystemStorage mStorage;
+	private ObjectStoreRaw mStore;
+
+	@Before
+	public void setUp() throws IOException {
+		File directory = mFolder.newFolder("store");
+		mStorage = new FilesystemStorage(directory);
+		mStore = new ObjectStoreRaw(mStorage);
+	}
+
+	@Test
+	public void arraysRoundTrip() throws IOException {
+		int[] ints = { 0, -1, Integer.MIN_VALUE, Integer.MAX_VALUE };
+		long[] longs = { Long.MIN_VALUE, 0, Long.MAX_VALUE };
+		double[] doubles = { 0.1, -0.0, Double.NaN,
+				Double.POSITIVE_INFINITY };
+		mStore.storeIntArray("ints", ints);
+		mStore.storeLongArray("longs", longs);
+		mStore.storeDoubleArray("doubles", doubles);
+		mStore.storeIntArray("empty", new int[0]);
+		assertArrayEquals(ints, mStore.getIntArray("ints"));
+		assertArrayEquals(longs, mStore.getLongArray("longs"));
+		assertArrayEquals(doubles, mStore.getDoubleArray("doubles"), 0);
+		assertArrayEquals(new int[0], mStore.getIntArray("empty"));
+		assertNull(mStore.getIntArray("missing"));
+	}
+
+	@Test
+	public void largeArrayRoundTrip() throws IOException {
+		// spans several of the conversion chunks
+		long[] longs = new long[100000];
+		for (int i = 0; i < longs.length; i++) {
+			longs[i] = (long) i * i - 7;
+		}
+		mStore.storeLongArray("longs", longs);
+		assertArrayEquals(longs, mStore.getLongArray("longs"));
+	}
+
+	@Test
+	public void storedListsAreReadAsArrays() throws IOException {
+		mStore.storeList("list", Arrays.asList(1, 2));
+		mStore.appendToList("list", Arrays.asList(3));
+		assertArrayEquals(new int[] { 1, 2, 3 }, mStore.getIntArray("list"));
+		assertArrayEquals(new double[] { 1, 2, 3 },
+				mStore.getDoubleArray("list"), 0);
+		mStore.setCodec(new BinaryCodec());
+		mStore.storeList("binary", Arrays.asList(4L, 5L));
+		assertArrayEquals(new long[] { 4, 5 }, mStore.getLongArray("binary"));
+	}
+
+	@Test
+	public void otherElementTypeIsRejected() throws IOException {
+		mStore.storeLongArray("longs", new long[] { 1 });
+		try {
+			mStore.getIntArray("longs");
+			fail();
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test(expected = NumberFormatException.class)
+	public void fractionInIntListIsRejected() throws IOException {
+		mStore.storeList("list", Arrays.asList(1.5));
+		mStore.getIntArray("list");
+	}
+
+	@Test(expected = EOFException.class)
+	public void truncatedArrayFails() throws IOException {
+		storePacked(PackedArrays.TYPE_INT, 1000, 2);
+		mStore.getIntArray("damaged");
+	}
+
+	@Test(expected = EOFException.class)
+	public void damagedLengthFailsWithoutAllocating() throws IOException {
+		storePacked(PackedArrays.TYPE_LONG, Integer.MAX_VALUE, 2);
+		mStore.getLongArray("damaged");
+	}
+
+	@Test(expected = IOException.class)
+	public void negativeLengthIsRejected() throws IOException {
+		storePacked(PackedArrays.TYPE_INT, -1, 0);
+		mStore.getIntArray("damaged");
+	}
+
+	/**
+	 * Stores a packed array header which declares the given length, followed
+	 * by the given number of elements.
+	 */
+	private void storePacked(int type, int length, int elements)
+			throws IOException {
+		int elementSize = type == PackedArrays.TYPE_INT ? 4 : 8;
+		ByteBuffer buffer = ByteBuffer.allocate(6 + elements * elementSize)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) PackedArrays.TAG).put((byte) type).putInt(length);
+		OutputStream out = mStorage.openOutputStream("damaged");
+		out.write(buffer.array());
+		out.close();
+	}
+
+}
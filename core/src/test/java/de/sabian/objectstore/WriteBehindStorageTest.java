@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class WriteBehindStorageTest extends AbstractStorageTest {
+
+	private FilesystemStorage mTarget;
+
+	@Override
+	protected IJsonStorage createStorage(File directory) {
+		mTarget = new FilesystemStorage(directory);
+		return new WriteBehindStorage(mTarget, 100, 60 * 1000);
+	}
+
+	@Test
+	public void flushWritesPendingValues() throws IOException {
+		mStorage.storeJson("a", "1");
+		mStorage.storeJson("a", "2");
+		assertEquals(1, ((WriteBehindStorage) mStorage).getPendingWriteCount());
+		((WriteBehindStorage) mStorage).flush();
+		assertEquals("2", mTarget.getJson("a"));
+	}
+
+	@Test(timeout = 10000)
+	public void slowReadDoesNotBlockWrites() throws Exception {
+		final CountDownLatch reading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final WriteBehindStorage storage = new WriteBehindStorage(
+				new FilesystemStorage(mDirectory) {
+					@Override
+					public String getJson(String identifier)
+							throws IOException {
+						reading.countDown();
+						try {
+							release.await();
+						} catch (InterruptedException e) {
+							throw new IOException(e);
+						}
+						return super.getJson(identifier);
+					}
+				}, 100, 60 * 1000);
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					storage.getJson("a");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		reader.start();
+		assertTrue(reading.await(5, TimeUnit.SECONDS));
+		storage.storeJson("b", "1");
+		assertEquals("1", storage.getJson("b"));
+		release.countDown();
+		reader.join();
+		storage.close();
+	}
+
+}
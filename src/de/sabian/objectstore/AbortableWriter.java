@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+/**
+ * Writes UTF-8 text to a stream of a storage and aborts the stream when it is
+ * aborted.
+ */
+class AbortableWriter extends OutputStreamWriter implements IAbortable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final OutputStream mOut;
+
+	public AbortableWriter(OutputStream out) {
+		super(out, UTF8);
+		this.mOut = out;
+	}
+
+	@Override
+	public void abort() {
+		AbstractJsonStorage.abort(mOut);
+	}
+
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Base class for storages which implements the batch operations one
+ * identifier at a time. Storages which can do better override them.
+ * <p>
+ * The byte streams are mapped to the text methods: bytes which are UTF-8 text
+ * are stored as is, other bytes as base64 behind a prefix which can not start
+ * json. Storages which can store bytes natively override them. Appends
+ * rewrite the whole value unless a storage overrides them as well.
+ * <p>
+ * Every entry of a keyed map is stored as a value of its own, behind the
+ * identifier of the map, the suffix {@value #ENTRIES_SUFFIX} and a slash.
+ * Entries are written, read and removed without the rest of the map, the
+ * count and the whole map are found by a prefix scan. The key listings of
+ * storages have to leave these identifiers out unless the prefix asks for
+ * the entries of a map, see {@link #isEntryKey(String, String)}. Storages
+ * which can address entries natively override the entry methods.
+ */
+public abstract class AbstractJsonStorage implements IJsonStorage {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	static final String BINARY_PREFIX = "=";
+	static final String ENTRIES_SUFFIX = ".entries";
+	private static final String ENTRY_SEPARATOR = ENTRIES_SUFFIX + "/";
+
+	@Override
+	public OutputStream openOutputStream(final String identifier)
+			throws IOException {
+		return new BufferedValueStream() {
+			@Override
+			protected void commit() throws IOException {
+				storeJson(identifier, encodeBytes(toByteArray()));
+			}
+		};
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		String json = getJson(identifier);
+		return json != null ? new ByteArrayInputStream(decodeBytes(json))
+				: null;
+	}
+
+	@Override
+	public OutputStream openAppendStream(String identifier) throws IOException {
+		return openRewritingAppendStream(this, identifier);
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		for (Entry<String, String> entry : values.entrySet()) {
+			storeJson(entry.getKey(), entry.getValue());
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String identifier : identifiers) {
+			String json = getJson(identifier);
+			if (json != null)
+				values.put(identifier, json);
+		}
+		return values;
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		int removed = 0;
+		for (String identifier : identifiers) {
+			if (remove(identifier))
+				removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Counts the bytes of the value by reading it.
+	 */
+	@Override
+	public long sizeOf(String identifier) throws IOException {
+		InputStream in = openInputStream(identifier);
+		return in != null ? readFully(in).length : -1;
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		List<String> identifiers = new ArrayList<String>();
+		CloseableIterator<String> keys = keysWithPrefix(prefix);
+		try {
+			while (keys.hasNext()) {
+				identifiers.add(keys.next());
+			}
+		} finally {
+			keys.close();
+		}
+		return removeAll(identifiers);
+	}
+
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		storeJson(entryIdentifier(identifier, key), json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return getJson(entryIdentifier(identifier, key));
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		return remove(entryIdentifier(identifier, key));
+	}
+
+	@Override
+	public int getEntryCount(String identifier) throws IOException {
+		return getEntryIdentifiers(identifier).size();
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		String prefix = entryIdentifier(identifier, "");
+		Map<String, String> values = new HashMap<String, String>();
+		for (Entry<String, String> entry : getAllJson(
+				getEntryIdentifiers(identifier)).entrySet()) {
+			values.put(entry.getKey().substring(prefix.length()),
+					entry.getValue());
+		}
+		return values;
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		return removeAll(getEntryIdentifiers(identifier)) > 0;
+	}
+
+	/**
+	 * Returns whether a key listing with the given prefix leaves the key out,
+	 * as it holds an entry of a keyed map and the prefix is not the one of
+	 * a map's entries.
+	 */
+	static boolean isEntryKey(String key, String prefix) {
+		return key.contains(ENTRY_SEPARATOR)
+				&& !prefix.contains(ENTRY_SEPARATOR);
+	}
+
+	private static String entryIdentifier(String identifier, String key) {
+		return identifier + ENTRY_SEPARATOR + key;
+	}
+
+	private List<String> getEntryIdentifiers(String identifier)
+			throws IOException {
+		List<String> identifiers = new ArrayList<String>();
+		CloseableIterator<String> keys = keysWithPrefix(entryIdentifier(
+				identifier, ""));
+		try {
+			while (keys.hasNext()) {
+				identifiers.add(keys.next());
+			}
+		} finally {
+			keys.close();
+		}
+		return identifiers;
+	}
+
+	/**
+	 * Returns the bytes as text if they are UTF-8 encoded json text, that is
+	 * without control characters other than whitespace, otherwise null.
+	 */
+	static String decodeText(byte[] bytes) {
+		String text;
+		try {
+			text = UTF8.newDecoder().decode(ByteBuffer.wrap(bytes)).toString();
+		} catch (CharacterCodingException e) {
+			return null;
+		}
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c < 0x20 && c != '\t' && c != '\n' && c != '\r')
+				return null;
+		}
+		return text;
+	}
+
+	/**
+	 * Appends by reading the stored value and replacing it with the stored
+	 * and the appended bytes, for storages which can not append in place.
+	 */
+	static OutputStream openRewritingAppendStream(final IJsonStorage storage,
+			final String identifier) {
+		return new BufferedValueStream() {
+			@Override
+			protected void commit() throws IOException {
+				InputStream in = storage.openInputStream(identifier);
+				byte[] stored = in != null ? readFully(in) : new byte[0];
+				OutputStream out = storage.openOutputStream(identifier);
+				boolean written = false;
+				try {
+					out.write(stored);
+					writeTo(out);
+					out.close();
+					written = true;
+				} finally {
+					if (!written)
+						AbstractJsonStorage.abort(out);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Aborts the stream or writer of a failed write, or closes it if it can
+	 * not be aborted.
+	 */
+	static void abort(Closeable stream) {
+		if (stream instanceof IAbortable) {
+			((IAbortable) stream).abort();
+			return;
+		}
+		try {
+			stream.close();
+		} catch (IOException e) {
+			// the write failed before, which is reported instead
+		}
+	}
+
+	/**
+	 * Returns the smallest string which is greater than all strings with the
+	 * given prefix, or null if there is none.
+	 */
+	static String prefixEnd(String prefix) {
+		for (int i = prefix.length() - 1; i >= 0; i--) {
+			char c = prefix.charAt(i);
+			if (c != Character.MAX_VALUE)
+				return prefix.substring(0, i) + (char) (c + 1);
+		}
+		return null;
+	}
+
+	/**
+	 * Reads the stream to its end and closes it.
+	 */
+	static byte[] readFully(InputStream in) throws IOException {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	static String encodeBytes(byte[] bytes) {
+		String text = decodeText(bytes);
+		if (text != null && !text.startsWith(BINARY_PREFIX))
+			return text;
+		return BINARY_PREFIX + Base64.encode(bytes);
+	}
+
+	static byte[] decodeBytes(String text) {
+		if (text.startsWith(BINARY_PREFIX))
+			return Base64.decode(text.substring(BINARY_PREFIX.length()));
+		return text.getBytes(UTF8);
+	}
+
+}
@@ -0,0 +1,1696 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.internal.bind.JsonTreeReader;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import de.sabian.objectstore.IStoreMetrics.Operation;
+
+/**
+ * Implements the operations of {@link ObjectStoreRaw}, which adds the
+ * constructors of the android library or of the JVM core.
+ */
+public abstract class AbstractObjectStore {
+
+	private static final IStoreCodec JSON_CODEC = new JsonCodec();
+	private static final int LIST_COMPACTION_INTERVAL = 64;
+	private static final String INDEX_SUFFIX = ".index.";
+	private static final int LOCK_STRIPES = 64;
+
+	private static interface Decoder<T> {
+		public T decode(JsonReader jReader) throws IOException;
+	}
+
+	private Gson mGson;
+	private IJsonStorage mJsonStorage;
+	private IStoreCodec mCodec;
+	private Map<Integer, IStoreCodec> mCodecs;
+	private boolean mOverwrite;
+	private ObjectCache mCache;
+	private StoreScheduler mScheduler;
+	private Map<String, Integer> mListAppends;
+	private Map<String, Set<String>> mIndexedFields;
+	private IStoreMetrics mMetrics = IStoreMetrics.NONE;
+	// reads of an identifier hold the read lock of its stripe, writes the
+	// write lock, so they never see a value which is written in between
+	private final StripedLocks mLocks = new StripedLocks(LOCK_STRIPES);
+
+	protected AbstractObjectStore(IJsonStorage storage) {
+		mGson = new Gson();
+		mJsonStorage = storage;
+		mOverwrite = true;
+		mCodec = JSON_CODEC;
+		mCodecs = new ConcurrentHashMap<Integer, IStoreCodec>();
+		mListAppends = new HashMap<String, Integer>();
+		mIndexedFields = new HashMap<String, Set<String>>();
+		registerCodec(new BinaryCodec());
+	}
+
+	/**
+	 * Sets the gson instance which maps objects to json.
+	 */
+	public void setGson(Gson gson) {
+		mGson = gson;
+	}
+
+	/**
+	 * Sets the codec which encodes stored values, {@link JsonCodec} by
+	 * default. Values stored by other codecs are still read, as long as their
+	 * codec is registered.
+	 */
+	public void setCodec(IStoreCodec codec) {
+		registerCodec(codec);
+		mCodec = codec;
+	}
+
+	public IStoreCodec getCodec() {
+		return mCodec;
+	}
+
+	/**
+	 * Registers a codec for reading values with its tag. {@link BinaryCodec}
+	 * is registered by default.
+	 */
+	public void registerCodec(IStoreCodec codec) {
+		if (codec.getTag() != IStoreCodec.NO_TAG)
+			mCodecs.put(codec.getTag(), codec);
+	}
+
+	public void setOverwriteEnabled(boolean enabled) {
+		mOverwrite = enabled;
+	}
+
+	public void setCache(ObjectCache cache) {
+		mCache = cache;
+	}
+
+	public ObjectCache getCache() {
+		return mCache;
+	}
+
+	public CacheStats getCacheStats() {
+		return mCache != null ? mCache.getStats() : null;
+	}
+
+	/**
+	 * Sets the receiver of the latencies, value types, cache lookups and
+	 * queue waits of this store, {@link IStoreMetrics#NONE} by default. The
+	 * bytes read and written are measured by wrapping the storage with an
+	 * {@link InstrumentedJsonStorage}.
+	 */
+	public void setMetrics(IStoreMetrics metrics) {
+		mMetrics = metrics != null ? metrics : IStoreMetrics.NONE;
+	}
+
+	public IStoreMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Sets the scheduler which runs the asynchronous operations. By default
+	 * a scheduler with two threads and room for 128 pending operations is
+	 * created on first use.
+	 */
+	public synchronized void setScheduler(StoreScheduler scheduler) {
+		mScheduler = scheduler;
+	}
+
+	public synchronized StoreScheduler getScheduler() {
+		if (mScheduler == null)
+			mScheduler = new StoreScheduler(2, 128);
+		return mScheduler;
+	}
+
+	public boolean contains(String identifier) {
+		return mJsonStorage.contains(identifier);
+	}
+
+	public boolean remove(String identifier) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			dropIndexes(identifier);
+			return mJsonStorage.remove(identifier);
+		} finally {
+			resetListAppends(identifier);
+			invalidateCache(identifier);
+			lock.unlock();
+			report(Operation.REMOVE, identifier, null, start);
+		}
+	}
+
+	public <T> boolean store(String identifier, T object) throws IOException {
+		return storeIntern(identifier, object, mOverwrite);
+	}
+
+	public <T> T get(String identifier, Class<T> clazz)
+			throws JsonSyntaxException, IOException {
+		return read(identifier, "object:" + clazz.getName(),
+				objectDecoder(clazz));
+	}
+
+	public <T> List<T> getList(String identifier,
+			final Class<T> classOfElements) throws IOException {
+		List<T> list = read(identifier, "list:" + classOfElements.getName(),
+				new Decoder<List<T>>() {
+					@Override
+					public List<T> decode(JsonReader jReader)
+							throws IOException {
+						List<T> list = new ArrayList<T>();
+						readCollection(jReader, classOfElements, list);
+						return list;
+					}
+				});
+		if (list == null)
+			return new ArrayList<T>();
+		return isCacheShared() ? new ArrayList<T>(list) : list;
+	}
+
+	public <T> boolean storeList(String identifier, List<T> objects)
+			throws IOException {
+		return storeCollectionIntern(identifier, objects, mOverwrite);
+	}
+
+	/**
+	 * Appends the elements to the stored list, or stores them as a new list.
+	 * Only the elements are written, as another array behind the stored
+	 * value, in the codec of the stored value. getList, getSet,
+	 * fillCollection, iterate and get read all arrays as one list. Every
+	 * {@value #LIST_COMPACTION_INTERVAL} appends the list is compacted.
+	 */
+	public <T> boolean appendToList(String identifier, Collection<T> elements)
+			throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			IStoreCodec codec = getCodecOfList(identifier);
+			if (codec == null)
+				return storeCollectionIntern(identifier,
+						new ArrayList<T>(elements), true);
+			if (elements.isEmpty())
+				return true;
+			List<FieldIndex> indexes = readIndexes(identifier);
+			dropIndexes(identifier);
+			OutputStream out = mJsonStorage.openAppendStream(identifier);
+			boolean written = false;
+			try {
+				JsonWriter jWriter = codec.newWriter(new BufferedOutputStream(
+						out));
+				jWriter.beginArray();
+				for (T element : elements) {
+					if (indexes.isEmpty()) {
+						mGson.toJson(element, element != null ? element
+								.getClass() : Object.class, jWriter);
+						continue;
+					}
+					JsonElement tree = mGson.toJsonTree(element);
+					for (FieldIndex index : indexes) {
+						index.add(tree);
+					}
+					mGson.toJson(tree, jWriter);
+				}
+				jWriter.endArray();
+				jWriter.close();
+				written = true;
+			} finally {
+				if (!written)
+					AbstractJsonStorage.abort(out);
+				invalidateCache(identifier);
+			}
+			storeIndexes(identifier, indexes);
+			if (countListAppend(identifier))
+				compactList(identifier);
+			return true;
+		} finally {
+			lock.unlock();
+			report(Operation.APPEND, identifier, elements.getClass(), start);
+		}
+	}
+
+	/**
+	 * Rewrites a list which was appended to as a single array, in the
+	 * current codec.
+	 */
+	public boolean compactList(String identifier) throws IOException {
+		Lock lock = lockForWrite(identifier);
+		try {
+			JsonReader jReader = openJsonReader(identifier);
+			if (jReader == null)
+				return false;
+			JsonElement tree;
+			try {
+				tree = readTree(jReader);
+			} finally {
+				jReader.close();
+			}
+			resetListAppends(identifier);
+			// the positions of the elements stay the same, so the indexes
+			// only get the stamp of the rewritten list
+			List<FieldIndex> indexes = readIndexes(identifier);
+			writeValue(identifier, tree);
+			storeIndexes(identifier, indexes);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Declares an index on a field of the elements of the collection with the
+	 * given identifier, nested fields are separated by dots. The index is
+	 * stored next to the collection, it is built right away if the collection
+	 * is stored and is updated by the stores and appends of this instance.
+	 * Every instance which writes the collection should declare its indexes,
+	 * an index which does not match the stored size of the collection any
+	 * more is rebuilt.
+	 */
+	public void addIndex(String identifier, String field) throws IOException {
+		synchronized (mIndexedFields) {
+			Set<String> fields = mIndexedFields.get(identifier);
+			if (fields == null) {
+				fields = new HashSet<String>();
+				mIndexedFields.put(identifier, fields);
+			}
+			fields.add(field);
+		}
+		Lock lock = lockForWrite(identifier);
+		try {
+			if (readIndex(identifier, field) == null)
+				buildIndex(identifier, field, null, Object.class);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public void removeIndex(String identifier, String field)
+			throws IOException {
+		synchronized (mIndexedFields) {
+			Set<String> fields = mIndexedFields.get(identifier);
+			if (fields == null || !fields.remove(field))
+				return;
+			if (fields.isEmpty())
+				mIndexedFields.remove(identifier);
+		}
+		Lock lock = lockForWrite(identifier);
+		try {
+			mJsonStorage.remove(getIndexIdentifier(identifier, field));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the elements of a stored collection whose field has the given
+	 * value, compared by their json. Only the matching elements are bound.
+	 * With an index the other elements are skipped, otherwise every element
+	 * is compared and the index of a declared field is rebuilt.
+	 */
+	public <T> List<T> findBy(String identifier, String field, Object value,
+			Class<T> classOfElements) throws IOException {
+		long start = System.nanoTime();
+		try {
+			JsonElement valueTree = mGson.toJsonTree(value);
+			boolean declared = getIndexedFields(identifier).contains(field);
+			Lock lock = lockForRead(identifier);
+			try {
+				FieldIndex index = declared ? readIndex(identifier, field)
+						: null;
+				if (index != null) {
+					List<T> found = findIndexed(identifier, index, valueTree,
+							classOfElements);
+					if (found != null)
+						return found;
+				} else if (!declared) {
+					return buildIndex(identifier, field, valueTree,
+							classOfElements);
+				}
+			} finally {
+				lock.unlock();
+			}
+			// the declared index is missing or stale and is stored again
+			lock = lockForWrite(identifier);
+			try {
+				return buildIndex(identifier, field, valueTree,
+						classOfElements);
+			} finally {
+				lock.unlock();
+			}
+		} finally {
+			report(Operation.FIND, identifier, classOfElements, start);
+		}
+	}
+
+	/**
+	 * Reads the elements at the positions of the index, or returns null if
+	 * they do not match, as the collection was changed without updating the
+	 * index.
+	 */
+	private <T> List<T> findIndexed(String identifier, FieldIndex index,
+			JsonElement value, Class<T> classOfElements) throws IOException {
+		List<T> found = new ArrayList<T>();
+		JsonReader jReader = openJsonReader(identifier);
+		if (jReader == null)
+			return found;
+		JsonArrayIterator<JsonElement> iterator =
+				new JsonArrayIterator<JsonElement>(mGson, jReader,
+						JsonElement.class);
+		try {
+			int position = 0;
+			for (int match : index.getPositions(value)) {
+				for (; position < match; position++) {
+					if (!iterator.hasNext())
+						return null;
+					iterator.skip();
+				}
+				if (!iterator.hasNext())
+					return null;
+				JsonElement element = iterator.next();
+				if (!index.matches(element, value))
+					return null;
+				found.add(mGson.fromJson(element, classOfElements));
+				position++;
+			}
+		} catch (JsonIOException e) {
+			throw unwrapIOException(e);
+		} finally {
+			iterator.close();
+		}
+		return found;
+	}
+
+	public <T> Set<T> getSet(String identifier, final Class<T> classOfElements)
+			throws IOException {
+		Set<T> objects = read(identifier, "set:" + classOfElements.getName(),
+				new Decoder<Set<T>>() {
+					@Override
+					public Set<T> decode(JsonReader jReader)
+							throws IOException {
+						Set<T> objects = new HashSet<T>();
+						readCollection(jReader, classOfElements, objects);
+						return objects;
+					}
+				});
+		if (objects == null)
+			return new HashSet<T>();
+		return isCacheShared() ? new HashSet<T>(objects) : objects;
+	}
+
+	public <T> boolean storeSet(String identifier, Set<T> objects)
+			throws IOException {
+		return storeCollectionIntern(identifier, objects, mOverwrite);
+	}
+
+	public <T, X> Map<T, X> getMap(String identifier,
+			final Class<T> classOfKeys, final Class<X> classOfValues)
+			throws IOException {
+		Map<T, X> map = read(identifier, "map:" + classOfKeys.getName() + ","
+				+ classOfValues.getName(), new Decoder<Map<T, X>>() {
+			@Override
+			public Map<T, X> decode(JsonReader jReader) throws IOException {
+				Map<T, X> map = new HashMap<T, X>();
+				readMap(jReader, classOfKeys, classOfValues, map);
+				return map;
+			}
+		});
+		if (map == null)
+			return new HashMap<T, X>();
+		return isCacheShared() ? new HashMap<T, X>(map) : map;
+	}
+
+	public <T, X> boolean storeMap(String identifier, Map<T, X> mapEntries)
+			throws IOException {
+		return storeMapIntern(identifier, mapEntries, mOverwrite);
+	}
+
+	/**
+	 * Puts an entry into the keyed map with the given identifier. Keyed maps
+	 * store every entry on its own, so entries are written and read without
+	 * the rest of the map. They are kept apart from the maps of
+	 * {@link #storeMap(String, Map)} and their entries are stored as json.
+	 */
+	public <T, X> boolean putInMap(String identifier, T key, X value)
+			throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			mJsonStorage.storeEntryJson(identifier, toName(key),
+					mGson.toJson(value));
+			return true;
+		} finally {
+			lock.unlock();
+			report(Operation.PUT_ENTRY, identifier,
+					value != null ? value.getClass() : null, start);
+		}
+	}
+
+	public <T, X> X getFromMap(String identifier, T key,
+			Class<X> classOfValues) throws JsonSyntaxException, IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForRead(identifier);
+		try {
+			String json = mJsonStorage.getEntryJson(identifier, toName(key));
+			return json != null ? mGson.fromJson(json, classOfValues) : null;
+		} finally {
+			lock.unlock();
+			report(Operation.GET_ENTRY, identifier, classOfValues, start);
+		}
+	}
+
+	public <T> boolean removeFromMap(String identifier, T key)
+			throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			return mJsonStorage.removeEntry(identifier, toName(key));
+		} finally {
+			lock.unlock();
+			report(Operation.REMOVE_ENTRY, identifier, null, start);
+		}
+	}
+
+	/**
+	 * Returns the number of entries of a keyed map, without reading them.
+	 */
+	public int mapSize(String identifier) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForRead(identifier);
+		try {
+			return mJsonStorage.getEntryCount(identifier);
+		} finally {
+			lock.unlock();
+			report(Operation.MAP_SIZE, identifier, null, start);
+		}
+	}
+
+	public <T, X> Map<T, X> getKeyedMap(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues)
+			throws JsonSyntaxException, IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForRead(identifier);
+		try {
+			Map<T, X> map = new HashMap<T, X>();
+			for (Entry<String, String> entry : mJsonStorage
+					.getAllEntriesJson(identifier).entrySet()) {
+				map.put(fromName(entry.getKey(), classOfKeys),
+						mGson.fromJson(entry.getValue(), classOfValues));
+			}
+			return map;
+		} finally {
+			lock.unlock();
+			report(Operation.GET_MAP, identifier, classOfValues, start);
+		}
+	}
+
+	public boolean removeKeyedMap(String identifier) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			return mJsonStorage.removeEntries(identifier);
+		} finally {
+			lock.unlock();
+			report(Operation.REMOVE_MAP, identifier, null, start);
+		}
+	}
+
+	/**
+	 * Stores the array packed in binary form, which is read back without
+	 * boxing by {@link #getIntArray(String)}.
+	 */
+	public boolean storeIntArray(String identifier, int[] values)
+			throws IOException {
+		return storeArray(identifier, values, mOverwrite);
+	}
+
+	/**
+	 * Returns the array stored by {@link #storeIntArray(String, int[])} or a
+	 * list of numbers stored by {@link #storeList(String, List)}, or null if
+	 * nothing is stored.
+	 */
+	public int[] getIntArray(String identifier) throws IOException {
+		return (int[]) readArray(identifier, PackedArrays.TYPE_INT);
+	}
+
+	public boolean storeLongArray(String identifier, long[] values)
+			throws IOException {
+		return storeArray(identifier, values, mOverwrite);
+	}
+
+	public long[] getLongArray(String identifier) throws IOException {
+		return (long[]) readArray(identifier, PackedArrays.TYPE_LONG);
+	}
+
+	public boolean storeDoubleArray(String identifier, double[] values)
+			throws IOException {
+		return storeArray(identifier, values, mOverwrite);
+	}
+
+	public double[] getDoubleArray(String identifier) throws IOException {
+		return (double[]) readArray(identifier, PackedArrays.TYPE_DOUBLE);
+	}
+
+	/**
+	 * Stores all given objects with one batch write, or one write per object
+	 * if the codec is not a json codec. Returns the number of stored objects,
+	 * which is smaller than the number of given objects if overwriting is
+	 * disabled and some of them already exist.
+	 */
+	public int storeAll(Map<String, ?> objects) throws IOException {
+		long start = System.nanoTime();
+		List<Lock> locks = lockForWrite(objects.keySet());
+		try {
+			if (mCodec.getTag() != IStoreCodec.NO_TAG) {
+				int stored = 0;
+				for (Entry<String, ?> entry : objects.entrySet()) {
+					if (storeIntern(entry.getKey(), entry.getValue(),
+							mOverwrite))
+						stored++;
+				}
+				return stored;
+			}
+			Map<String, String> values = new HashMap<String, String>();
+			int stored = 0;
+			for (Entry<String, ?> entry : objects.entrySet()) {
+				if (!getIndexedFields(entry.getKey()).isEmpty()) {
+					// indexed values are written with their indexes
+					if (storeIntern(entry.getKey(), entry.getValue(),
+							mOverwrite))
+						stored++;
+				} else if (mOverwrite || !contains(entry.getKey())) {
+					Object object = entry.getValue();
+					values.put(entry.getKey(),
+							mGson.toJson(object, object.getClass()));
+				}
+			}
+			try {
+				mJsonStorage.storeAllJson(values);
+			} finally {
+				for (String identifier : values.keySet()) {
+					invalidateCache(identifier);
+				}
+			}
+			return stored + values.size();
+		} finally {
+			unlock(locks);
+			report(Operation.STORE_ALL, null, null, start);
+		}
+	}
+
+	/**
+	 * Reads all given identifiers with one batch read of the storage. Values
+	 * of another codec than json are read one by one. Identifiers which are
+	 * not stored are missing in the returned map.
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> Map<String, T> getAll(Collection<String> identifiers,
+			Class<T> clazz) throws JsonSyntaxException, IOException {
+		long start = System.nanoTime();
+		String typeKey = "object:" + clazz.getName();
+		Decoder<T> decoder = objectDecoder(clazz);
+		Map<String, T> objects = new HashMap<String, T>();
+		List<Lock> locks = lockForRead(identifiers);
+		try {
+			ObjectCache cache = mCache;
+			List<String> uncached = new ArrayList<String>();
+			for (String identifier : identifiers) {
+				Object cached = cache != null ? cache.get(identifier,
+						typeKey) : null;
+				if (cache != null)
+					mMetrics.onCacheLookup(identifier, cached != null);
+				if (cached == null)
+					uncached.add(identifier);
+				else if (cache.getPolicy() == ObjectCache.Policy.SHARED)
+					objects.put(identifier, (T) cached);
+				else
+					objects.put(identifier, decoder.decode(new JsonTreeReader(
+							(JsonElement) cached)));
+			}
+			long stamp = cache != null ? cache.beginLoad() : 0;
+			for (Entry<String, String> entry : mJsonStorage.getAllJson(
+					uncached).entrySet()) {
+				String identifier = entry.getKey();
+				T object = isJsonText(entry.getValue()) ? decodeJson(
+						identifier, typeKey, entry.getValue(), decoder, cache,
+						stamp) : readIntern(identifier, typeKey, decoder);
+				if (object != null)
+					objects.put(identifier, object);
+			}
+			return objects;
+		} finally {
+			unlock(locks);
+			report(Operation.GET_ALL, null, clazz, start);
+		}
+	}
+
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		long start = System.nanoTime();
+		List<Lock> locks = lockForWrite(identifiers);
+		try {
+			for (String identifier : identifiers) {
+				dropIndexes(identifier);
+			}
+			try {
+				return mJsonStorage.removeAll(identifiers);
+			} finally {
+				for (String identifier : identifiers) {
+					resetListAppends(identifier);
+					invalidateCache(identifier);
+				}
+			}
+		} finally {
+			unlock(locks);
+			report(Operation.REMOVE_ALL, null, null, start);
+		}
+	}
+
+	/**
+	 * Returns the identifiers of all stored values, including the stored
+	 * indexes of collections. The caller has to close the iterator.
+	 */
+	public CloseableIterator<String> keys() throws IOException {
+		return mJsonStorage.keys();
+	}
+
+	/**
+	 * Returns the identifiers of the stored values which start with the given
+	 * prefix. The caller has to close the iterator.
+	 */
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException {
+		return mJsonStorage.keysWithPrefix(prefix);
+	}
+
+	/**
+	 * Returns the number of bytes the value takes in the storage, or -1 if
+	 * nothing is stored for the identifier.
+	 */
+	public long sizeOf(String identifier) throws IOException {
+		return mJsonStorage.sizeOf(identifier);
+	}
+
+	/**
+	 * Removes all values and keyed maps whose identifiers start with the
+	 * given prefix, together with their indexes, and returns the number of
+	 * removed values. The values listed when the removal starts are locked
+	 * like by removeAll.
+	 */
+	public int removeWithPrefix(String prefix) throws IOException {
+		long start = System.nanoTime();
+		List<String> identifiers = new ArrayList<String>();
+		CloseableIterator<String> keys = mJsonStorage.keysWithPrefix(prefix);
+		try {
+			while (keys.hasNext()) {
+				identifiers.add(keys.next());
+			}
+		} finally {
+			keys.close();
+		}
+		List<Lock> locks = lockForWrite(identifiers);
+		try {
+			return mJsonStorage.removeWithPrefix(prefix);
+		} finally {
+			synchronized (mListAppends) {
+				Iterator<String> appended = mListAppends.keySet().iterator();
+				while (appended.hasNext()) {
+					if (appended.next().startsWith(prefix))
+						appended.remove();
+				}
+			}
+			if (mCache != null)
+				mCache.invalidateWithPrefix(prefix);
+			unlock(locks);
+			report(Operation.REMOVE_WITH_PREFIX, prefix, null, start);
+		}
+	}
+
+	public <T> boolean fillCollection(String identifier, Class<T> clazz,
+			Collection<T> collection) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForRead(identifier);
+		try {
+			JsonReader jReader = openJsonReader(identifier);
+			if (jReader == null)
+				return false;
+			readCollection(jReader, clazz, collection);
+			return true;
+		} finally {
+			lock.unlock();
+			report(Operation.FILL, identifier, clazz, start);
+		}
+	}
+
+	public <T, X> boolean fillMap(String identifier, Class<T> classOfKeys,
+			Class<X> classOfValues, Map<T, X> map) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForRead(identifier);
+		try {
+			JsonReader jReader = openJsonReader(identifier);
+			if (jReader == null)
+				return false;
+			readMap(jReader, classOfKeys, classOfValues, map);
+			return true;
+		} finally {
+			lock.unlock();
+			report(Operation.FILL, identifier, classOfValues, start);
+		}
+	}
+
+	/**
+	 * Returns an iterator over the elements of the stored collection. The
+	 * iterator reads without holding the lock of the identifier, values
+	 * written meanwhile may or may not be seen, depending on the storage.
+	 */
+	public <T> CloseableIterator<T> iterate(String identifier,
+			Class<T> classOfElements) throws IOException {
+		JsonReader jReader = openJsonReader(identifier);
+		if (jReader == null)
+			return new EmptyIterator<T>();
+		return new JsonArrayIterator<T>(mGson, jReader, classOfElements);
+	}
+
+	public <T, X> CloseableIterator<Entry<T, X>> iterateMap(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues) throws IOException {
+		JsonReader jReader = openJsonReader(identifier);
+		if (jReader == null)
+			return new EmptyIterator<Entry<T, X>>();
+		return new JsonMapIterator<T, X>(mGson, jReader, classOfKeys,
+				classOfValues);
+	}
+
+	private <T> void readCollection(JsonReader jReader, Class<T> clazz,
+			Collection<T> collection) throws IOException {
+		JsonArrayIterator<T> iterator = new JsonArrayIterator<T>(mGson,
+				jReader, clazz);
+		try {
+			while (iterator.hasNext()) {
+				collection.add(iterator.next());
+			}
+		} catch (JsonIOException e) {
+			throw unwrapIOException(e);
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private <T, X> void readMap(JsonReader jReader, Class<T> classOfKeys,
+			Class<X> classOfValues, Map<T, X> map) throws IOException {
+		JsonMapIterator<T, X> iterator = new JsonMapIterator<T, X>(mGson,
+				jReader, classOfKeys, classOfValues);
+		try {
+			while (iterator.hasNext()) {
+				Entry<T, X> entry = iterator.next();
+				map.put(entry.getKey(), entry.getValue());
+			}
+		} catch (JsonIOException e) {
+			throw unwrapIOException(e);
+		} finally {
+			iterator.close();
+		}
+	}
+
+	private <T> Decoder<T> objectDecoder(final Class<T> clazz) {
+		return new Decoder<T>() {
+			@Override
+			public T decode(JsonReader jReader) throws IOException {
+				// lenient as in fromJson, which accepts primitives; the
+				// arrays appended to a list are merged
+				jReader.setLenient(true);
+				if (jReader.peek() == JsonToken.BEGIN_ARRAY)
+					return mGson.fromJson(readTree(jReader), clazz);
+				return mGson.fromJson(jReader, clazz);
+			}
+		};
+	}
+
+	/**
+	 * Decodes a value of a batch read and caches it like
+	 * {@link #readIntern(String, String, Decoder)}.
+	 */
+	private <T> T decodeJson(String identifier, String typeKey, String json,
+			Decoder<T> decoder, ObjectCache cache, long stamp)
+			throws IOException {
+		JsonReader jReader = new JsonReader(new StringReader(json));
+		try {
+			if (cache == null)
+				return decoder.decode(jReader);
+			T value;
+			Object cacheValue;
+			if (cache.getPolicy() == ObjectCache.Policy.SHARED) {
+				value = decoder.decode(jReader);
+				cacheValue = value;
+			} else {
+				JsonElement tree = readTree(jReader);
+				value = decoder.decode(new JsonTreeReader(tree));
+				cacheValue = tree;
+			}
+			cache.put(identifier, typeKey, cacheValue, json.length() * 2L,
+					stamp);
+			return value;
+		} finally {
+			jReader.close();
+		}
+	}
+
+	/**
+	 * Returns whether a value read by the text methods of the storage is
+	 * json, and not the tagged bytes of another codec or a packed array,
+	 * which storages return as they are or base64 encoded.
+	 */
+	private static boolean isJsonText(String value) {
+		if (value.length() == 0)
+			return false;
+		char c = value.charAt(0);
+		if (c < 0x20)
+			return c == '\t' || c == '\n' || c == '\r';
+		return !value.startsWith(AbstractJsonStorage.BINARY_PREFIX);
+	}
+
+	private <T> T read(String identifier, String typeKey, Decoder<T> decoder)
+			throws IOException {
+		long start = System.nanoTime();
+		T value = null;
+		try {
+			value = readIntern(identifier, typeKey, decoder);
+			return value;
+		} finally {
+			report(Operation.GET, identifier,
+					value != null ? value.getClass() : null, start);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T> T readIntern(String identifier, String typeKey,
+			Decoder<T> decoder) throws IOException {
+		Lock lock = lockForRead(identifier);
+		try {
+			ObjectCache cache = mCache;
+			if (cache == null) {
+				JsonReader jReader = openJsonReader(identifier);
+				if (jReader == null)
+					return null;
+				try {
+					return decoder.decode(jReader);
+				} finally {
+					jReader.close();
+				}
+			}
+
+			Object cached = cache.get(identifier, typeKey);
+			mMetrics.onCacheLookup(identifier, cached != null);
+			if (cached != null) {
+				if (cache.getPolicy() == ObjectCache.Policy.SHARED)
+					return (T) cached;
+				else
+					return decoder.decode(new JsonTreeReader(
+							(JsonElement) cached));
+			}
+
+			long stamp = cache.beginLoad();
+			InputStream in = mJsonStorage.openInputStream(identifier);
+			if (in == null)
+				return null;
+			CountingInputStream countingIn = new CountingInputStream(in);
+			JsonReader jReader = newJsonReader(countingIn);
+			try {
+				T value;
+				Object cacheValue;
+				if (cache.getPolicy() == ObjectCache.Policy.SHARED) {
+					value = decoder.decode(jReader);
+					cacheValue = value;
+				} else {
+					JsonElement tree = readTree(jReader);
+					value = decoder.decode(new JsonTreeReader(tree));
+					cacheValue = tree;
+				}
+				// twice the stored size roughly matches the overhead of the
+				// decoded representation
+				cache.put(identifier, typeKey, cacheValue,
+						countingIn.getCount() * 2, stamp);
+				return value;
+			} finally {
+				jReader.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Parses the value into a tree. The arrays appended to a list are merged
+	 * into the first one.
+	 */
+	private static JsonElement readTree(JsonReader jReader)
+			throws IOException {
+		JsonElement tree = new JsonParser().parse(jReader);
+		if (tree.isJsonArray()) {
+			while (JsonArrayIterator.peekSegment(jReader)
+					== JsonToken.BEGIN_ARRAY) {
+				tree.getAsJsonArray().addAll(
+						new JsonParser().parse(jReader).getAsJsonArray());
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Counts an append to the list and returns whether it is due for
+	 * compaction.
+	 */
+	private boolean countListAppend(String identifier) {
+		synchronized (mListAppends) {
+			Integer appends = mListAppends.get(identifier);
+			int count = appends != null ? appends + 1 : 1;
+			if (count < LIST_COMPACTION_INTERVAL) {
+				mListAppends.put(identifier, count);
+				return false;
+			}
+			mListAppends.remove(identifier);
+			return true;
+		}
+	}
+
+	private void resetListAppends(String identifier) {
+		synchronized (mListAppends) {
+			mListAppends.remove(identifier);
+		}
+	}
+
+	private Lock lockForRead(String identifier) {
+		Lock lock = mLocks.get(identifier).readLock();
+		lock.lock();
+		return lock;
+	}
+
+	private List<Lock> lockForRead(Collection<String> identifiers) {
+		List<Lock> locks = mLocks.getReadLocks(identifiers);
+		for (Lock lock : locks) {
+			lock.lock();
+		}
+		return locks;
+	}
+
+	private Lock lockForWrite(String identifier) {
+		Lock lock = mLocks.get(identifier).writeLock();
+		lock.lock();
+		return lock;
+	}
+
+	private List<Lock> lockForWrite(Collection<String> identifiers) {
+		List<Lock> locks = mLocks.getWriteLocks(identifiers);
+		for (Lock lock : locks) {
+			lock.lock();
+		}
+		return locks;
+	}
+
+	private static void unlock(List<Lock> locks) {
+		for (int i = locks.size() - 1; i >= 0; i--) {
+			locks.get(i).unlock();
+		}
+	}
+
+	private void report(Operation operation, String identifier,
+			Class<?> type, long start) {
+		mMetrics.onOperation(operation, identifier, type, System.nanoTime()
+				- start);
+	}
+
+	private boolean isCacheShared() {
+		return mCache != null
+				&& mCache.getPolicy() == ObjectCache.Policy.SHARED;
+	}
+
+	private void invalidateCache(String identifier) {
+		if (mCache != null)
+			mCache.invalidate(identifier);
+	}
+
+	private <T> boolean storeIntern(String identifier, T object,
+			boolean overwrite) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			if (overwrite || !contains(identifier)) {
+				Set<String> fields = getIndexedFields(identifier);
+				if (!fields.isEmpty() && object instanceof Collection)
+					storeIndexed(identifier, (Collection<?>) object, fields);
+				else {
+					dropIndexes(identifier);
+					writeValue(identifier, object);
+				}
+				return true;
+			} else {
+				return false;
+			}
+		} finally {
+			lock.unlock();
+			report(Operation.STORE, identifier, object.getClass(), start);
+		}
+	}
+
+	private void writeValue(String identifier, Object object)
+			throws IOException {
+		OutputStream out = mJsonStorage.openOutputStream(identifier);
+		boolean written = false;
+		try {
+			JsonWriter jWriter = newJsonWriter(out);
+			mGson.toJson(object, object.getClass(), jWriter);
+			jWriter.close();
+			written = true;
+		} finally {
+			if (!written)
+				AbstractJsonStorage.abort(out);
+			invalidateCache(identifier);
+		}
+	}
+
+	/**
+	 * Writes the collection element by element and indexes the elements
+	 * while they are written. The old indexes are removed first, so an
+	 * interrupted store leaves no stale index behind.
+	 */
+	private void storeIndexed(String identifier, Collection<?> objects,
+			Set<String> fields) throws IOException {
+		dropIndexes(identifier);
+		List<FieldIndex> indexes = new ArrayList<FieldIndex>();
+		for (String field : fields) {
+			indexes.add(new FieldIndex(field));
+		}
+		OutputStream out = mJsonStorage.openOutputStream(identifier);
+		boolean written = false;
+		try {
+			JsonWriter jWriter = newJsonWriter(out);
+			jWriter.beginArray();
+			for (Object object : objects) {
+				JsonElement tree = mGson.toJsonTree(object);
+				for (FieldIndex index : indexes) {
+					index.add(tree);
+				}
+				mGson.toJson(tree, jWriter);
+			}
+			jWriter.endArray();
+			jWriter.close();
+			written = true;
+		} finally {
+			if (!written)
+				AbstractJsonStorage.abort(out);
+			invalidateCache(identifier);
+		}
+		storeIndexes(identifier, indexes);
+	}
+
+	/**
+	 * Indexes the stored collection and returns the elements whose field has
+	 * the given value. The index is stored if the field is declared.
+	 */
+	private <T> List<T> buildIndex(String identifier, String field,
+			JsonElement value, Class<T> classOfElements) throws IOException {
+		List<T> found = new ArrayList<T>();
+		JsonReader jReader = openJsonReader(identifier);
+		if (jReader == null)
+			return found;
+		FieldIndex index = new FieldIndex(field);
+		JsonArrayIterator<JsonElement> iterator =
+				new JsonArrayIterator<JsonElement>(mGson, jReader,
+						JsonElement.class);
+		try {
+			while (iterator.hasNext()) {
+				JsonElement element = iterator.next();
+				index.add(element);
+				if (value != null && index.matches(element, value))
+					found.add(mGson.fromJson(element, classOfElements));
+			}
+		} catch (JsonIOException e) {
+			throw unwrapIOException(e);
+		} finally {
+			iterator.close();
+		}
+		if (getIndexedFields(identifier).contains(field))
+			storeIndexes(identifier, Collections.singletonList(index));
+		return found;
+	}
+
+	private Set<String> getIndexedFields(String identifier) {
+		synchronized (mIndexedFields) {
+			Set<String> fields = mIndexedFields.get(identifier);
+			return fields != null ? new HashSet<String>(fields) : Collections
+					.<String> emptySet();
+		}
+	}
+
+	private static String getIndexIdentifier(String identifier, String field) {
+		return identifier + INDEX_SUFFIX + field;
+	}
+
+	/**
+	 * Returns the stored index of the field, or null if there is none or it
+	 * is stale.
+	 */
+	private FieldIndex readIndex(String identifier, String field)
+			throws IOException {
+		String json = mJsonStorage.getJson(getIndexIdentifier(identifier,
+				field));
+		if (json == null)
+			return null;
+		FieldIndex index;
+		try {
+			index = FieldIndex.fromJson(json);
+		} catch (JsonParseException e) {
+			// a damaged index is rebuilt
+			return null;
+		}
+		return index.getStamp() == mJsonStorage.sizeOf(identifier) ? index
+				: null;
+	}
+
+	/**
+	 * Returns the stored indexes of the declared fields. Indexes which are
+	 * not stored are rebuilt by the next store or findBy.
+	 */
+	private List<FieldIndex> readIndexes(String identifier)
+			throws IOException {
+		List<FieldIndex> indexes = new ArrayList<FieldIndex>();
+		for (String field : getIndexedFields(identifier)) {
+			FieldIndex index = readIndex(identifier, field);
+			if (index != null)
+				indexes.add(index);
+		}
+		return indexes;
+	}
+
+	/**
+	 * Stores the indexes, stamped with the current size of the collection.
+	 */
+	private void storeIndexes(String identifier, List<FieldIndex> indexes)
+			throws IOException {
+		if (indexes.isEmpty())
+			return;
+		long stamp = mJsonStorage.sizeOf(identifier);
+		for (FieldIndex index : indexes) {
+			index.setStamp(stamp);
+			mJsonStorage.storeJson(
+					getIndexIdentifier(identifier, index.getField()),
+					index.toJson());
+		}
+	}
+
+	private void dropIndexes(String identifier) throws IOException {
+		for (String field : getIndexedFields(identifier)) {
+			mJsonStorage.remove(getIndexIdentifier(identifier, field));
+		}
+	}
+
+	private <T> boolean storeCollectionIntern(String identifier,
+			Collection<T> objects, boolean overwrite) throws IOException {
+		// currently the standard store method is used
+		return storeIntern(identifier, objects, overwrite);
+	}
+
+	private <T, X> boolean storeMapIntern(String identifier,
+			Map<T, X> mapEntries, boolean overwrite) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			if (overwrite || !contains(identifier)) {
+				dropIndexes(identifier);
+				OutputStream out = mJsonStorage.openOutputStream(identifier);
+				boolean written = false;
+				try {
+					JsonWriter jWriter = newJsonWriter(out);
+					if (hasSimpleKeys(mapEntries))
+						writeMapObject(jWriter, mapEntries);
+					else
+						writeMapEntries(jWriter, mapEntries);
+					jWriter.close();
+					written = true;
+				} finally {
+					if (!written)
+						AbstractJsonStorage.abort(out);
+					invalidateCache(identifier);
+				}
+				return true;
+			} else
+				return false;
+		} finally {
+			lock.unlock();
+			report(Operation.STORE, identifier, mapEntries.getClass(), start);
+		}
+	}
+
+	/**
+	 * Writes the map as one object whose names are the keys.
+	 */
+	private <T, X> void writeMapObject(JsonWriter jWriter,
+			Map<T, X> mapEntries) throws IOException {
+		jWriter.beginObject();
+		for (Entry<T, X> entry : mapEntries.entrySet()) {
+			jWriter.name(toName(entry.getKey()));
+			mGson.toJson(entry.getValue(), entry.getValue().getClass(),
+					jWriter);
+		}
+		jWriter.endObject();
+	}
+
+	/**
+	 * Writes the map as an array of objects with a key and a value, which
+	 * supports keys of any type.
+	 */
+	private <T, X> void writeMapEntries(JsonWriter jWriter,
+			Map<T, X> mapEntries) throws IOException {
+		jWriter.beginArray();
+		for (Entry<T, X> entry : mapEntries.entrySet()) {
+			jWriter.beginObject();
+			jWriter.name("key");
+			mGson.toJson(entry.getKey(), entry.getKey().getClass(), jWriter);
+			jWriter.name("value");
+			mGson.toJson(entry.getValue(), entry.getValue().getClass(),
+					jWriter);
+			jWriter.endObject();
+		}
+		jWriter.endArray();
+	}
+
+	private static boolean hasSimpleKeys(Map<?, ?> map) {
+		for (Object key : map.keySet()) {
+			if (key == null || !isSimpleKey(key.getClass()))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isSimpleKey(Class<?> classOfKey) {
+		return classOfKey == String.class
+				|| Number.class.isAssignableFrom(classOfKey)
+				|| classOfKey == Boolean.class
+				|| classOfKey == Character.class
+				|| Enum.class.isAssignableFrom(classOfKey);
+	}
+
+	/**
+	 * Returns the name of a map key. Simple keys are named by their value,
+	 * other keys by their json.
+	 */
+	private String toName(Object key) {
+		if (key instanceof String)
+			return (String) key;
+		if (key instanceof Enum)
+			// respects the serialized names of enum constants
+			return mGson.toJsonTree(key).getAsString();
+		if (isSimpleKey(key.getClass()))
+			return String.valueOf(key);
+		return mGson.toJson(key);
+	}
+
+	private <T> T fromName(String name, Class<T> classOfKeys) {
+		if (classOfKeys == String.class)
+			return classOfKeys.cast(name);
+		if (isSimpleKey(classOfKeys))
+			return mGson.fromJson(new JsonPrimitive(name), classOfKeys);
+		return mGson.fromJson(name, classOfKeys);
+	}
+
+	private boolean storeArray(String identifier, Object array,
+			boolean overwrite) throws IOException {
+		long start = System.nanoTime();
+		Lock lock = lockForWrite(identifier);
+		try {
+			if (overwrite || !contains(identifier)) {
+				dropIndexes(identifier);
+				OutputStream out = mJsonStorage.openOutputStream(identifier);
+				boolean written = false;
+				try {
+					PackedArrays.write(out, array);
+					out.close();
+					written = true;
+				} finally {
+					if (!written)
+						AbstractJsonStorage.abort(out);
+					invalidateCache(identifier);
+				}
+				return true;
+			} else {
+				return false;
+			}
+		} finally {
+			lock.unlock();
+			report(Operation.STORE, identifier, array.getClass(), start);
+		}
+	}
+
+	private Object readArray(String identifier, int type) throws IOException {
+		long start = System.nanoTime();
+		Object array = null;
+		try {
+			array = readArrayIntern(identifier, type);
+			return array;
+		} finally {
+			report(Operation.GET, identifier,
+					array != null ? array.getClass() : null, start);
+		}
+	}
+
+	private Object readArrayIntern(String identifier, int type)
+			throws IOException {
+		Lock lock = lockForRead(identifier);
+		try {
+			InputStream in = mJsonStorage.openInputStream(identifier);
+			if (in == null)
+				return null;
+			InputStream bufferedIn = new BufferedInputStream(in);
+			try {
+				bufferedIn.mark(1);
+				if (bufferedIn.read() == PackedArrays.TAG)
+					return PackedArrays.read(bufferedIn, type);
+				bufferedIn.reset();
+				return PackedArrays.read(newJsonReader(bufferedIn), type);
+			} finally {
+				bufferedIn.close();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a writer of the current codec for the stream of a value. The
+	 * value is committed by closing the writer, a failed write aborts the
+	 * stream of the storage instead.
+	 */
+	private JsonWriter newJsonWriter(OutputStream out) throws IOException {
+		IStoreCodec codec = mCodec;
+		OutputStream bufferedOut = new BufferedOutputStream(out);
+		if (codec.getTag() != IStoreCodec.NO_TAG)
+			bufferedOut.write(codec.getTag());
+		return codec.newWriter(bufferedOut);
+	}
+
+	/**
+	 * Returns the codec which wrote the stored list or null if nothing is
+	 * stored. Fails if the stored value is not a list, as an array appended
+	 * to it would make it unreadable.
+	 */
+	private IStoreCodec getCodecOfList(String identifier) throws IOException {
+		InputStream in = mJsonStorage.openInputStream(identifier);
+		if (in == null)
+			return null;
+		InputStream bufferedIn = new BufferedInputStream(in);
+		try {
+			bufferedIn.mark(1);
+			int tag = bufferedIn.read();
+			if (tag == PackedArrays.TAG)
+				throw new IOException(identifier
+						+ " is a primitive array, not a list");
+			IStoreCodec codec = tag != -1 ? mCodecs.get(tag) : null;
+			if (codec == null) {
+				bufferedIn.reset();
+				codec = JSON_CODEC;
+			}
+			// lenient, so a scalar is reported below and not as malformed
+			JsonReader jReader = codec.newReader(bufferedIn);
+			jReader.setLenient(true);
+			JsonToken token = jReader.peek();
+			if (token != JsonToken.BEGIN_ARRAY
+					&& token != JsonToken.END_DOCUMENT)
+				throw new IOException(identifier + " is not a list");
+			return codec;
+		} finally {
+			bufferedIn.close();
+		}
+	}
+
+	private JsonReader openJsonReader(String identifier) throws IOException {
+		InputStream in = mJsonStorage.openInputStream(identifier);
+		return in != null ? newJsonReader(in) : null;
+	}
+
+	/**
+	 * Picks the codec by the tag of the value. Untagged values are json.
+	 */
+	private JsonReader newJsonReader(InputStream in) throws IOException {
+		InputStream bufferedIn = new BufferedInputStream(in);
+		try {
+			bufferedIn.mark(1);
+			int tag = bufferedIn.read();
+			IStoreCodec codec = tag != -1 ? mCodecs.get(tag) : null;
+			if (codec == null) {
+				bufferedIn.reset();
+				codec = JSON_CODEC;
+			}
+			return codec.newReader(bufferedIn);
+		} catch (IOException e) {
+			bufferedIn.close();
+			throw e;
+		}
+	}
+
+	private static IOException unwrapIOException(JsonIOException e) {
+		if (e.getCause() instanceof IOException)
+			return (IOException) e.getCause();
+		return new IOException(e);
+	}
+
+	public StoreFuture<Boolean> removeAsync(String identifier) {
+		return removeAsync(identifier, null);
+	}
+
+	public StoreFuture<Boolean> removeAsync(final String identifier,
+			Executor executor) {
+		return submit(identifier, false, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return remove(identifier);
+			}
+		});
+	}
+
+	public <T> StoreFuture<Boolean> storeAsync(String identifier, T object) {
+		return storeAsync(identifier, object, null);
+	}
+
+	public <T> StoreFuture<Boolean> storeAsync(final String identifier,
+			final T object, Executor executor) {
+		return submit(identifier, false, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return store(identifier, object);
+			}
+		});
+	}
+
+	public <T> StoreFuture<T> getAsync(String identifier, Class<T> clazz) {
+		return getAsync(identifier, clazz, null);
+	}
+
+	public <T> StoreFuture<T> getAsync(final String identifier,
+			final Class<T> clazz, Executor executor) {
+		return submit(identifier, true, executor, new Callable<T>() {
+			@Override
+			public T call() throws IOException {
+				return get(identifier, clazz);
+			}
+		});
+	}
+
+	public <T> StoreFuture<List<T>> getListAsync(String identifier,
+			Class<T> classOfElements) {
+		return getListAsync(identifier, classOfElements, null);
+	}
+
+	public <T> StoreFuture<List<T>> getListAsync(final String identifier,
+			final Class<T> classOfElements, Executor executor) {
+		return submit(identifier, true, executor, new Callable<List<T>>() {
+			@Override
+			public List<T> call() throws IOException {
+				return getList(identifier, classOfElements);
+			}
+		});
+	}
+
+	public <T> StoreFuture<Boolean> storeListAsync(String identifier,
+			List<T> objects) {
+		return storeListAsync(identifier, objects, null);
+	}
+
+	public <T> StoreFuture<Boolean> storeListAsync(final String identifier,
+			final List<T> objects, Executor executor) {
+		return submit(identifier, false, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return storeList(identifier, objects);
+			}
+		});
+	}
+
+	public <T> StoreFuture<Set<T>> getSetAsync(String identifier,
+			Class<T> classOfElements) {
+		return getSetAsync(identifier, classOfElements, null);
+	}
+
+	public <T> StoreFuture<Set<T>> getSetAsync(final String identifier,
+			final Class<T> classOfElements, Executor executor) {
+		return submit(identifier, true, executor, new Callable<Set<T>>() {
+			@Override
+			public Set<T> call() throws IOException {
+				return getSet(identifier, classOfElements);
+			}
+		});
+	}
+
+	public <T> StoreFuture<Boolean> storeSetAsync(String identifier,
+			Set<T> objects) {
+		return storeSetAsync(identifier, objects, null);
+	}
+
+	public <T> StoreFuture<Boolean> storeSetAsync(final String identifier,
+			final Set<T> objects, Executor executor) {
+		return submit(identifier, false, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return storeSet(identifier, objects);
+			}
+		});
+	}
+
+	public <T, X> StoreFuture<Map<T, X>> getMapAsync(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues) {
+		return getMapAsync(identifier, classOfKeys, classOfValues, null);
+	}
+
+	public <T, X> StoreFuture<Map<T, X>> getMapAsync(final String identifier,
+			final Class<T> classOfKeys, final Class<X> classOfValues,
+			Executor executor) {
+		return submit(identifier, true, executor, new Callable<Map<T, X>>() {
+			@Override
+			public Map<T, X> call() throws IOException {
+				return getMap(identifier, classOfKeys, classOfValues);
+			}
+		});
+	}
+
+	public <T, X> StoreFuture<Boolean> storeMapAsync(String identifier,
+			Map<T, X> mapEntries) {
+		return storeMapAsync(identifier, mapEntries, null);
+	}
+
+	public <T, X> StoreFuture<Boolean> storeMapAsync(final String identifier,
+			final Map<T, X> mapEntries, Executor executor) {
+		return submit(identifier, false, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return storeMap(identifier, mapEntries);
+			}
+		});
+	}
+
+	public <T> StoreFuture<Boolean> fillCollectionAsync(String identifier,
+			Class<T> clazz, Collection<T> collection) {
+		return fillCollectionAsync(identifier, clazz, collection, null);
+	}
+
+	public <T> StoreFuture<Boolean> fillCollectionAsync(final String identifier,
+			final Class<T> clazz, final Collection<T> collection,
+			Executor executor) {
+		return submit(identifier, true, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return fillCollection(identifier, clazz, collection);
+			}
+		});
+	}
+
+	public <T, X> StoreFuture<Boolean> fillMapAsync(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues, Map<T, X> map) {
+		return fillMapAsync(identifier, classOfKeys, classOfValues, map, null);
+	}
+
+	public <T, X> StoreFuture<Boolean> fillMapAsync(final String identifier,
+			final Class<T> classOfKeys, final Class<X> classOfValues,
+			final Map<T, X> map, Executor executor) {
+		return submit(identifier, true, executor, new Callable<Boolean>() {
+			@Override
+			public Boolean call() throws IOException {
+				return fillMap(identifier, classOfKeys, classOfValues, map);
+			}
+		});
+	}
+
+	/**
+	 * Runs the operation on the given executor, or on the scheduler of this
+	 * store if executor is null. The future fails if the operation is
+	 * rejected or the task fails outside of the operation.
+	 */
+	private <T> StoreFuture<T> submit(final String identifier,
+			final boolean read, Executor executor,
+			final Callable<T> operation) {
+		final StoreFuture<T> future = new StoreFuture<T>();
+		final long queued = System.nanoTime();
+		Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mMetrics.onQueueWait(identifier, read, System.nanoTime()
+							- queued);
+					future.run(operation);
+				} catch (Throwable e) {
+					future.fail(e);
+				}
+			}
+		};
+		try {
+			if (executor != null)
+				executor.execute(task);
+			else if (read)
+				getScheduler().executeRead(identifier, task);
+			else
+				getScheduler().executeWrite(identifier, task);
+		} catch (RejectedExecutionException e) {
+			future.fail(e);
+		}
+		return future;
+	}
+
+}
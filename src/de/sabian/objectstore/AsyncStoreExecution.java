@@ -15,13 +15,15 @@
  */
 package de.sabian.objectstore;
 
-import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
-import android.os.AsyncTask;
+import android.util.Log;
 
 public final class AsyncStoreExecution {
 
@@ -41,6 +43,18 @@ public final class AsyncStoreExecution {
 		public void onRemoved(String identifier, boolean removed);
 	}
 
+	/**
+	 * Can be implemented by a callback in addition to its callback interface.
+	 * A failed operation is then passed to onError instead of calling the
+	 * callback with a fallback result.
+	 */
+	public static interface ErrorCallback {
+		public void onError(String identifier, Throwable error);
+	}
+
+	private static final String TAG = "ObjectStore";
+	private static final Executor MAIN_THREAD = new MainThreadExecutor();
+
 	private ObjectStoreRaw mObjectStore;
 
 	protected AsyncStoreExecution(ObjectStoreRaw parentStore) {
@@ -48,240 +62,215 @@ public final class AsyncStoreExecution {
 	}
 
 	public void remove(final String identifier, final RemoveCallback callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.remove(identifier);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
+		StoreFuture<Boolean> future = mObjectStore.removeAsync(identifier);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onRemoved(identifier, resultOf(future, false));
 				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onRemoved(identifier, result);
-				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void store(final String identifier, final T object,
 			final StoreCallback<T> callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.store(identifier, object);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
-				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onStored(identifier, object, result);
+		StoreFuture<Boolean> future = mObjectStore.storeAsync(identifier,
+				object);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onStored(identifier, object, resultOf(future,
+								false));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void get(final String identifier, final Class<T> clazz,
 			final GetCallback<T> callback) {
-		new AsyncTask<Void, Void, T>() {
-			@Override
-			protected T doInBackground(Void... params) {
-				try {
-					return mObjectStore.get(identifier, clazz);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return null;
+		StoreFuture<T> future = mObjectStore.getAsync(identifier, clazz);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<T>() {
+				@Override
+				public void onComplete(StoreFuture<T> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onGot(identifier, resultOf(future, (T) null));
 				}
-			}
-
-			protected void onPostExecute(T result) {
-				if (callback != null) {
-					callback.onGot(identifier, result);
-				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void getList(final String identifier,
-			final Class<T> classOfElements, final GetCallback<List<T>> callback) {
-		new AsyncTask<Void, Void, List<T>>() {
-			@Override
-			protected List<T> doInBackground(Void... params) {
-				try {
-					return mObjectStore.getList(identifier, classOfElements);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return null;
-				}
-			}
-
-			protected void onPostExecute(List<T> result) {
-				if (callback != null) {
-					callback.onGot(identifier, result);
+			final Class<T> classOfElements,
+			final GetCallback<List<T>> callback) {
+		StoreFuture<List<T>> future = mObjectStore.getListAsync(identifier,
+				classOfElements);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<List<T>>() {
+				@Override
+				public void onComplete(StoreFuture<List<T>> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onGot(identifier, resultOf(future,
+								(List<T>) null));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void storeList(final String identifier, final List<T> objects,
 			final StoreCallback<List<T>> callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.storeList(identifier, objects);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
+		StoreFuture<Boolean> future = mObjectStore.storeListAsync(identifier,
+				objects);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onStored(identifier, objects, resultOf(future,
+								false));
 				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onStored(identifier, objects, result);
-				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void getSet(final String identifier,
-			final Class<T> classOfElements, final GetCallback<Set<T>> callback) {
-		new AsyncTask<Void, Void, Set<T>>() {
-			@Override
-			protected Set<T> doInBackground(Void... params) {
-				try {
-					return mObjectStore.getSet(identifier, classOfElements);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return null;
-				}
-			}
-
-			protected void onPostExecute(Set<T> result) {
-				if (callback != null) {
-					callback.onGot(identifier, result);
+			final Class<T> classOfElements,
+			final GetCallback<Set<T>> callback) {
+		StoreFuture<Set<T>> future = mObjectStore.getSetAsync(identifier,
+				classOfElements);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Set<T>>() {
+				@Override
+				public void onComplete(StoreFuture<Set<T>> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onGot(identifier, resultOf(future, (Set<T>) null));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void storeSet(final String identifier, final Set<T> objects,
 			final StoreCallback<Set<T>> callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.storeSet(identifier, objects);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
-				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onStored(identifier, objects, result);
+		StoreFuture<Boolean> future = mObjectStore.storeSetAsync(identifier,
+				objects);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onStored(identifier, objects, resultOf(future,
+								false));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T, X> void getMap(final String identifier,
 			final Class<T> classOfKeys, final Class<X> classOfValues,
 			final GetCallback<Map<T, X>> callback) {
-		new AsyncTask<Void, Void, Map<T, X>>() {
-			@Override
-			protected Map<T, X> doInBackground(Void... params) {
-				try {
-					return mObjectStore.getMap(identifier, classOfKeys,
-							classOfValues);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return null;
+		StoreFuture<Map<T, X>> future = mObjectStore.getMapAsync(identifier,
+				classOfKeys, classOfValues);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Map<T, X>>() {
+				@Override
+				public void onComplete(StoreFuture<Map<T, X>> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onGot(identifier, resultOf(future,
+								(Map<T, X>) null));
 				}
-			}
-
-			protected void onPostExecute(Map<T, X> result) {
-				if (callback != null) {
-					callback.onGot(identifier, result);
-				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T, X> void storeMap(final String identifier,
-			final Map<T, X> mapEntries, final StoreCallback<Map<T, X>> callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.storeMap(identifier, mapEntries);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
-				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onStored(identifier, mapEntries, result);
+			final Map<T, X> mapEntries,
+			final StoreCallback<Map<T, X>> callback) {
+		StoreFuture<Boolean> future = mObjectStore.storeMapAsync(identifier,
+				mapEntries);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onStored(identifier, mapEntries, resultOf(future,
+								false));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T> void fillCollection(final String identifier,
 			final Class<T> clazz, final Collection<T> collection,
 			final FillCallback<Collection<T>> callback) {
-
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.fillCollection(identifier, clazz,
-							collection);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
-				}
-			}
-
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onFilled(identifier, collection, result);
+		StoreFuture<Boolean> future = mObjectStore.fillCollectionAsync(
+				identifier, clazz, collection);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onFilled(identifier, collection, resultOf(future,
+								false));
 				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+			}, MAIN_THREAD);
+		}
 	}
 
 	public <T, X> void fillMap(final String identifier,
 			final Class<T> classOfKeys, final Class<X> classOfValues,
 			final Map<T, X> map, final FillCallback<Map<T, X>> callback) {
-		new AsyncTask<Void, Void, Boolean>() {
-			@Override
-			protected Boolean doInBackground(Void... params) {
-				try {
-					return mObjectStore.fillMap(identifier, classOfKeys,
-							classOfValues, map);
-				} catch (IOException e) {
-					e.printStackTrace();
-					return false;
+		StoreFuture<Boolean> future = mObjectStore.fillMapAsync(identifier,
+				classOfKeys, classOfValues, map);
+		if (callback != null) {
+			future.addListener(new StoreFuture.Listener<Boolean>() {
+				@Override
+				public void onComplete(StoreFuture<Boolean> future) {
+					if (!deliverError(identifier, future, callback))
+						callback.onFilled(identifier, map, resultOf(future, false));
 				}
-			}
+			}, MAIN_THREAD);
+		}
+	}
 
-			protected void onPostExecute(Boolean result) {
-				if (callback != null) {
-					callback.onFilled(identifier, map, result);
-				}
-			}
-		}.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+	/**
+	 * Passes the error of a failed operation to the callback if it is an
+	 * {@link ErrorCallback}, returns false if it is not or nothing failed.
+	 */
+	private static boolean deliverError(String identifier,
+			StoreFuture<?> future, Object callback) {
+		Throwable error = future.getError();
+		if (error == null || !(callback instanceof ErrorCallback))
+			return false;
+		((ErrorCallback) callback).onError(identifier, error);
+		return true;
+	}
+
+	/**
+	 * Returns the result of the completed operation, or the fallback if it
+	 * was cancelled or failed with an IOException. Other errors are thrown,
+	 * on the main thread, instead of being hidden behind the fallback.
+	 */
+	private static <R> R resultOf(StoreFuture<R> future, R fallback) {
+		try {
+			return future.get();
+		} catch (ExecutionException e) {
+			Throwable error = e.getCause();
+			if (error instanceof RuntimeException)
+				throw (RuntimeException) error;
+			if (error instanceof Error)
+				throw (Error) error;
+			Log.w(TAG, "Operation failed, returning " + fallback, error);
+			return fallback;
+		} catch (CancellationException e) {
+			return fallback;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return fallback;
+		}
 	}
 
 }
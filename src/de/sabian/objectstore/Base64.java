@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+/**
+ * Encodes bytes as base64 with the standard alphabet, padded and without
+ * line breaks, so the storages do not depend on the android classes.
+ */
+final class Base64 {
+
+	private static final char[] ALPHABET =
+			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+					.toCharArray();
+	private static final int[] VALUES = new int[128];
+
+	static {
+		for (int i = 0; i < VALUES.length; i++) {
+			VALUES[i] = -1;
+		}
+		for (int i = 0; i < ALPHABET.length; i++) {
+			VALUES[ALPHABET[i]] = i;
+		}
+	}
+
+	private Base64() {
+	}
+
+	static String encode(byte[] bytes) {
+		char[] chars = new char[(bytes.length + 2) / 3 * 4];
+		int c = 0;
+		for (int i = 0; i < bytes.length; i += 3) {
+			int remaining = bytes.length - i;
+			int bits = (bytes[i] & 0xFF) << 16;
+			if (remaining > 1)
+				bits |= (bytes[i + 1] & 0xFF) << 8;
+			if (remaining > 2)
+				bits |= bytes[i + 2] & 0xFF;
+			chars[c++] = ALPHABET[bits >>> 18];
+			chars[c++] = ALPHABET[(bits >>> 12) & 0x3F];
+			chars[c++] = remaining > 1 ? ALPHABET[(bits >>> 6) & 0x3F] : '=';
+			chars[c++] = remaining > 2 ? ALPHABET[bits & 0x3F] : '=';
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * Decodes base64 text, with or without padding.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the text is not base64
+	 */
+	static byte[] decode(String text) {
+		int length = text.length();
+		while (length > 0 && text.charAt(length - 1) == '=') {
+			length--;
+		}
+		if (length % 4 == 1)
+			throw new IllegalArgumentException("Invalid base64 length");
+		byte[] bytes = new byte[length * 3 / 4];
+		int b = 0;
+		int bits = 0;
+		int count = 0;
+		for (int i = 0; i < length; i++) {
+			char ch = text.charAt(i);
+			int value = ch < VALUES.length ? VALUES[ch] : -1;
+			if (value == -1)
+				throw new IllegalArgumentException("Invalid base64 character "
+						+ ch);
+			bits = (bits << 6) | value;
+			if (++count == 4) {
+				bytes[b++] = (byte) (bits >> 16);
+				bytes[b++] = (byte) (bits >> 8);
+				bytes[b++] = (byte) bits;
+				bits = 0;
+				count = 0;
+			}
+		}
+		if (count == 3) {
+			bytes[b++] = (byte) (bits >> 10);
+			bytes[b++] = (byte) (bits >> 2);
+		} else if (count == 2) {
+			bytes[b++] = (byte) (bits >> 4);
+		}
+		return bytes;
+	}
+
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Stores values in a compact binary form of json. Every token is a type byte,
+ * followed by
+ * <ul>
+ * <li>a zigzag encoded varint for integral numbers,</li>
+ * <li>eight bytes for other doubles,</li>
+ * <li>a varint length and the UTF-8 bytes for strings, names and numbers
+ * which do not fit into a double or long.</li>
+ * </ul>
+ * Each distinct name is written once per value, repeated names refer to it by
+ * its index. Numbers and names are therefore neither formatted nor parsed as
+ * text.
+ */
+public class BinaryCodec implements IStoreCodec {
+
+	public static final int TAG = 0x02;
+
+	static final int TYPE_NULL = 0x00;
+	static final int TYPE_FALSE = 0x01;
+	static final int TYPE_TRUE = 0x02;
+	static final int TYPE_LONG = 0x03;
+	static final int TYPE_DOUBLE = 0x04;
+	static final int TYPE_NUMBER = 0x05;
+	static final int TYPE_STRING = 0x06;
+	static final int TYPE_NAME = 0x07;
+	static final int TYPE_NAME_REFERENCE = 0x08;
+	static final int TYPE_BEGIN_ARRAY = 0x09;
+	static final int TYPE_END_ARRAY = 0x0A;
+	static final int TYPE_BEGIN_OBJECT = 0x0B;
+	static final int TYPE_END_OBJECT = 0x0C;
+
+	@Override
+	public int getTag() {
+		return TAG;
+	}
+
+	@Override
+	public JsonWriter newWriter(OutputStream out) {
+		return new BinaryJsonWriter(out);
+	}
+
+	@Override
+	public JsonReader newReader(InputStream in) {
+		return new BinaryJsonReader(in);
+	}
+
+}
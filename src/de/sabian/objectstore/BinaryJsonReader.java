@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Reads the format of {@link BinaryCodec}. All reading methods of JsonReader
+ * are overridden, including those which Gson versions newer than the pinned
+ * one add.
+ * <p>
+ * Gson reads map keys by promoting the peeked name of a JsonReader to a string
+ * value, which only changes package private state of JsonReader. The super
+ * class is therefore kept in front of a name of an endless dummy object. Once
+ * that name was promoted, the current name of this reader is read as a string
+ * value as well.
+ */
+class BinaryJsonReader extends JsonReader {
+
+	/**
+	 * Endless content of the dummy object: {"x":0,"x":0,...
+	 */
+	private static class DummyObjectReader extends Reader {
+		private static final String ENTRY = "\"x\":0,";
+		private int mPosition = -1;
+
+		@Override
+		public int read(char[] buffer, int offset, int count) {
+			for (int i = 0; i < count; i++) {
+				buffer[offset + i] = mPosition < 0 ? '{' : ENTRY
+						.charAt(mPosition % ENTRY.length());
+				mPosition = (mPosition + 1) % ENTRY.length();
+			}
+			return count;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int PEEKED_NONE = -2;
+	private static final int PEEKED_EOF = -1;
+
+	private InputStream mIn;
+	// buffered here, as reading single bytes from a BufferedInputStream
+	// synchronizes on every call
+	private byte[] mBuffer = new byte[8192];
+	private int mPosition;
+	private int mLimit;
+	private List<String> mNames;
+	private int mPeeked = PEEKED_NONE;
+	private boolean mNamePromoted;
+	private int mDepth;
+
+	public BinaryJsonReader(InputStream in) {
+		super(new DummyObjectReader());
+		this.mIn = in;
+		this.mNames = new ArrayList<String>();
+		try {
+			super.beginObject();
+			super.peek();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public void beginArray() throws IOException {
+		expect(BinaryCodec.TYPE_BEGIN_ARRAY, JsonToken.BEGIN_ARRAY);
+		beginContainer();
+	}
+
+	@Override
+	public void endArray() throws IOException {
+		expect(BinaryCodec.TYPE_END_ARRAY, JsonToken.END_ARRAY);
+		mDepth--;
+	}
+
+	@Override
+	public void beginObject() throws IOException {
+		expect(BinaryCodec.TYPE_BEGIN_OBJECT, JsonToken.BEGIN_OBJECT);
+		beginContainer();
+	}
+
+	@Override
+	public void endObject() throws IOException {
+		expect(BinaryCodec.TYPE_END_OBJECT, JsonToken.END_OBJECT);
+		mDepth--;
+	}
+
+	@Override
+	public boolean hasNext() throws IOException {
+		int type = peekType();
+		return type != BinaryCodec.TYPE_END_ARRAY
+				&& type != BinaryCodec.TYPE_END_OBJECT && type != PEEKED_EOF;
+	}
+
+	@Override
+	public JsonToken peek() throws IOException {
+		if (isNamePromoted())
+			return JsonToken.STRING;
+		switch (peekType()) {
+		case BinaryCodec.TYPE_NULL:
+			return JsonToken.NULL;
+		case BinaryCodec.TYPE_FALSE:
+		case BinaryCodec.TYPE_TRUE:
+			return JsonToken.BOOLEAN;
+		case BinaryCodec.TYPE_LONG:
+		case BinaryCodec.TYPE_DOUBLE:
+		case BinaryCodec.TYPE_NUMBER:
+			return JsonToken.NUMBER;
+		case BinaryCodec.TYPE_STRING:
+			return JsonToken.STRING;
+		case BinaryCodec.TYPE_NAME:
+		case BinaryCodec.TYPE_NAME_REFERENCE:
+			return JsonToken.NAME;
+		case BinaryCodec.TYPE_BEGIN_ARRAY:
+			return JsonToken.BEGIN_ARRAY;
+		case BinaryCodec.TYPE_END_ARRAY:
+			return JsonToken.END_ARRAY;
+		case BinaryCodec.TYPE_BEGIN_OBJECT:
+			return JsonToken.BEGIN_OBJECT;
+		case BinaryCodec.TYPE_END_OBJECT:
+			return JsonToken.END_OBJECT;
+		case PEEKED_EOF:
+			return JsonToken.END_DOCUMENT;
+		default:
+			throw new MalformedJsonException("Unknown type " + mPeeked);
+		}
+	}
+
+	@Override
+	public String nextName() throws IOException {
+		int type = peekType();
+		if (type != BinaryCodec.TYPE_NAME
+				&& type != BinaryCodec.TYPE_NAME_REFERENCE)
+			throw unexpected(JsonToken.NAME);
+		return readName();
+	}
+
+	@Override
+	public String nextString() throws IOException {
+		switch (peekType()) {
+		case BinaryCodec.TYPE_STRING:
+		case BinaryCodec.TYPE_NUMBER:
+			mPeeked = PEEKED_NONE;
+			return readString();
+		case BinaryCodec.TYPE_LONG:
+			mPeeked = PEEKED_NONE;
+			return Long.toString(readLong());
+		case BinaryCodec.TYPE_DOUBLE:
+			mPeeked = PEEKED_NONE;
+			return Double.toString(readDouble());
+		default:
+			if (isNamePromoted())
+				return readName();
+			throw unexpected(JsonToken.STRING);
+		}
+	}
+
+	@Override
+	public boolean nextBoolean() throws IOException {
+		int type = peekType();
+		if (type != BinaryCodec.TYPE_TRUE && type != BinaryCodec.TYPE_FALSE)
+			throw unexpected(JsonToken.BOOLEAN);
+		mPeeked = PEEKED_NONE;
+		return type == BinaryCodec.TYPE_TRUE;
+	}
+
+	@Override
+	public void nextNull() throws IOException {
+		expect(BinaryCodec.TYPE_NULL, JsonToken.NULL);
+	}
+
+	@Override
+	public double nextDouble() throws IOException {
+		switch (peekType()) {
+		case BinaryCodec.TYPE_DOUBLE:
+			mPeeked = PEEKED_NONE;
+			return readDouble();
+		case BinaryCodec.TYPE_LONG:
+			mPeeked = PEEKED_NONE;
+			return readLong();
+		case BinaryCodec.TYPE_NUMBER:
+		case BinaryCodec.TYPE_STRING:
+			mPeeked = PEEKED_NONE;
+			return Double.parseDouble(readString());
+		default:
+			if (isNamePromoted())
+				return Double.parseDouble(readName());
+			throw unexpected(JsonToken.NUMBER);
+		}
+	}
+
+	@Override
+	public long nextLong() throws IOException {
+		switch (peekType()) {
+		case BinaryCodec.TYPE_LONG:
+			mPeeked = PEEKED_NONE;
+			return readLong();
+		case BinaryCodec.TYPE_DOUBLE:
+			mPeeked = PEEKED_NONE;
+			return toLong(readDouble());
+		case BinaryCodec.TYPE_NUMBER:
+		case BinaryCodec.TYPE_STRING:
+			mPeeked = PEEKED_NONE;
+			return parseLong(readString());
+		default:
+			if (isNamePromoted())
+				return parseLong(readName());
+			throw unexpected(JsonToken.NUMBER);
+		}
+	}
+
+	@Override
+	public int nextInt() throws IOException {
+		long value = nextLong();
+		if ((int) value != value)
+			throw new NumberFormatException("Expected an int but was "
+					+ value);
+		return (int) value;
+	}
+
+	@Override
+	public void skipValue() throws IOException {
+		int depth = 0;
+		do {
+			int type = peekType();
+			mPeeked = PEEKED_NONE;
+			switch (type) {
+			case BinaryCodec.TYPE_BEGIN_ARRAY:
+			case BinaryCodec.TYPE_BEGIN_OBJECT:
+				beginContainer();
+				depth++;
+				break;
+			case BinaryCodec.TYPE_END_ARRAY:
+			case BinaryCodec.TYPE_END_OBJECT:
+				mDepth--;
+				depth--;
+				break;
+			case BinaryCodec.TYPE_LONG:
+				readLong();
+				break;
+			case BinaryCodec.TYPE_DOUBLE:
+				skip(8);
+				break;
+			case BinaryCodec.TYPE_NUMBER:
+			case BinaryCodec.TYPE_STRING:
+				skip(readVarint());
+				break;
+			case BinaryCodec.TYPE_NAME:
+			case BinaryCodec.TYPE_NAME_REFERENCE:
+				// names have to be read to keep the references intact
+				mPeeked = type;
+				readName();
+				break;
+			case PEEKED_EOF:
+				throw new EOFException();
+			}
+		} while (depth > 0);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mPeeked = PEEKED_NONE;
+		mIn.close();
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * Overrides JsonReader.getPath() of Gson 2.3 and later, which would report
+	 * the position in the dummy object. The binary format does not track
+	 * paths.
+	 */
+	public String getPath() {
+		return "$";
+	}
+
+	// overrides JsonReader.getPreviousPath() of Gson 2.9 and later
+	public String getPreviousPath() {
+		return getPath();
+	}
+
+	private boolean isNamePromoted() throws IOException {
+		if (mNamePromoted)
+			return true;
+		int type = peekType();
+		if (type != BinaryCodec.TYPE_NAME
+				&& type != BinaryCodec.TYPE_NAME_REFERENCE
+				|| super.peek() != JsonToken.STRING)
+			return false;
+		// consume the promoted dummy name and its value and move the super
+		// class in front of the next dummy name
+		super.nextString();
+		super.nextInt();
+		super.peek();
+		mNamePromoted = true;
+		return true;
+	}
+
+	/**
+	 * Each top level value, like an appended list segment, was written with
+	 * its own name references.
+	 */
+	private void beginContainer() {
+		if (mDepth++ == 0)
+			mNames.clear();
+	}
+
+	private int peekType() throws IOException {
+		if (mPeeked == PEEKED_NONE)
+			mPeeked = mPosition < mLimit || fill() ? mBuffer[mPosition++] & 0xFF
+					: PEEKED_EOF;
+		return mPeeked;
+	}
+
+	private void expect(int type, JsonToken token) throws IOException {
+		if (peekType() != type)
+			throw unexpected(token);
+		mPeeked = PEEKED_NONE;
+	}
+
+	private IllegalStateException unexpected(JsonToken token)
+			throws IOException {
+		return new IllegalStateException("Expected " + token + " but was "
+				+ peek());
+	}
+
+	private String readName() throws IOException {
+		int type = mPeeked;
+		mPeeked = PEEKED_NONE;
+		mNamePromoted = false;
+		if (type == BinaryCodec.TYPE_NAME_REFERENCE) {
+			int index = readVarint();
+			if (index >= mNames.size())
+				throw new MalformedJsonException("Unknown name " + index);
+			return mNames.get(index);
+		}
+		String name = readString();
+		mNames.add(name);
+		return name;
+	}
+
+	private String readString() throws IOException {
+		int length = readVarint();
+		if (length <= mLimit - mPosition) {
+			String value = new String(mBuffer, mPosition, length, UTF8);
+			mPosition += length;
+			return value;
+		}
+		byte[] bytes = new byte[length];
+		int offset = 0;
+		while (offset < length) {
+			if (mPosition == mLimit && !fill())
+				throw new EOFException();
+			int count = Math.min(length - offset, mLimit - mPosition);
+			System.arraycopy(mBuffer, mPosition, bytes, offset, count);
+			mPosition += count;
+			offset += count;
+		}
+		return new String(bytes, UTF8);
+	}
+
+	private long readLong() throws IOException {
+		long value = readVarLong();
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private double readDouble() throws IOException {
+		long bits = 0;
+		for (int i = 0; i < 8; i++) {
+			bits = (bits << 8) | readByte();
+		}
+		return Double.longBitsToDouble(bits);
+	}
+
+	private int readVarint() throws IOException {
+		long value = readVarLong();
+		if (value < 0 || value > Integer.MAX_VALUE)
+			throw new MalformedJsonException("Invalid length " + value);
+		return (int) value;
+	}
+
+	private long readVarLong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = readByte();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new MalformedJsonException("Invalid varint");
+	}
+
+	private int readByte() throws IOException {
+		if (mPosition == mLimit && !fill())
+			throw new EOFException();
+		return mBuffer[mPosition++] & 0xFF;
+	}
+
+	private void skip(int count) throws IOException {
+		while (count > 0) {
+			if (mPosition == mLimit && !fill())
+				throw new EOFException();
+			int skipped = Math.min(count, mLimit - mPosition);
+			mPosition += skipped;
+			count -= skipped;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int read = mIn.read(mBuffer, 0, mBuffer.length);
+		mPosition = 0;
+		mLimit = Math.max(read, 0);
+		return read > 0;
+	}
+
+	private static long parseLong(String text) {
+		try {
+			return Long.parseLong(text);
+		} catch (NumberFormatException e) {
+			return toLong(Double.parseDouble(text));
+		}
+	}
+
+	private static long toLong(double value) {
+		long result = (long) value;
+		if (result != value)
+			throw new NumberFormatException("Expected a long but was " + value);
+		return result;
+	}
+
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Writes the format of {@link BinaryCodec}. All value methods of JsonWriter
+ * are overridden, including those which Gson versions newer than the pinned
+ * one add. The writer passed to the super class rejects any output, so a
+ * method which is not overridden fails instead of writing text nowhere.
+ */
+class BinaryJsonWriter extends JsonWriter {
+
+	private static final Writer REJECTING_WRITER = new Writer() {
+		@Override
+		public void write(char[] buffer, int offset, int count) {
+			throw new UnsupportedOperationException(
+					"Not supported by the binary codec");
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		@Override
+		public void close() {
+		}
+	};
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private OutputStream mOut;
+	// buffered here, as writing single bytes to a BufferedOutputStream
+	// synchronizes on every call
+	private byte[] mBuffer = new byte[8192];
+	private int mPosition;
+	private Map<String, Integer> mNames;
+	private String mDeferredName;
+
+	public BinaryJsonWriter(OutputStream out) {
+		super(REJECTING_WRITER);
+		this.mOut = out;
+		this.mNames = new HashMap<String, Integer>();
+	}
+
+	@Override
+	public JsonWriter beginArray() throws IOException {
+		writeDeferredName();
+		write(BinaryCodec.TYPE_BEGIN_ARRAY);
+		return this;
+	}
+
+	@Override
+	public JsonWriter endArray() throws IOException {
+		write(BinaryCodec.TYPE_END_ARRAY);
+		return this;
+	}
+
+	@Override
+	public JsonWriter beginObject() throws IOException {
+		writeDeferredName();
+		write(BinaryCodec.TYPE_BEGIN_OBJECT);
+		return this;
+	}
+
+	@Override
+	public JsonWriter endObject() throws IOException {
+		write(BinaryCodec.TYPE_END_OBJECT);
+		return this;
+	}
+
+	@Override
+	public JsonWriter name(String name) throws IOException {
+		if (name == null)
+			throw new NullPointerException("name == null");
+		if (mDeferredName != null)
+			throw new IllegalStateException();
+		mDeferredName = name;
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(String value) throws IOException {
+		if (value == null)
+			return nullValue();
+		writeDeferredName();
+		writeString(BinaryCodec.TYPE_STRING, value);
+		return this;
+	}
+
+	@Override
+	public JsonWriter nullValue() throws IOException {
+		if (mDeferredName != null) {
+			if (!getSerializeNulls()) {
+				// like JsonWriter, skip the name and the null
+				mDeferredName = null;
+				return this;
+			}
+			writeDeferredName();
+		}
+		write(BinaryCodec.TYPE_NULL);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(boolean value) throws IOException {
+		writeDeferredName();
+		write(value ? BinaryCodec.TYPE_TRUE : BinaryCodec.TYPE_FALSE);
+		return this;
+	}
+
+	// overrides JsonWriter.value(Boolean) of Gson 2.7 and later
+	public JsonWriter value(Boolean value) throws IOException {
+		if (value == null)
+			return nullValue();
+		return value(value.booleanValue());
+	}
+
+	// overrides JsonWriter.value(float) of Gson 2.9.1 and later
+	public JsonWriter value(float value) throws IOException {
+		return value((double) value);
+	}
+
+	/**
+	 * Raw json text has no binary form, unlike JsonWriter of Gson 2.4 and later
+	 * this method always fails.
+	 */
+	public JsonWriter jsonValue(String value) throws IOException {
+		throw new UnsupportedOperationException(
+				"Raw json values are not supported by the binary codec");
+	}
+
+	@Override
+	public JsonWriter value(double value) throws IOException {
+		if (!isLenient() && (Double.isNaN(value) || Double.isInfinite(value)))
+			throw new IllegalArgumentException(
+					"Numeric values must be finite, but was " + value);
+		writeDeferredName();
+		write(BinaryCodec.TYPE_DOUBLE);
+		long bits = Double.doubleToLongBits(value);
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			write((int) (bits >>> shift));
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(long value) throws IOException {
+		writeDeferredName();
+		write(BinaryCodec.TYPE_LONG);
+		writeVarint((value << 1) ^ (value >> 63));
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(Number value) throws IOException {
+		if (value == null)
+			return nullValue();
+		if (value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte)
+			return value(value.longValue());
+		if (value instanceof Double || value instanceof Float)
+			return value(value.doubleValue());
+		if (value instanceof BigInteger
+				&& ((BigInteger) value).bitLength() < 64)
+			return value(value.longValue());
+		// keep the precision of everything else as text
+		String text = value.toString();
+		if (!isLenient()
+				&& (text.equals("-Infinity") || text.equals("Infinity") || text
+						.equals("NaN")))
+			throw new IllegalArgumentException(
+					"Numeric values must be finite, but was " + value);
+		// numbers parsed from json text, like those of a compacted list, are
+		// packed if they read back as the same text
+		try {
+			long longValue = Long.parseLong(text);
+			if (Long.toString(longValue).equals(text))
+				return value(longValue);
+		} catch (NumberFormatException e) {
+			// not a long
+		}
+		try {
+			double doubleValue = Double.parseDouble(text);
+			if (Double.toString(doubleValue).equals(text))
+				return value(doubleValue);
+		} catch (NumberFormatException e) {
+			// not a double
+		}
+		writeDeferredName();
+		writeString(BinaryCodec.TYPE_NUMBER, text);
+		return this;
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		mOut.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flushBuffer();
+		} finally {
+			mOut.close();
+		}
+	}
+
+	private void write(int b) throws IOException {
+		if (mPosition == mBuffer.length)
+			flushBuffer();
+		mBuffer[mPosition++] = (byte) b;
+	}
+
+	private void write(byte[] bytes) throws IOException {
+		if (bytes.length > mBuffer.length - mPosition) {
+			flushBuffer();
+			if (bytes.length > mBuffer.length) {
+				mOut.write(bytes);
+				return;
+			}
+		}
+		System.arraycopy(bytes, 0, mBuffer, mPosition, bytes.length);
+		mPosition += bytes.length;
+	}
+
+	private void flushBuffer() throws IOException {
+		mOut.write(mBuffer, 0, mPosition);
+		mPosition = 0;
+	}
+
+	private void writeDeferredName() throws IOException {
+		if (mDeferredName == null)
+			return;
+		Integer index = mNames.get(mDeferredName);
+		if (index != null) {
+			write(BinaryCodec.TYPE_NAME_REFERENCE);
+			writeVarint(index);
+		} else {
+			mNames.put(mDeferredName, mNames.size());
+			writeString(BinaryCodec.TYPE_NAME, mDeferredName);
+		}
+		mDeferredName = null;
+	}
+
+	private void writeString(int type, String value) throws IOException {
+		byte[] bytes = value.getBytes(UTF8);
+		write(type);
+		writeVarint(bytes.length);
+		write(bytes);
+	}
+
+	private void writeVarint(long value) throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			write((int) (value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		write((int) value);
+	}
+
+}
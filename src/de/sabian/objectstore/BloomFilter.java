@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bloom filter of strings. It tells whether a string may have been added,
+ * without false negatives and with a false positive rate which rises once
+ * more strings than its capacity are added. Past the capacity more than half
+ * of its bits are set, which {@link #isSaturated()} tells.
+ * <p>
+ * Adds and lookups do not lock, the bits are set with compare and set.
+ */
+final class BloomFilter {
+
+	private static final int VERSION = 1;
+	// far more than any sensible false positive rate needs, bounds the
+	// probes of a damaged filter
+	private static final int MAX_HASH_COUNT = 64;
+	private static final int READ_CHUNK = 8 * 1024;
+
+	private final AtomicLongArray mBits;
+	private final long mBitCount;
+	private final int mHashCount;
+	private final AtomicLong mSetBits;
+
+	public BloomFilter(int capacity, double falsePositiveRate) {
+		capacity = Math.max(capacity, 1);
+		double ln2 = Math.log(2);
+		long bitCount = (long) Math.ceil(-capacity
+				* Math.log(falsePositiveRate) / (ln2 * ln2));
+		int length = (int) Math.max((bitCount + 63) / 64, 1);
+		this.mBits = new AtomicLongArray(length);
+		this.mBitCount = (long) length * 64;
+		this.mHashCount = (int) Math.max(1, Math.min(MAX_HASH_COUNT,
+				Math.round((double) mBitCount / capacity * ln2)));
+		this.mSetBits = new AtomicLong();
+	}
+
+	private BloomFilter(long[] bits, int hashCount) {
+		this.mBits = new AtomicLongArray(bits);
+		this.mBitCount = (long) bits.length * 64;
+		this.mHashCount = hashCount;
+		long setBits = 0;
+		for (long word : bits) {
+			setBits += Long.bitCount(word);
+		}
+		this.mSetBits = new AtomicLong(setBits);
+	}
+
+	public void add(String s) {
+		int h1 = hash1(s);
+		int h2 = hash2(s);
+		for (int i = 0; i < mHashCount; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % mBitCount;
+			setBit(index);
+		}
+	}
+
+	public boolean mightContain(String s) {
+		int h1 = hash1(s);
+		int h2 = hash2(s);
+		for (int i = 0; i < mHashCount; i++) {
+			long index = ((h1 + (long) i * h2) & Long.MAX_VALUE) % mBitCount;
+			if ((mBits.get((int) (index >>> 6)) & (1L << index)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	public boolean isSaturated() {
+		return mSetBits.get() * 2 > mBitCount;
+	}
+
+	/**
+	 * Returns the number of strings the filter holds with the given false
+	 * positive rate, as it was sized by the constructor.
+	 */
+	public int getCapacity(double falsePositiveRate) {
+		double ln2 = Math.log(2);
+		return (int) Math.max(1, Math.min(Integer.MAX_VALUE, mBitCount
+				* ln2 * ln2 / -Math.log(falsePositiveRate)));
+	}
+
+	/**
+	 * Writes the bits as they are, adds which run concurrently may be
+	 * missing.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(VERSION);
+		out.writeInt(mHashCount);
+		out.writeInt(mBits.length());
+		for (int i = 0; i < mBits.length(); i++) {
+			out.writeLong(mBits.get(i));
+		}
+	}
+
+	/**
+	 * Reads a filter written by {@link #writeTo(DataOutputStream)}. The
+	 * stored length is not trusted, the bits are read in chunks, so a
+	 * damaged length ends in an {@link IOException} once the stream is
+	 * exhausted instead of allocating it up front.
+	 */
+	public static BloomFilter readFrom(DataInputStream in) throws IOException {
+		if (in.readInt() != VERSION)
+			throw new IOException("Unknown bloom filter version");
+		int hashCount = in.readInt();
+		int length = in.readInt();
+		if (hashCount <= 0 || hashCount > MAX_HASH_COUNT || length <= 0)
+			throw new IOException("Corrupt bloom filter");
+		long[] bits = new long[Math.min(length, READ_CHUNK)];
+		for (int i = 0; i < length; i++) {
+			if (i == bits.length)
+				bits = Arrays.copyOf(bits,
+						(int) Math.min(length, (long) bits.length * 2));
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashCount);
+	}
+
+	private void setBit(long index) {
+		int word = (int) (index >>> 6);
+		long mask = 1L << index;
+		while (true) {
+			long bits = mBits.get(word);
+			if ((bits & mask) != 0)
+				return;
+			if (mBits.compareAndSet(word, bits, bits | mask)) {
+				mSetBits.incrementAndGet();
+				return;
+			}
+		}
+	}
+
+	private static int hash1(String s) {
+		int h = s.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		return h ^ h >>> 16;
+	}
+
+	/**
+	 * FNV-1a over the chars, independent of {@link String#hashCode()}. Odd,
+	 * so the probes of a string never repeat a step of zero.
+	 */
+	private static int hash2(String s) {
+		int h = 0x811c9dc5;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x01000193;
+		}
+		return h | 1;
+	}
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Collects a value in memory and commits it when the stream is closed, or
+ * drops it when the stream is aborted.
+ */
+abstract class BufferedValueStream extends ByteArrayOutputStream implements
+		IAbortable {
+
+	private boolean mClosed;
+
+	@Override
+	public void close() throws IOException {
+		if (!mClosed) {
+			mClosed = true;
+			commit();
+		}
+	}
+
+	@Override
+	public void abort() {
+		mClosed = true;
+		reset();
+	}
+
+	/**
+	 * Stores the collected bytes.
+	 */
+	protected abstract void commit() throws IOException;
+
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+public class CacheStats {
+
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+	private int mEntryCount;
+	private long mEstimatedBytes;
+
+	public CacheStats(long hitCount, long missCount, long evictionCount,
+			int entryCount, long estimatedBytes) {
+		this.mHitCount = hitCount;
+		this.mMissCount = missCount;
+		this.mEvictionCount = evictionCount;
+		this.mEntryCount = entryCount;
+		this.mEstimatedBytes = estimatedBytes;
+	}
+
+	public long getHitCount() {
+		return mHitCount;
+	}
+
+	public long getMissCount() {
+		return mMissCount;
+	}
+
+	public long getEvictionCount() {
+		return mEvictionCount;
+	}
+
+	public int getEntryCount() {
+		return mEntryCount;
+	}
+
+	public long getEstimatedBytes() {
+		return mEstimatedBytes;
+	}
+
+	public double getHitRate() {
+		long requests = mHitCount + mMissCount;
+		return requests == 0 ? 1.0 : (double) mHitCount / requests;
+	}
+
+	@Override
+	public String toString() {
+		return "hits: " + mHitCount + ", misses: " + mMissCount
+				+ ", evictions: " + mEvictionCount + ", entries: "
+				+ mEntryCount + ", bytes: " + mEstimatedBytes;
+	}
+
+}
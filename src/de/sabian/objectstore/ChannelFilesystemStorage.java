@@ -0,0 +1,377 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A {@link FilesystemStorage} which reads and writes through file channels,
+ * with the same file layout.
+ * <p>
+ * A value is read with a single read into a buffer of its length, which is
+ * a direct buffer reused by the thread for small values. Values above the
+ * map threshold are memory mapped instead, so streams read them without
+ * copying them to the heap first. Writes collect the bytes in chunks, which
+ * are written with one gathering write per {@value #MAX_PENDING_CHUNKS}
+ * chunks and on close. The sync policy decides whether a value is forced to
+ * the disk before it replaces the old one.
+ */
+public class ChannelFilesystemStorage extends FilesystemStorage {
+
+	public static enum SyncPolicy {
+		/** Leaves writing the files to the disk to the operating system. */
+		NONE,
+		/** Forces the content of every written file. */
+		DATA,
+		/** Forces the content and the metadata of every written file. */
+		ALL
+	}
+
+	public static final int DEFAULT_MAP_THRESHOLD = 256 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int MAX_PENDING_CHUNKS = 16;
+
+	/**
+	 * Reads the buffer, which holds the whole value.
+	 */
+	private class BufferInputStream extends InputStream {
+		private ByteBuffer mBuffer;
+
+		public BufferInputStream(ByteBuffer buffer) {
+			this.mBuffer = buffer;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (count == 0)
+				return 0;
+			if (!mBuffer.hasRemaining())
+				return -1;
+			count = Math.min(count, mBuffer.remaining());
+			mBuffer.get(buffer, offset, count);
+			return count;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			int skipped = (int) Math.max(0,
+					Math.min(count, mBuffer.remaining()));
+			((Buffer) mBuffer).position(mBuffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return mBuffer.remaining();
+		}
+
+		@Override
+		public void close() {
+			if (mBuffer != null) {
+				releaseBuffer(mBuffer);
+				mBuffer = null;
+			}
+		}
+	}
+
+	/**
+	 * Collects the written bytes in chunks and writes them with gathering
+	 * writes. If a target file is given, the stream writes to a temporary
+	 * file which replaces the target on close. An aborted stream deletes the
+	 * temporary file, or cuts an appended file back to its former length.
+	 */
+	private class ChannelOutputStream extends OutputStream implements
+			IAbortable {
+		private FileOutputStream mOut;
+		private FileChannel mChannel;
+		private File mTempFile;
+		private File mFile;
+		private long mStartLength;
+		private ByteBuffer[] mChunks = new ByteBuffer[MAX_PENDING_CHUNKS];
+		private int mChunk;
+		private boolean mClosed;
+
+		public ChannelOutputStream(File file, boolean append)
+				throws IOException {
+			if (append) {
+				mStartLength = file.length();
+				mOut = new FileOutputStream(file, true);
+			} else {
+				mTempFile = createTempFile(file);
+				mFile = file;
+				mOut = new FileOutputStream(mTempFile);
+			}
+			mChannel = mOut.getChannel();
+			mChunks[0] = acquireBuffer();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			ensureOpen();
+			if (!mChunks[mChunk].hasRemaining())
+				nextChunk();
+			mChunks[mChunk].put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			ensureOpen();
+			while (count > 0) {
+				ByteBuffer chunk = mChunks[mChunk];
+				if (!chunk.hasRemaining()) {
+					nextChunk();
+					continue;
+				}
+				int written = Math.min(count, chunk.remaining());
+				chunk.put(buffer, offset, written);
+				offset += written;
+				count -= written;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (!mClosed)
+				writeChunks();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				try {
+					writeChunks();
+					if (mSyncPolicy != SyncPolicy.NONE)
+						mChannel.force(mSyncPolicy == SyncPolicy.ALL);
+				} finally {
+					mOut.close();
+					releaseBuffer(mChunks[0]);
+					mChunks = null;
+				}
+				if (mTempFile != null)
+					replace(mTempFile, mFile);
+			} finally {
+				if (mTempFile != null)
+					mTempFile.delete();
+			}
+		}
+
+		@Override
+		public void abort() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				if (mTempFile == null)
+					mChannel.truncate(mStartLength);
+			} catch (IOException e) {
+				// nothing more can be done for the failed append
+			} finally {
+				try {
+					mOut.close();
+				} catch (IOException e) {
+					// the written bytes are dropped anyway
+				}
+				releaseBuffer(mChunks[0]);
+				mChunks = null;
+				if (mTempFile != null)
+					mTempFile.delete();
+			}
+		}
+
+		private void ensureOpen() throws IOException {
+			if (mClosed)
+				throw new IOException("Stream closed");
+		}
+
+		private void nextChunk() throws IOException {
+			if (mChunk + 1 == mChunks.length)
+				writeChunks();
+			else if (mChunks[++mChunk] == null)
+				mChunks[mChunk] = ByteBuffer.allocateDirect(CHUNK_SIZE);
+		}
+
+		private void writeChunks() throws IOException {
+			int count = mChunk + 1;
+			long remaining = 0;
+			for (int i = 0; i < count; i++) {
+				remaining += ((Buffer) mChunks[i]).flip().remaining();
+			}
+			while (remaining > 0) {
+				remaining -= mChannel.write(mChunks, 0, count);
+			}
+			for (int i = 0; i < count; i++) {
+				((Buffer) mChunks[i]).clear();
+			}
+			mChunk = 0;
+		}
+	}
+
+	private final SyncPolicy mSyncPolicy;
+	private final int mMapThreshold;
+	// a chunk per thread, which is reused by its reads and writes
+	private final ThreadLocal<ByteBuffer> mBuffers =
+			new ThreadLocal<ByteBuffer>();
+
+	/**
+	 * Creates a storage with the flat layout, which does not sync.
+	 */
+	public ChannelFilesystemStorage(File baseDir) {
+		this(baseDir, 0, SyncPolicy.NONE, DEFAULT_MAP_THRESHOLD);
+	}
+
+	/**
+	 * @param shardDepth
+	 *            the depth of the sharded layout as in
+	 *            {@link FilesystemStorage#FilesystemStorage(File, int)}
+	 * @param mapThreshold
+	 *            the size in bytes above which values are memory mapped for
+	 *            reading
+	 */
+	public ChannelFilesystemStorage(File baseDir, int shardDepth,
+			SyncPolicy syncPolicy, int mapThreshold) {
+		super(baseDir, shardDepth);
+		this.mSyncPolicy = syncPolicy;
+		this.mMapThreshold = mapThreshold;
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return mSyncPolicy;
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		InputStream in = openInputStream(identifier);
+		return in != null ? new InputStreamReader(in, UTF8) : null;
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier)
+			throws IOException {
+		return new ChannelOutputStream(getFile(identifier), false);
+	}
+
+	@Override
+	public OutputStream openAppendStream(String identifier)
+			throws IOException {
+		return new ChannelOutputStream(createFile(identifier), true);
+	}
+
+	/**
+	 * Reads the whole value when it is opened, so the stream holds no file.
+	 * Returns null if nothing is stored, a failed read is thrown.
+	 */
+	@Override
+	public InputStream openInputStream(String identifier)
+			throws IOException {
+		ByteBuffer buffer = readBuffer(getFile(identifier));
+		return buffer != null ? new BufferInputStream(buffer) : null;
+	}
+
+	@Override
+	String readText(File file) throws IOException {
+		ByteBuffer buffer = readBuffer(file);
+		if (buffer == null)
+			return null;
+		try {
+			// the string decoder is much faster than a charset decoder, even
+			// with the copy out of a direct buffer
+			if (buffer.hasArray())
+				return new String(buffer.array(), buffer.arrayOffset()
+						+ buffer.position(), buffer.remaining(), UTF8);
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return new String(bytes, UTF8);
+		} finally {
+			releaseBuffer(buffer);
+		}
+	}
+
+	/**
+	 * Reads the file into a buffer of its length, or maps it if it is larger
+	 * than the map threshold. Returns null if the file does not exist.
+	 */
+	private ByteBuffer readBuffer(File file) throws IOException {
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			// also thrown for a file which exists but can not be opened
+			if (file.exists())
+				throw e;
+			return null;
+		}
+		try {
+			FileChannel channel = in.getChannel();
+			long size = channel.size();
+			if (size > mMapThreshold)
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			ByteBuffer buffer = size <= CHUNK_SIZE ? acquireBuffer()
+					: ByteBuffer.allocate((int) size);
+			// called through Buffer, the ByteBuffer overrides of jdk 9 do not
+			// exist on java 8 and older android versions
+			((Buffer) buffer).limit((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+			}
+			((Buffer) buffer).flip();
+			return buffer;
+		} finally {
+			in.close();
+		}
+	}
+
+	private ByteBuffer acquireBuffer() {
+		ByteBuffer buffer = mBuffers.get();
+		if (buffer == null)
+			return ByteBuffer.allocateDirect(CHUNK_SIZE);
+		mBuffers.set(null);
+		((Buffer) buffer).clear();
+		return buffer;
+	}
+
+	/**
+	 * Keeps a chunk for the next read or write of the current thread.
+	 */
+	private void releaseBuffer(ByteBuffer buffer) {
+		if (buffer.capacity() == CHUNK_SIZE && buffer.isDirect()
+				&& !buffer.isReadOnly())
+			mBuffers.set(buffer);
+	}
+
+}
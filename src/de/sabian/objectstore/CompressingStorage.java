@@ -0,0 +1,592 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses the values of another storage. Values smaller than the threshold
+ * are stored as they are. Compressed values start with a header byte, which
+ * can neither start json nor a codec tag, followed by the algorithm, so values
+ * which were stored uncompressed stay readable.
+ */
+public class CompressingStorage implements IJsonStorage {
+
+	public static enum Algorithm {
+		DEFLATE(1), GZIP(2);
+
+		private final int mId;
+
+		private Algorithm(int id) {
+			this.mId = id;
+		}
+	}
+
+	static final int HEADER = 0x1F;
+	// marks small values which start with the header byte themselves
+	private static final int STORED = 0;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Counts the bytes and the time spent writing to the underlying storage.
+	 */
+	private static class MeteredOutputStream extends FilterOutputStream
+			implements IAbortable {
+		private long mCount;
+		private long mNanos;
+
+		public MeteredOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			out.write(b);
+			mNanos += System.nanoTime() - start;
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			out.write(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			mCount += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			long start = System.nanoTime();
+			out.close();
+			mNanos += System.nanoTime() - start;
+		}
+
+		@Override
+		public void abort() {
+			AbstractJsonStorage.abort(out);
+		}
+	}
+
+	/**
+	 * Counts the time spent reading from the underlying storage.
+	 */
+	private static class MeteredInputStream extends FilterInputStream {
+		private long mNanos;
+
+		public MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			mNanos += System.nanoTime() - start;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			int read = in.read(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			return read;
+		}
+	}
+
+	/**
+	 * Buffers the value until it reaches the threshold, then compresses it
+	 * while it is written.
+	 */
+	private class CompressingOutputStream extends OutputStream implements
+			IAbortable {
+		private String mIdentifier;
+		private ByteArrayOutputStream mBuffer;
+		private MeteredOutputStream mTarget;
+		private OutputStream mCompressor;
+		private Deflater mDeflater;
+		private long mUncompressedBytes;
+		private long mNanos;
+		private boolean mClosed;
+
+		public CompressingOutputStream(String identifier) {
+			this.mIdentifier = identifier;
+			this.mBuffer = new ByteArrayOutputStream();
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			if (mCompressor == null) {
+				if (mBuffer.size() + count < mThreshold) {
+					mBuffer.write(buffer, offset, count);
+					return;
+				}
+				startCompression();
+			}
+			long start = System.nanoTime();
+			mCompressor.write(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			mUncompressedBytes += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			if (mCompressor == null) {
+				byte[] value = mBuffer.toByteArray();
+				OutputStream out = mStorage.openOutputStream(mIdentifier);
+				boolean written = false;
+				try {
+					if (value.length > 0 && (value[0] & 0xFF) == HEADER) {
+						out.write(HEADER);
+						out.write(STORED);
+					}
+					out.write(value);
+					out.close();
+					written = true;
+				} finally {
+					if (!written)
+						AbstractJsonStorage.abort(out);
+				}
+				recordUncompressed();
+			} else {
+				long start = System.nanoTime();
+				boolean written = false;
+				try {
+					mCompressor.close();
+					written = true;
+				} finally {
+					// abort() returns once the stream is closed, so a
+					// failed close has to drop the value itself
+					if (!written) {
+						mDeflater.end();
+						mTarget.abort();
+					}
+				}
+				mNanos += System.nanoTime() - start;
+				recordCompression(mUncompressedBytes, mTarget.mCount, mNanos
+						- mTarget.mNanos);
+			}
+		}
+
+		private void startCompression() throws IOException {
+			mTarget = new MeteredOutputStream(
+					mStorage.openOutputStream(mIdentifier));
+			mTarget.write(HEADER);
+			mTarget.write(mAlgorithm.mId);
+			if (mAlgorithm == Algorithm.GZIP) {
+				mCompressor = new GZIPOutputStream(mTarget, 8192) {
+					{
+						def.setLevel(mLevel);
+						mDeflater = def;
+					}
+				};
+			} else {
+				mDeflater = new Deflater(mLevel);
+				mCompressor = new DeflaterOutputStream(mTarget, mDeflater,
+						8192) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							mDeflater.end();
+						}
+					}
+				};
+			}
+			byte[] buffered = mBuffer.toByteArray();
+			mBuffer = null;
+			long start = System.nanoTime();
+			mCompressor.write(buffered);
+			mNanos += System.nanoTime() - start;
+			mUncompressedBytes += buffered.length;
+		}
+
+		@Override
+		public void abort() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			mBuffer = null;
+			if (mCompressor != null) {
+				mDeflater.end();
+				mTarget.abort();
+			}
+		}
+	}
+
+	/**
+	 * Measures the time spent decompressing.
+	 */
+	private class DecompressingInputStream extends FilterInputStream {
+		private MeteredInputStream mSource;
+		private long mNanos;
+		private boolean mClosed;
+
+		public DecompressingInputStream(InputStream in,
+				MeteredInputStream source) {
+			super(in);
+			this.mSource = source;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			mNanos += System.nanoTime() - start;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			int read = in.read(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!mClosed) {
+				mClosed = true;
+				recordDecompression(mNanos - mSource.mNanos);
+			}
+			in.close();
+		}
+	}
+
+	private IJsonStorage mStorage;
+	private int mThreshold;
+	private Algorithm mAlgorithm;
+	private int mLevel;
+
+	private long mCompressedCount;
+	private long mUncompressedCount;
+	private long mUncompressedBytes;
+	private long mCompressedBytes;
+	private long mCompressionNanos;
+	private long mDecompressionNanos;
+
+	/**
+	 * Compresses values of at least 1 KB with deflate at the default level.
+	 */
+	public CompressingStorage(IJsonStorage storage) {
+		this(storage, 1024, Algorithm.DEFLATE, Deflater.DEFAULT_COMPRESSION);
+	}
+
+	/**
+	 * @param threshold
+	 *            size in bytes from which on values are compressed
+	 * @param level
+	 *            compression level from 0 to 9, or
+	 *            {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public CompressingStorage(IJsonStorage storage, int threshold,
+			Algorithm algorithm, int level) {
+		this.mStorage = storage;
+		this.mThreshold = threshold;
+		this.mAlgorithm = algorithm;
+		this.mLevel = level;
+	}
+
+	@Override
+	public boolean remove(String identifier) throws IOException {
+		return mStorage.remove(identifier);
+	}
+
+	@Override
+	public boolean contains(String identifier) {
+		return mStorage.contains(identifier);
+	}
+
+	@Override
+	public void storeJson(String identifier, String json) throws IOException {
+		byte[] value = json.getBytes(UTF8);
+		if (value.length < mThreshold
+				&& (value.length == 0 || value[0] != HEADER)) {
+			mStorage.storeJson(identifier, json);
+			recordUncompressed();
+			return;
+		}
+		OutputStream out = openOutputStream(identifier);
+		boolean written = false;
+		try {
+			out.write(value);
+			out.close();
+			written = true;
+		} finally {
+			if (!written)
+				AbstractJsonStorage.abort(out);
+		}
+	}
+
+	@Override
+	public String getJson(String identifier) throws IOException {
+		Reader reader = openReader(identifier);
+		if (reader == null)
+			return null;
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public Writer openWriter(String identifier) {
+		return new AbortableWriter(openOutputStream(identifier));
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		InputStream in = openInputStream(identifier);
+		return in != null ? new InputStreamReader(in, UTF8) : null;
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier) {
+		return new CompressingOutputStream(identifier);
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		InputStream in = mStorage.openInputStream(identifier);
+		if (in == null)
+			return null;
+		MeteredInputStream source = new MeteredInputStream(in);
+		PushbackInputStream pushbackIn = new PushbackInputStream(source, 1);
+		try {
+			int header = pushbackIn.read();
+			if (header != HEADER) {
+				if (header != -1)
+					pushbackIn.unread(header);
+				return pushbackIn;
+			}
+			int algorithm = pushbackIn.read();
+			if (algorithm == STORED) {
+				return pushbackIn;
+			} else if (algorithm == Algorithm.DEFLATE.mId) {
+				final Inflater inflater = new Inflater();
+				return new DecompressingInputStream(new InflaterInputStream(
+						pushbackIn, inflater, 8192) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							inflater.end();
+						}
+					}
+				}, source);
+			} else if (algorithm == Algorithm.GZIP.mId) {
+				return new DecompressingInputStream(new GZIPInputStream(
+						pushbackIn, 8192), source);
+			} else {
+				throw new IOException("Unknown compression " + algorithm
+						+ " of " + identifier);
+			}
+		} catch (IOException e) {
+			pushbackIn.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Uncompressed values are appended to in the underlying storage and stay
+	 * uncompressed until they are replaced. Compressed values are rewritten.
+	 */
+	@Override
+	public OutputStream openAppendStream(String identifier) throws IOException {
+		InputStream in = mStorage.openInputStream(identifier);
+		if (in == null)
+			return openOutputStream(identifier);
+		int header;
+		try {
+			header = in.read();
+		} finally {
+			in.close();
+		}
+		if (header == -1 || header == HEADER)
+			return AbstractJsonStorage.openRewritingAppendStream(this,
+					identifier);
+		return mStorage.openAppendStream(identifier);
+	}
+
+	/**
+	 * Small values are stored with one batch write, compressed values one by
+	 * one.
+	 */
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		Map<String, String> small = new LinkedHashMap<String, String>();
+		for (Entry<String, String> entry : values.entrySet()) {
+			String json = entry.getValue();
+			// a char takes at least one byte
+			if (json.length() >= mThreshold || json.startsWith("\u001F"))
+				storeJson(entry.getKey(), json);
+			else
+				small.put(entry.getKey(), json);
+		}
+		if (!small.isEmpty()) {
+			mStorage.storeAllJson(small);
+			synchronized (this) {
+				mUncompressedCount += small.size();
+			}
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String identifier : identifiers) {
+			String json = getJson(identifier);
+			if (json != null)
+				values.put(identifier, json);
+		}
+		return values;
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		return mStorage.removeAll(identifiers);
+	}
+
+	@Override
+	public CloseableIterator<String> keys() throws IOException {
+		return mStorage.keys();
+	}
+
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException {
+		return mStorage.keysWithPrefix(prefix);
+	}
+
+	/**
+	 * Returns the stored size, which is the compressed size of compressed
+	 * values.
+	 */
+	@Override
+	public long sizeOf(String identifier) throws IOException {
+		return mStorage.sizeOf(identifier);
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		return mStorage.removeWithPrefix(prefix);
+	}
+
+	/**
+	 * Entries of keyed maps are small and passed through uncompressed.
+	 */
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		mStorage.storeEntryJson(identifier, key, json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return mStorage.getEntryJson(identifier, key);
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		return mStorage.removeEntry(identifier, key);
+	}
+
+	@Override
+	public int getEntryCount(String identifier) throws IOException {
+		return mStorage.getEntryCount(identifier);
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		return mStorage.getAllEntriesJson(identifier);
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		return mStorage.removeEntries(identifier);
+	}
+
+	public synchronized CompressionStats getStats() {
+		return new CompressionStats(mCompressedCount, mUncompressedCount,
+				mUncompressedBytes, mCompressedBytes, mCompressionNanos,
+				mDecompressionNanos);
+	}
+
+	private synchronized void recordUncompressed() {
+		mUncompressedCount++;
+	}
+
+	private synchronized void recordCompression(long uncompressedBytes,
+			long compressedBytes, long nanos) {
+		mCompressedCount++;
+		mUncompressedBytes += uncompressedBytes;
+		mCompressedBytes += compressedBytes;
+		mCompressionNanos += nanos;
+	}
+
+	private synchronized void recordDecompression(long nanos) {
+		mDecompressionNanos += nanos;
+	}
+
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+public class CompressionStats {
+
+	private long mCompressedCount;
+	private long mUncompressedCount;
+	private long mUncompressedBytes;
+	private long mCompressedBytes;
+	private long mCompressionNanos;
+	private long mDecompressionNanos;
+
+	public CompressionStats(long compressedCount, long uncompressedCount,
+			long uncompressedBytes, long compressedBytes,
+			long compressionNanos, long decompressionNanos) {
+		this.mCompressedCount = compressedCount;
+		this.mUncompressedCount = uncompressedCount;
+		this.mUncompressedBytes = uncompressedBytes;
+		this.mCompressedBytes = compressedBytes;
+		this.mCompressionNanos = compressionNanos;
+		this.mDecompressionNanos = decompressionNanos;
+	}
+
+	/**
+	 * Returns the number of values which were stored compressed.
+	 */
+	public long getCompressedCount() {
+		return mCompressedCount;
+	}
+
+	/**
+	 * Returns the number of values which were stored uncompressed, as they
+	 * were smaller than the threshold.
+	 */
+	public long getUncompressedCount() {
+		return mUncompressedCount;
+	}
+
+	/**
+	 * Returns the size of the compressed values before compression.
+	 */
+	public long getUncompressedBytes() {
+		return mUncompressedBytes;
+	}
+
+	public long getCompressedBytes() {
+		return mCompressedBytes;
+	}
+
+	public long getCompressionNanos() {
+		return mCompressionNanos;
+	}
+
+	public long getDecompressionNanos() {
+		return mDecompressionNanos;
+	}
+
+	public double getCompressionRatio() {
+		return mCompressedBytes == 0 ? 1.0 : (double) mUncompressedBytes
+				/ mCompressedBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "compressed: " + mCompressedCount + ", uncompressed: "
+				+ mUncompressedCount + ", ratio: " + getCompressionRatio()
+				+ ", compression ms: " + mCompressionNanos / 1000000
+				+ ", decompression ms: " + mDecompressionNanos / 1000000;
+	}
+
+}
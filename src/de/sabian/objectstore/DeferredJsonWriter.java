@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Collects the written json in memory and hands it to
+ * {@link IJsonStorage#storeJson(String, String)} when closed. Used by storages
+ * which can only persist complete strings.
+ */
+class DeferredJsonWriter extends Writer implements IAbortable {
+
+	private IJsonStorage mStorage;
+	private String mIdentifier;
+	private StringBuilder mBuffer;
+
+	public DeferredJsonWriter(IJsonStorage storage, String identifier) {
+		this.mStorage = storage;
+		this.mIdentifier = identifier;
+		this.mBuffer = new StringBuilder();
+	}
+
+	@Override
+	public void write(char[] cbuf, int off, int len) throws IOException {
+		if (mBuffer == null)
+			throw new IOException("writer already closed");
+		mBuffer.append(cbuf, off, len);
+	}
+
+	@Override
+	public void write(String str, int off, int len) throws IOException {
+		if (mBuffer == null)
+			throw new IOException("writer already closed");
+		mBuffer.append(str, off, off + len);
+	}
+
+	@Override
+	public void flush() {
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mBuffer != null) {
+			String json = mBuffer.toString();
+			mBuffer = null;
+			mStorage.storeJson(mIdentifier, json);
+		}
+	}
+
+	@Override
+	public void abort() {
+		mBuffer = null;
+	}
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Positions of the elements of a stored collection by the value of one of
+ * their fields. Values are compared by their json, numbers in a canonical
+ * form, so 5 and 5.0 are equal. Missing fields are equal to null. The stamp
+ * is the stored size of the collection the index was built for, an index
+ * whose stamp differs from the current size is stale.
+ */
+final class FieldIndex {
+
+	private String mField;
+	private String[] mPath;
+	private int mCount;
+	private long mStamp = -1;
+	private Map<String, List<Integer>> mPositions;
+
+	public FieldIndex(String field) {
+		this.mField = field;
+		this.mPath = field.split("\\.");
+		this.mPositions = new LinkedHashMap<String, List<Integer>>();
+	}
+
+	public String getField() {
+		return mField;
+	}
+
+	public long getStamp() {
+		return mStamp;
+	}
+
+	public void setStamp(long stamp) {
+		mStamp = stamp;
+	}
+
+	/**
+	 * Adds the next element of the collection.
+	 */
+	public void add(JsonElement element) {
+		String key = keyOf(extract(element));
+		List<Integer> positions = mPositions.get(key);
+		if (positions == null) {
+			positions = new ArrayList<Integer>();
+			mPositions.put(key, positions);
+		}
+		positions.add(mCount++);
+	}
+
+	public boolean matches(JsonElement element, JsonElement value) {
+		return keyOf(extract(element)).equals(keyOf(value));
+	}
+
+	/**
+	 * Returns the ascending positions of the elements whose field has the
+	 * given value.
+	 */
+	public List<Integer> getPositions(JsonElement value) {
+		List<Integer> positions = mPositions.get(keyOf(value));
+		return positions != null ? positions : Collections
+				.<Integer> emptyList();
+	}
+
+	public String toJson() {
+		JsonObject positions = new JsonObject();
+		for (Entry<String, List<Integer>> entry : mPositions.entrySet()) {
+			JsonArray array = new JsonArray();
+			for (Integer position : entry.getValue()) {
+				array.add(new JsonPrimitive(position));
+			}
+			positions.add(entry.getKey(), array);
+		}
+		JsonObject index = new JsonObject();
+		index.addProperty("field", mField);
+		index.addProperty("count", mCount);
+		index.addProperty("stamp", mStamp);
+		index.add("positions", positions);
+		return index.toString();
+	}
+
+	/**
+	 * Reads an index written by {@link #toJson()}, a damaged one fails with a
+	 * JsonParseException.
+	 */
+	public static FieldIndex fromJson(String json) {
+		try {
+			JsonObject object = new JsonParser().parse(json)
+					.getAsJsonObject();
+			FieldIndex index = new FieldIndex(object.get("field")
+					.getAsString());
+			index.mCount = object.get("count").getAsInt();
+			// indexes written without a stamp are always stale
+			if (object.has("stamp"))
+				index.mStamp = object.get("stamp").getAsLong();
+			for (Entry<String, JsonElement> entry : object.getAsJsonObject(
+					"positions").entrySet()) {
+				JsonArray array = entry.getValue().getAsJsonArray();
+				List<Integer> positions = new ArrayList<Integer>(
+						array.size());
+				for (JsonElement position : array) {
+					positions.add(position.getAsInt());
+				}
+				index.mPositions.put(entry.getKey(), positions);
+			}
+			return index;
+		} catch (RuntimeException e) {
+			throw new JsonParseException("Damaged index", e);
+		}
+	}
+
+	private JsonElement extract(JsonElement element) {
+		for (String name : mPath) {
+			if (element == null || !element.isJsonObject())
+				return null;
+			element = element.getAsJsonObject().get(name);
+		}
+		return element;
+	}
+
+	private static String keyOf(JsonElement value) {
+		if (value == null)
+			value = JsonNull.INSTANCE;
+		if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber()) {
+			try {
+				BigDecimal number = new BigDecimal(value.getAsString());
+				// zero keeps its scale when stripped on older runtimes
+				return number.signum() == 0 ? "0" : number
+						.stripTrailingZeros().toPlainString();
+			} catch (NumberFormatException e) {
+				// NaN and infinities
+				return value.getAsString();
+			}
+		}
+		return value.toString();
+	}
+
+}
@@ -15,50 +15,644 @@
  */
 package de.sabian.objectstore;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
-public abstract class FilesystemStorage implements IJsonStorage {
+/**
+ * Stores every value in a file named by its identifier. The entries of a
+ * keyed map are files in a directory of their own, so the directory listing
+ * is the index of the map.
+ * <p>
+ * In the flat layout the files are named by the raw identifiers and kept in
+ * the base directory. The sharded layout spreads them over levels of up to
+ * 256 subdirectories, chosen by a hash of the identifier, and names them by
+ * the URL encoded identifier, so directories stay small and identifiers may
+ * contain any character. Prefix scans have to walk all shards.
+ * <p>
+ * Values and entries are written to a temporary file in the directory
+ * {@value #TEMP_DIR}, which replaces the file of the value when the stream is
+ * closed, so readers see either the old or the new value. Appends are
+ * written in place.
+ */
+public class FilesystemStorage extends AbstractJsonStorage {
+
+	public static final int MAX_SHARD_DEPTH = 4;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// prefixed to entry file names, so no key maps to "." or ".."
+	private static final String ENTRY_PREFIX = "_";
+	// prefixes of the file names of values and keyed maps in shards
+	private static final String VALUE_PREFIX = "_";
+	private static final String MAP_PREFIX = "=";
+	private static final String MIGRATION_DIR = ".migration";
+	private static final String TEMP_DIR = ".tmp";
+	// temporary files older than this are left behind by a crash
+	private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	/**
+	 * Walks the files and keyed map directories of the layout, listing one
+	 * directory per level at a time.
+	 */
+	private class LayoutWalker implements Iterator<File> {
+		private File[][] mListings = new File[mShardDepth + 1][];
+		private int[] mPositions = new int[mShardDepth + 1];
+		private int mLevel;
+		private File mNext;
+
+		public LayoutWalker() {
+			mListings[0] = mBaseDir.listFiles();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (mNext == null && mLevel >= 0) {
+				File[] files = mListings[mLevel];
+				if (files == null || mPositions[mLevel] == files.length) {
+					mLevel--;
+					continue;
+				}
+				File file = files[mPositions[mLevel]++];
+				if (mLevel == mShardDepth) {
+					mNext = file;
+				} else if (isShardName(file.getName()) && file.isDirectory()) {
+					mLevel++;
+					mListings[mLevel] = file.listFiles();
+					mPositions[mLevel] = 0;
+				}
+			}
+			return mNext != null;
+		}
+
+		@Override
+		public File next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			File next = mNext;
+			mNext = null;
+			return next;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Writes to a temporary file which replaces the target file when the
+	 * stream is closed.
+	 */
+	private static class ReplacingOutputStream extends FilterOutputStream
+			implements IAbortable {
+		private File mTempFile;
+		private File mFile;
+		private boolean mClosed;
+
+		public ReplacingOutputStream(File tempFile, File file)
+				throws FileNotFoundException {
+			super(new FileOutputStream(tempFile));
+			this.mTempFile = tempFile;
+			this.mFile = file;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			out.write(buffer, offset, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				out.close();
+				replace(mTempFile, mFile);
+			} finally {
+				mTempFile.delete();
+			}
+		}
+
+		@Override
+		public void abort() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the temporary file is dropped anyway
+			}
+			mTempFile.delete();
+		}
+	}
+
+	/**
+	 * Appends to a file and cuts it back to its former length when the
+	 * stream is aborted.
+	 */
+	private static class AppendingOutputStream extends FilterOutputStream
+			implements IAbortable {
+		private File mFile;
+		private long mLength;
+		private boolean mClosed;
+
+		public AppendingOutputStream(File file) throws FileNotFoundException {
+			super(new FileOutputStream(file, true));
+			this.mFile = file;
+			this.mLength = file.length();
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			out.write(buffer, offset, count);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			out.close();
+		}
+
+		@Override
+		public void abort() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				out.close();
+				RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+				try {
+					file.setLength(mLength);
+				} finally {
+					file.close();
+				}
+			} catch (IOException e) {
+				// nothing more can be done for the failed append
+			}
+		}
+	}
 
 	private File mBaseDir;
+	private int mShardDepth;
+	private volatile boolean mTempDirCleaned;
 
+	/**
+	 * Creates a storage with the flat layout.
+	 */
 	public FilesystemStorage(File baseDir) {
+		this(baseDir, 0);
+	}
+
+	/**
+	 * @param shardDepth
+	 *            the number of subdirectory levels of the sharded layout, up
+	 *            to {@value #MAX_SHARD_DEPTH}, or 0 for the flat layout. A
+	 *            directory must always be opened with the same depth, values
+	 *            of the flat layout are moved by {@link #migrateFrom(File)}.
+	 */
+	public FilesystemStorage(File baseDir, int shardDepth) {
+		if (shardDepth < 0 || shardDepth > MAX_SHARD_DEPTH)
+			throw new IllegalArgumentException("Invalid shard depth "
+					+ shardDepth);
 		this.mBaseDir = baseDir;
+		this.mShardDepth = shardDepth;
 	}
 
 	@Override
 	public boolean remove(String identifier) {
-		return new File(mBaseDir, identifier).delete();
+		return getFile(identifier).delete();
 	}
 
 	@Override
 	public boolean contains(String identifier) {
-		return new File(mBaseDir, identifier).exists();
+		return getFile(identifier).exists();
 	}
 
 	@Override
 	public void storeJson(String identifier, String json) throws IOException {
-		FileWriter fw = new FileWriter(new File(mBaseDir, identifier));
-		fw.write(json);
-		fw.flush();
-		fw.close();
+		writeText(getFile(identifier), json);
+	}
+
+	@Override
+	public Writer openWriter(String identifier) throws IOException {
+		return new AbortableWriter(openOutputStream(identifier));
 	}
 
 	@Override
 	public String getJson(String identifier) throws IOException {
-		BufferedReader br = new BufferedReader(new FileReader(new File(
-				mBaseDir, identifier)));
-		StringBuilder sb = new StringBuilder();
-		String line;
-		while ((line = br.readLine()) != null) {
-			sb.append(line);
-			sb.append("\n");
-		}
-		br.close();
-		return sb.toString();
+		return readText(getFile(identifier));
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		try {
+			return new InputStreamReader(new FileInputStream(
+					getFile(identifier)), UTF8);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier)
+			throws IOException {
+		return openReplacingStream(getFile(identifier));
+	}
+
+	@Override
+	public OutputStream openAppendStream(String identifier)
+			throws IOException {
+		return new AppendingOutputStream(createFile(identifier));
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier)
+			throws IOException {
+		try {
+			return new FileInputStream(getFile(identifier));
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public CloseableIterator<String> keys() {
+		return keysWithPrefix("");
+	}
+
+	/**
+	 * Walks the base directory or all shards, the directories of keyed maps
+	 * are skipped.
+	 */
+	@Override
+	public CloseableIterator<String> keysWithPrefix(final String prefix) {
+		final LayoutWalker walker = new LayoutWalker();
+		return new KeyIterator(new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				return walker.hasNext();
+			}
+
+			@Override
+			public String next() {
+				return getIdentifier(walker.next());
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}) {
+			@Override
+			protected boolean accept(String key) {
+				return key != null && key.startsWith(prefix);
+			}
+		};
+	}
+
+	@Override
+	public long sizeOf(String identifier) {
+		File file = getFile(identifier);
+		return file.isFile() ? file.length() : -1;
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) {
+		int removed = 0;
+		LayoutWalker walker = new LayoutWalker();
+		while (walker.hasNext()) {
+			File file = walker.next();
+			String identifier = getIdentifier(file);
+			if (identifier != null) {
+				if (identifier.startsWith(prefix) && file.delete())
+					removed++;
+			} else {
+				identifier = getMapIdentifier(file);
+				if (identifier != null && identifier.startsWith(prefix))
+					removeEntries(identifier);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Moves the values and keyed maps of a directory in the flat layout into
+	 * the layout of this storage and returns the number of moved values.
+	 * Every file of the directory is taken as a value. Values this storage
+	 * already holds are kept, the flat ones are left in place. An
+	 * interrupted migration is continued by running it again.
+	 */
+	public synchronized int migrateFrom(File flatDir) throws IOException {
+		if (!flatDir.getCanonicalFile().equals(mBaseDir.getCanonicalFile()))
+			return moveFlat(flatDir);
+		if (mShardDepth == 0)
+			return 0;
+		// flat file names may be taken by shards, so the flat values are
+		// moved out of the way first
+		File[] files = mBaseDir.listFiles();
+		if (files == null)
+			return 0;
+		File migrationDir = new File(mBaseDir, MIGRATION_DIR);
+		if (!migrationDir.isDirectory() && !migrationDir.mkdir())
+			throw new IOException("Could not create directory "
+					+ migrationDir);
+		for (File file : files) {
+			if (file.isFile() || file.getName().endsWith(ENTRIES_SUFFIX))
+				move(file, new File(migrationDir, file.getName()));
+		}
+		int moved = moveFlat(migrationDir);
+		migrationDir.delete();
+		return moved;
+	}
+
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		writeText(new File(getEntriesDir(identifier), toFileName(key)), json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return readText(new File(getEntriesDir(identifier), toFileName(key)));
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key) {
+		return new File(getEntriesDir(identifier), toFileName(key)).delete();
+	}
+
+	@Override
+	public int getEntryCount(String identifier) {
+		String[] names = getEntriesDir(identifier).list();
+		return names != null ? names.length : 0;
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		Map<String, String> entries = new HashMap<String, String>();
+		File[] files = getEntriesDir(identifier).listFiles();
+		if (files == null)
+			return entries;
+		for (File file : files) {
+			String json = readText(file);
+			if (json != null)
+				entries.put(fromFileName(file.getName()), json);
+		}
+		return entries;
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) {
+		File entriesDir = getEntriesDir(identifier);
+		File[] files = entriesDir.listFiles();
+		if (files == null)
+			return false;
+		for (File file : files) {
+			file.delete();
+		}
+		entriesDir.delete();
+		return files.length > 0;
+	}
+
+	/**
+	 * Reads a value or an entry as UTF-8 text, or returns null if the file
+	 * does not exist.
+	 */
+	String readText(File file) throws IOException {
+		try {
+			return new String(readFully(new FileInputStream(file)), UTF8);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Replaces a value or an entry with the UTF-8 encoding of the text.
+	 */
+	void writeText(File file, String text) throws IOException {
+		OutputStream out = openReplacingStream(file);
+		boolean written = false;
+		try {
+			out.write(text.getBytes(UTF8));
+			out.close();
+			written = true;
+		} finally {
+			if (!written)
+				AbstractJsonStorage.abort(out);
+		}
+	}
+
+	File getFile(String identifier) {
+		if (mShardDepth == 0)
+			return new File(mBaseDir, identifier);
+		return new File(getShardDir(identifier), VALUE_PREFIX
+				+ encode(identifier));
+	}
+
+	private File getEntriesDir(String identifier) {
+		if (mShardDepth == 0)
+			return new File(mBaseDir, identifier + ENTRIES_SUFFIX);
+		return new File(getShardDir(identifier), MAP_PREFIX
+				+ encode(identifier));
+	}
+
+	/**
+	 * Returns the file of the value, creating its shard if necessary.
+	 */
+	File createFile(String identifier) throws IOException {
+		File file = getFile(identifier);
+		createParent(file);
+		return file;
+	}
+
+	private OutputStream openReplacingStream(File file) throws IOException {
+		return new ReplacingOutputStream(createTempFile(file), file);
+	}
+
+	/**
+	 * Creates an empty temporary file for a new version of the given file,
+	 * which replaces it by {@link #replace(File, File)}.
+	 */
+	File createTempFile(File file) throws IOException {
+		createParent(file);
+		File tempDir = new File(mBaseDir, TEMP_DIR);
+		if (!tempDir.isDirectory() && !tempDir.mkdirs())
+			throw new IOException("Could not create directory " + tempDir);
+		if (!mTempDirCleaned) {
+			mTempDirCleaned = true;
+			deleteStaleFiles(tempDir);
+		}
+		return File.createTempFile("value", null, tempDir);
+	}
+
+	static void replace(File tempFile, File file) throws IOException {
+		if (!tempFile.renameTo(file))
+			throw new IOException("Could not replace " + file);
+	}
+
+	private static void deleteStaleFiles(File dir) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		long staleTime = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		for (File file : files) {
+			if (file.lastModified() < staleTime)
+				file.delete();
+		}
+	}
+
+	private File getShardDir(String identifier) {
+		// spreads the bits of the string hash, which are much alike for
+		// similar identifiers
+		int hash = identifier.hashCode();
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+		File dir = mBaseDir;
+		for (int i = 0; i < mShardDepth; i++) {
+			int b = hash >>> (8 * i) & 0xff;
+			dir = new File(dir, new String(new char[] { HEX[b >>> 4],
+					HEX[b & 0xf] }));
+		}
+		return dir;
+	}
+
+	/**
+	 * Returns the identifier of a value file found by a {@link LayoutWalker}
+	 * or null if the file is no value.
+	 */
+	private String getIdentifier(File file) {
+		String name = file.getName();
+		if (mShardDepth == 0)
+			return name.equals(TEMP_DIR) || name.endsWith(ENTRIES_SUFFIX)
+					&& file.isDirectory() ? null : name;
+		return name.startsWith(VALUE_PREFIX) ? decode(name
+				.substring(VALUE_PREFIX.length())) : null;
+	}
+
+	/**
+	 * Returns the identifier of a keyed map directory found by a
+	 * {@link LayoutWalker} or null if the file is no keyed map.
+	 */
+	private String getMapIdentifier(File file) {
+		String name = file.getName();
+		if (mShardDepth == 0)
+			return name.endsWith(ENTRIES_SUFFIX) && file.isDirectory() ? name
+					.substring(0, name.length() - ENTRIES_SUFFIX.length())
+					: null;
+		return name.startsWith(MAP_PREFIX) ? decode(name.substring(MAP_PREFIX
+				.length())) : null;
+	}
+
+	private int moveFlat(File flatDir) throws IOException {
+		File[] files = flatDir.listFiles();
+		if (files == null)
+			return 0;
+		int moved = 0;
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isFile()) {
+				File target = createFile(name);
+				if (!target.exists()) {
+					move(file, target);
+					moved++;
+				}
+			} else if (name.endsWith(ENTRIES_SUFFIX)) {
+				moveEntries(file, getEntriesDir(name.substring(0,
+						name.length() - ENTRIES_SUFFIX.length())));
+			}
+		}
+		return moved;
+	}
+
+	private static void moveEntries(File entriesDir, File target)
+			throws IOException {
+		if (!target.exists()) {
+			createParent(target);
+			move(entriesDir, target);
+			return;
+		}
+		File[] files = entriesDir.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			File targetFile = new File(target, file.getName());
+			if (!targetFile.exists())
+				move(file, targetFile);
+		}
+		entriesDir.delete();
+	}
+
+	private static void move(File file, File target) throws IOException {
+		if (!file.renameTo(target))
+			throw new IOException("Could not move " + file + " to " + target);
+	}
+
+	private static void createParent(File file) throws IOException {
+		File dir = file.getParentFile();
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Could not create directory " + dir);
+	}
+
+	private static boolean isShardName(String name) {
+		return name.length() == 2 && isHex(name.charAt(0))
+				&& isHex(name.charAt(1));
+	}
+
+	private static boolean isHex(char c) {
+		return c >= '0' && c <= '9' || c >= 'a' && c <= 'f';
+	}
+
+	private static String toFileName(String key) {
+		return ENTRY_PREFIX + encode(key);
+	}
+
+	private static String fromFileName(String fileName) {
+		return decode(fileName.substring(ENTRY_PREFIX.length()));
+	}
+
+	private static String encode(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String fileName) {
+		try {
+			return URLDecoder.decode(fileName, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+/**
+ * Implemented by the streams and writers of a storage which commit the value
+ * when they are closed. An object store aborts them when writing a value
+ * fails, so the stored value stays as it was. Streams which do not implement
+ * it are closed instead, which commits what was written until the failure.
+ */
+public interface IAbortable {
+
+	/**
+	 * Discards what was written and releases the stream without committing
+	 * anything. Does nothing if the stream is closed or aborted already.
+	 * Never throws, as it is called while another exception is thrown.
+	 */
+	public void abort();
+
+}
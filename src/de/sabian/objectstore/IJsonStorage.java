@@ -16,6 +16,12 @@
 package de.sabian.objectstore;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
 
 public interface IJsonStorage {
 
@@ -26,4 +32,111 @@ public interface IJsonStorage {
 	public void storeJson(String identifier, String json) throws IOException;
 
 	public String getJson(String identifier) throws IOException;
+
+	/**
+	 * Opens a writer which replaces the value of the given identifier. The
+	 * written json is committed when the writer is closed.
+	 */
+	public Writer openWriter(String identifier) throws IOException;
+
+	/**
+	 * Opens a reader on the stored json of the given identifier or returns
+	 * null if nothing is stored for it. The caller has to close the reader.
+	 */
+	public Reader openReader(String identifier) throws IOException;
+
+	/**
+	 * Opens a stream which replaces the value of the given identifier with
+	 * raw bytes. The bytes are committed when the stream is closed. Json
+	 * stored by the text methods reads back as its UTF-8 encoding.
+	 */
+	public OutputStream openOutputStream(String identifier) throws IOException;
+
+	/**
+	 * Opens a stream on the stored bytes of the given identifier or returns
+	 * null if nothing is stored for it. The caller has to close the stream.
+	 */
+	public InputStream openInputStream(String identifier) throws IOException;
+
+	/**
+	 * Opens a stream which appends bytes to the value of the given identifier
+	 * or creates the value if nothing is stored for it. The bytes are
+	 * committed when the stream is closed.
+	 */
+	public OutputStream openAppendStream(String identifier) throws IOException;
+
+	/**
+	 * Stores all given values, preferably with a single write to the
+	 * underlying storage.
+	 */
+	public void storeAllJson(Map<String, String> values) throws IOException;
+
+	/**
+	 * Returns the stored json of all given identifiers which are contained in
+	 * this storage.
+	 */
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException;
+
+	/**
+	 * Removes all given identifiers and returns the number of removed values.
+	 */
+	public int removeAll(Collection<String> identifiers) throws IOException;
+
+	/**
+	 * Returns the identifiers of all stored values, without keyed maps. The
+	 * caller has to close the iterator.
+	 */
+	public CloseableIterator<String> keys() throws IOException;
+
+	/**
+	 * Returns the identifiers of the stored values which start with the given
+	 * prefix. The caller has to close the iterator.
+	 */
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException;
+
+	/**
+	 * Returns the number of bytes the value of the given identifier takes in
+	 * the storage, or -1 if nothing is stored for it.
+	 */
+	public long sizeOf(String identifier) throws IOException;
+
+	/**
+	 * Removes all values and keyed maps whose identifiers start with the
+	 * given prefix and returns the number of removed values.
+	 */
+	public int removeWithPrefix(String prefix) throws IOException;
+
+	/**
+	 * Stores the json of one entry of the keyed map with the given
+	 * identifier. Keyed maps are kept apart from the other values, each entry
+	 * is written and read without the rest of its map.
+	 */
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException;
+
+	/**
+	 * Returns the json of an entry of a keyed map or null if the map has no
+	 * such entry.
+	 */
+	public String getEntryJson(String identifier, String key)
+			throws IOException;
+
+	public boolean removeEntry(String identifier, String key)
+			throws IOException;
+
+	public int getEntryCount(String identifier) throws IOException;
+
+	/**
+	 * Returns the json of all entries of a keyed map by their keys.
+	 */
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException;
+
+	/**
+	 * Removes a keyed map with all its entries and returns whether it had
+	 * any.
+	 */
+	public boolean removeEntries(String identifier) throws IOException;
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Encodes the values of an {@link ObjectStoreRaw} into the bytes of an
+ * {@link IJsonStorage}. Values are written and read through the gson stream
+ * api, so a codec can store everything gson can serialize.
+ * <p>
+ * Every value is prefixed with the tag of the codec which wrote it, which
+ * selects the codec when the value is read. Json values are stored without a
+ * tag, so tags have to be bytes which can not start json text.
+ * <p>
+ * Lists which were appended to consist of several top level arrays, each
+ * written by its own writer behind the first. Readers have to read them one
+ * after the other.
+ */
+public interface IStoreCodec {
+
+	/**
+	 * Tag of codecs which write plain json text.
+	 */
+	public static final int NO_TAG = -1;
+
+	/**
+	 * Returns the tag which is written before each value, a byte between 1 and
+	 * 8, or {@link #NO_TAG}. Tag 2 is used by {@link BinaryCodec} and tag 3
+	 * by the primitive arrays of {@link ObjectStoreRaw}.
+	 */
+	public int getTag();
+
+	/**
+	 * Creates a writer on the given buffered stream, which is positioned after
+	 * the tag. Closing the writer has to close the stream.
+	 */
+	public JsonWriter newWriter(OutputStream out) throws IOException;
+
+	/**
+	 * Creates a reader on the given buffered stream, which is positioned after
+	 * the tag. Closing the reader has to close the stream.
+	 */
+	public JsonReader newReader(InputStream in) throws IOException;
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+/**
+ * Receives the measurements of an object store and of an
+ * {@link InstrumentedJsonStorage}. The methods are called on the threads
+ * which run the measured operations, so they have to be thread safe and
+ * return quickly. {@link #NONE} drops all measurements.
+ */
+public interface IStoreMetrics {
+
+	public static enum Operation {
+		STORE, STORE_ALL, APPEND, GET, GET_ALL, FILL, FIND, REMOVE, REMOVE_ALL,
+		REMOVE_WITH_PREFIX, PUT_ENTRY, GET_ENTRY, REMOVE_ENTRY, MAP_SIZE,
+		GET_MAP, REMOVE_MAP
+	}
+
+	public static enum StorageOperation {
+		CONTAINS, READ, WRITE, APPEND, REMOVE, KEYS, READ_ENTRY, WRITE_ENTRY,
+		REMOVE_ENTRY
+	}
+
+	public static final IStoreMetrics NONE = new IStoreMetrics() {
+		@Override
+		public void onOperation(Operation operation, String identifier,
+				Class<?> type, long nanos) {
+		}
+
+		@Override
+		public void onStorageOperation(StorageOperation operation,
+				String identifier, long bytes, long nanos) {
+		}
+
+		@Override
+		public void onCacheLookup(String identifier, boolean hit) {
+		}
+
+		@Override
+		public void onQueueWait(String identifier, boolean read, long nanos) {
+		}
+	};
+
+	/**
+	 * Called after an operation of an object store, including the wait for
+	 * the lock of the identifier.
+	 * 
+	 * @param identifier
+	 *            the identifier or null for operations on several
+	 *            identifiers
+	 * @param type
+	 *            the type of the stored or read value, or null if there was
+	 *            no value
+	 */
+	public void onOperation(Operation operation, String identifier,
+			Class<?> type, long nanos);
+
+	/**
+	 * Called after an operation of a storage.
+	 * 
+	 * @param identifier
+	 *            the identifier or null for operations on several
+	 *            identifiers
+	 * @param bytes
+	 *            the number of bytes read or written, chars for the text
+	 *            methods of the storage
+	 * @param nanos
+	 *            the time spent in the storage. For streams it is the time
+	 *            spent in their calls, not the time they were open.
+	 */
+	public void onStorageOperation(StorageOperation operation,
+			String identifier, long bytes, long nanos);
+
+	public void onCacheLookup(String identifier, boolean hit);
+
+	/**
+	 * Called when an asynchronous operation starts, with the time it waited
+	 * in the queue of its executor.
+	 */
+	public void onQueueWait(String identifier, boolean read, long nanos);
+
+}
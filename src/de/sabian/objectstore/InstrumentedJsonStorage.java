@@ -0,0 +1,574 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.FilterReader;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Map;
+
+import de.sabian.objectstore.IStoreMetrics.StorageOperation;
+
+/**
+ * Measures the operations of another storage and reports them to an
+ * {@link IStoreMetrics}. Streams, readers and writers report once they are
+ * closed, with the bytes or chars which passed through them.
+ */
+public class InstrumentedJsonStorage implements IJsonStorage {
+
+	/**
+	 * Counts the bytes and the time spent in the calls of the stream.
+	 */
+	private class MeteredOutputStream extends FilterOutputStream implements
+			IAbortable {
+		private final StorageOperation mOperation;
+		private final String mIdentifier;
+		private long mCount;
+		private long mNanos;
+		private boolean mClosed;
+
+		public MeteredOutputStream(OutputStream out,
+				StorageOperation operation, String identifier, long nanos) {
+			super(out);
+			mOperation = operation;
+			mIdentifier = identifier;
+			mNanos = nanos;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			long start = System.nanoTime();
+			out.write(b);
+			mNanos += System.nanoTime() - start;
+			mCount++;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			out.write(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			mCount += count;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			long start = System.nanoTime();
+			try {
+				out.close();
+			} finally {
+				mNanos += System.nanoTime() - start;
+				mMetrics.onStorageOperation(mOperation, mIdentifier, mCount,
+						mNanos);
+			}
+		}
+
+		@Override
+		public void abort() {
+			mClosed = true;
+			AbstractJsonStorage.abort(out);
+		}
+	}
+
+	private class MeteredInputStream extends FilterInputStream {
+		private final String mIdentifier;
+		private long mCount;
+		private long mNanos;
+		private boolean mClosed;
+
+		public MeteredInputStream(InputStream in, String identifier,
+				long nanos) {
+			super(in);
+			mIdentifier = identifier;
+			mNanos = nanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int b = in.read();
+			mNanos += System.nanoTime() - start;
+			if (b != -1)
+				mCount++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			int read = in.read(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			if (read > 0)
+				mCount += read;
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long start = System.nanoTime();
+			long skipped = in.skip(count);
+			mNanos += System.nanoTime() - start;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			long start = System.nanoTime();
+			try {
+				in.close();
+			} finally {
+				mNanos += System.nanoTime() - start;
+				mMetrics.onStorageOperation(StorageOperation.READ,
+						mIdentifier, mCount, mNanos);
+			}
+		}
+	}
+
+	private class MeteredWriter extends FilterWriter implements IAbortable {
+		private final String mIdentifier;
+		private long mCount;
+		private long mNanos;
+		private boolean mClosed;
+
+		public MeteredWriter(Writer out, String identifier, long nanos) {
+			super(out);
+			mIdentifier = identifier;
+			mNanos = nanos;
+		}
+
+		@Override
+		public void write(int c) throws IOException {
+			long start = System.nanoTime();
+			out.write(c);
+			mNanos += System.nanoTime() - start;
+			mCount += encodedLength((char) c);
+		}
+
+		@Override
+		public void write(char[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			out.write(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			for (int i = offset; i < offset + count; i++) {
+				mCount += encodedLength(buffer[i]);
+			}
+		}
+
+		@Override
+		public void write(String text, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			out.write(text, offset, count);
+			mNanos += System.nanoTime() - start;
+			for (int i = offset; i < offset + count; i++) {
+				mCount += encodedLength(text.charAt(i));
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			long start = System.nanoTime();
+			try {
+				out.close();
+			} finally {
+				mNanos += System.nanoTime() - start;
+				mMetrics.onStorageOperation(StorageOperation.WRITE,
+						mIdentifier, mCount, mNanos);
+			}
+		}
+
+		@Override
+		public void abort() {
+			mClosed = true;
+			AbstractJsonStorage.abort(out);
+		}
+	}
+
+	private class MeteredReader extends FilterReader {
+		private final String mIdentifier;
+		private long mCount;
+		private long mNanos;
+		private boolean mClosed;
+
+		public MeteredReader(Reader in, String identifier, long nanos) {
+			super(in);
+			mIdentifier = identifier;
+			mNanos = nanos;
+		}
+
+		@Override
+		public int read() throws IOException {
+			long start = System.nanoTime();
+			int c = in.read();
+			mNanos += System.nanoTime() - start;
+			if (c != -1)
+				mCount += encodedLength((char) c);
+			return c;
+		}
+
+		@Override
+		public int read(char[] buffer, int offset, int count)
+				throws IOException {
+			long start = System.nanoTime();
+			int read = in.read(buffer, offset, count);
+			mNanos += System.nanoTime() - start;
+			for (int i = offset; i < offset + read; i++) {
+				mCount += encodedLength(buffer[i]);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long count) throws IOException {
+			long start = System.nanoTime();
+			long skipped = in.skip(count);
+			mNanos += System.nanoTime() - start;
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			long start = System.nanoTime();
+			try {
+				in.close();
+			} finally {
+				mNanos += System.nanoTime() - start;
+				mMetrics.onStorageOperation(StorageOperation.READ,
+						mIdentifier, mCount, mNanos);
+			}
+		}
+	}
+
+	private final IJsonStorage mStorage;
+	private final IStoreMetrics mMetrics;
+
+	public InstrumentedJsonStorage(IJsonStorage storage,
+			IStoreMetrics metrics) {
+		this.mStorage = storage;
+		this.mMetrics = metrics;
+	}
+
+	public IJsonStorage getStorage() {
+		return mStorage;
+	}
+
+	public IStoreMetrics getMetrics() {
+		return mMetrics;
+	}
+
+	@Override
+	public boolean remove(String identifier) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.remove(identifier);
+		} finally {
+			report(StorageOperation.REMOVE, identifier, 0, start);
+		}
+	}
+
+	@Override
+	public boolean contains(String identifier) {
+		long start = System.nanoTime();
+		try {
+			return mStorage.contains(identifier);
+		} finally {
+			report(StorageOperation.CONTAINS, identifier, 0, start);
+		}
+	}
+
+	@Override
+	public void storeJson(String identifier, String json) throws IOException {
+		long start = System.nanoTime();
+		try {
+			mStorage.storeJson(identifier, json);
+		} finally {
+			report(StorageOperation.WRITE, identifier, encodedLength(json),
+					start);
+		}
+	}
+
+	@Override
+	public String getJson(String identifier) throws IOException {
+		long start = System.nanoTime();
+		String json = null;
+		try {
+			json = mStorage.getJson(identifier);
+			return json;
+		} finally {
+			report(StorageOperation.READ, identifier, encodedLength(json),
+					start);
+		}
+	}
+
+	@Override
+	public Writer openWriter(String identifier) throws IOException {
+		long start = System.nanoTime();
+		Writer writer = mStorage.openWriter(identifier);
+		return new MeteredWriter(writer, identifier, System.nanoTime()
+				- start);
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		long start = System.nanoTime();
+		Reader reader = mStorage.openReader(identifier);
+		if (reader == null) {
+			report(StorageOperation.READ, identifier, 0, start);
+			return null;
+		}
+		return new MeteredReader(reader, identifier, System.nanoTime()
+				- start);
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier) throws IOException {
+		long start = System.nanoTime();
+		OutputStream out = mStorage.openOutputStream(identifier);
+		return new MeteredOutputStream(out, StorageOperation.WRITE,
+				identifier, System.nanoTime() - start);
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		long start = System.nanoTime();
+		InputStream in = mStorage.openInputStream(identifier);
+		if (in == null) {
+			report(StorageOperation.READ, identifier, 0, start);
+			return null;
+		}
+		return new MeteredInputStream(in, identifier, System.nanoTime()
+				- start);
+	}
+
+	@Override
+	public OutputStream openAppendStream(String identifier) throws IOException {
+		long start = System.nanoTime();
+		OutputStream out = mStorage.openAppendStream(identifier);
+		return new MeteredOutputStream(out, StorageOperation.APPEND,
+				identifier, System.nanoTime() - start);
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		long start = System.nanoTime();
+		try {
+			mStorage.storeAllJson(values);
+		} finally {
+			report(StorageOperation.WRITE, null, encodedLength(values), start);
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		long start = System.nanoTime();
+		Map<String, String> values = null;
+		try {
+			values = mStorage.getAllJson(identifiers);
+			return values;
+		} finally {
+			report(StorageOperation.READ, null, encodedLength(values), start);
+		}
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.removeAll(identifiers);
+		} finally {
+			report(StorageOperation.REMOVE, null, 0, start);
+		}
+	}
+
+	/**
+	 * Reports the time to open the iterator, not the time to iterate it.
+	 */
+	@Override
+	public CloseableIterator<String> keys() throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.keys();
+		} finally {
+			report(StorageOperation.KEYS, null, 0, start);
+		}
+	}
+
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.keysWithPrefix(prefix);
+		} finally {
+			report(StorageOperation.KEYS, prefix, 0, start);
+		}
+	}
+
+	@Override
+	public long sizeOf(String identifier) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.sizeOf(identifier);
+		} finally {
+			report(StorageOperation.CONTAINS, identifier, 0, start);
+		}
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.removeWithPrefix(prefix);
+		} finally {
+			report(StorageOperation.REMOVE, prefix, 0, start);
+		}
+	}
+
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			mStorage.storeEntryJson(identifier, key, json);
+		} finally {
+			report(StorageOperation.WRITE_ENTRY, identifier,
+					encodedLength(json), start);
+		}
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		long start = System.nanoTime();
+		String json = null;
+		try {
+			json = mStorage.getEntryJson(identifier, key);
+			return json;
+		} finally {
+			report(StorageOperation.READ_ENTRY, identifier,
+					encodedLength(json), start);
+		}
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.removeEntry(identifier, key);
+		} finally {
+			report(StorageOperation.REMOVE_ENTRY, identifier, 0, start);
+		}
+	}
+
+	@Override
+	public int getEntryCount(String identifier) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.getEntryCount(identifier);
+		} finally {
+			report(StorageOperation.CONTAINS, identifier, 0, start);
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		long start = System.nanoTime();
+		Map<String, String> values = null;
+		try {
+			values = mStorage.getAllEntriesJson(identifier);
+			return values;
+		} finally {
+			report(StorageOperation.READ_ENTRY, identifier,
+					encodedLength(values), start);
+		}
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		long start = System.nanoTime();
+		try {
+			return mStorage.removeEntries(identifier);
+		} finally {
+			report(StorageOperation.REMOVE_ENTRY, identifier, 0, start);
+		}
+	}
+
+	private void report(StorageOperation operation, String identifier,
+			long bytes, long start) {
+		mMetrics.onStorageOperation(operation, identifier, bytes,
+				System.nanoTime() - start);
+	}
+
+	private static long encodedLength(Map<String, String> values) {
+		long length = 0;
+		if (values != null) {
+			for (String json : values.values()) {
+				length += encodedLength(json);
+			}
+		}
+		return length;
+	}
+
+	private static long encodedLength(String json) {
+		long length = 0;
+		if (json != null) {
+			for (int i = 0; i < json.length(); i++) {
+				length += encodedLength(json.charAt(i));
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Returns the number of UTF-8 bytes of the char. Each half of a surrogate
+	 * pair counts two of the four bytes of its code point, so text written
+	 * in pieces adds up to its encoded length.
+	 */
+	private static int encodedLength(char c) {
+		if (c < 0x80)
+			return 1;
+		if (c < 0x800 || c >= Character.MIN_SURROGATE
+				&& c <= Character.MAX_SURROGATE)
+			return 2;
+		return 3;
+	}
+
+}
@@ -15,12 +15,27 @@
  */
 package de.sabian.objectstore;
 
+import java.io.File;
+
 import android.content.Context;
 
 public class InternalFilesystemStorage extends FilesystemStorage {
 
+	public static final String SHARDED_DIRECTORY = "objectstore";
+
 	public InternalFilesystemStorage(Context context) {
 		super(context.getFilesDir());
 	}
 
+	/**
+	 * Creates a storage with the sharded layout in the directory
+	 * {@value #SHARDED_DIRECTORY} of the internal files. The values of the
+	 * flat layout are moved there by
+	 * {@code migrateFrom(context.getFilesDir())}, which takes every file of
+	 * the internal files as a value.
+	 */
+	public InternalFilesystemStorage(Context context, int shardDepth) {
+		super(new File(context.getFilesDir(), SHARDED_DIRECTORY), shardDepth);
+	}
+
 }
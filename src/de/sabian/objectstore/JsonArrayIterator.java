@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Iterates the elements of a stored list, including the segments which were
+ * appended behind its first array.
+ */
+class JsonArrayIterator<T> implements CloseableIterator<T> {
+
+	private Gson mGson;
+	private JsonReader mReader;
+	private Class<T> mClassOfElements;
+	private boolean mClosed;
+
+	public JsonArrayIterator(Gson gson, JsonReader reader,
+			Class<T> classOfElements) throws IOException {
+		this.mGson = gson;
+		this.mReader = reader;
+		this.mClassOfElements = classOfElements;
+		try {
+			mReader.beginArray();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (mClosed)
+			return false;
+		try {
+			while (!mReader.hasNext()) {
+				mReader.endArray();
+				if (peekSegment(mReader) != JsonToken.BEGIN_ARRAY) {
+					close();
+					return false;
+				}
+				mReader.beginArray();
+			}
+			return true;
+		} catch (IOException e) {
+			closeQuietly();
+			throw new JsonIOException(e);
+		}
+	}
+
+	@Override
+	public T next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		return mGson.fromJson(mReader, mClassOfElements);
+	}
+
+	/**
+	 * Skips the next element without binding it.
+	 */
+	public void skip() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		try {
+			mReader.skipValue();
+		} catch (IOException e) {
+			closeQuietly();
+			throw new JsonIOException(e);
+		}
+	}
+
+	/**
+	 * Peeks the top level value behind a list segment, which is either the
+	 * next appended segment or the end of the document. A strict reader
+	 * rejects any second top level value, so it is lenient for this peek
+	 * only and anything but an array is still malformed.
+	 */
+	static JsonToken peekSegment(JsonReader reader) throws IOException {
+		reader.setLenient(true);
+		JsonToken token = reader.peek();
+		reader.setLenient(false);
+		if (token != JsonToken.BEGIN_ARRAY && token != JsonToken.END_DOCUMENT)
+			throw new MalformedJsonException(
+					"Expected an appended list but was " + token);
+		return token;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!mClosed) {
+			mClosed = true;
+			mReader.close();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			// the failure which caused the close is thrown instead
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Stores values as UTF-8 encoded json text without a tag, which is the format
+ * of values written by earlier versions.
+ */
+public class JsonCodec implements IStoreCodec {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	@Override
+	public int getTag() {
+		return NO_TAG;
+	}
+
+	@Override
+	public JsonWriter newWriter(OutputStream out) {
+		return new JsonWriter(new OutputStreamWriter(out, UTF8));
+	}
+
+	@Override
+	public JsonReader newReader(InputStream in) {
+		return new JsonReader(new InputStreamReader(in, UTF8));
+	}
+
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.IOException;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.internal.JsonReaderInternalAccess;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Reads maps stored as an array of {"key":..,"value":..} objects or, for
+ * simple keys, as a single object whose names are the keys.
+ */
+class JsonMapIterator<T, X> implements CloseableIterator<Entry<T, X>> {
+
+	private Gson mGson;
+	private JsonReader mReader;
+	private Class<T> mClassOfKeys;
+	private Class<X> mClassOfValues;
+	private boolean mObjectLayout;
+	private boolean mClosed;
+
+	public JsonMapIterator(Gson gson, JsonReader reader, Class<T> classOfKeys,
+			Class<X> classOfValues) throws IOException {
+		this.mGson = gson;
+		this.mReader = reader;
+		this.mClassOfKeys = classOfKeys;
+		this.mClassOfValues = classOfValues;
+		try {
+			mObjectLayout = mReader.peek() == JsonToken.BEGIN_OBJECT;
+			if (mObjectLayout)
+				mReader.beginObject();
+			else
+				mReader.beginArray();
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (mClosed)
+			return false;
+		try {
+			if (mReader.hasNext())
+				return true;
+			if (mObjectLayout)
+				mReader.endObject();
+			else
+				mReader.endArray();
+			close();
+			return false;
+		} catch (IOException e) {
+			closeQuietly();
+			throw new JsonIOException(e);
+		}
+	}
+
+	@Override
+	public Entry<T, X> next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		try {
+			if (mObjectLayout) {
+				T key = nextKey();
+				X value = mGson.fromJson(mReader, mClassOfValues);
+				return new SimpleImmutableEntry<T, X>(key, value);
+			}
+			mReader.beginObject();
+			String name = mReader.nextName();
+			if (!name.equals("key"))
+				throw new IOException("expected name key but found: " + name);
+			T key = mGson.fromJson(mReader, mClassOfKeys);
+			name = mReader.nextName();
+			if (!name.equals("value"))
+				throw new IOException("expected name value but found: "
+						+ name);
+			X value = mGson.fromJson(mReader, mClassOfValues);
+			mReader.endObject();
+			return new SimpleImmutableEntry<T, X>(key, value);
+		} catch (IOException e) {
+			closeQuietly();
+			throw new JsonIOException(e);
+		}
+	}
+
+	private T nextKey() throws IOException {
+		if (mClassOfKeys == String.class)
+			return mClassOfKeys.cast(mReader.nextName());
+		// read the name as a value, like gson does for map keys
+		JsonReaderInternalAccess.INSTANCE.promoteNameToValue(mReader);
+		return mGson.fromJson(mReader, mClassOfKeys);
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (!mClosed) {
+			mClosed = true;
+			mReader.close();
+		}
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException e) {
+			// the failure which caused the close is thrown instead
+		}
+	}
+
+}
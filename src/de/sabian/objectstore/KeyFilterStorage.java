@@ -0,0 +1,324 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a bloom filter of the identifiers of another storage, so lookups of
+ * identifiers which are not stored return without touching the storage.
+ * <p>
+ * The filter is stored in the storage as {@value #FILTER_IDENTIFIER} by
+ * {@link #close()} and removed again when the storage is opened, so it is
+ * rebuilt from {@link IJsonStorage#keys()} if the storage was not closed. The
+ * key listings of this storage leave it out.
+ * <p>
+ * A filter which fills beyond its capacity is not replaced while the storage
+ * is open, as writes in progress may not be listed by the storage yet.
+ * Instead a filter sized for twice the identifiers of the existing ones is
+ * added, which takes all further identifiers, and lookups check every
+ * filter. {@link #close()} merges them into a single filter built from the
+ * stored identifiers. Lookups do not lock.
+ * <p>
+ * Removes leave their identifiers in the filter until it is rebuilt, which
+ * happens when the storage is opened with a filter that is filled beyond its
+ * capacity. The new filter is sized for twice the stored identifiers. All
+ * writes have to go through this storage, writes which bypass it are not
+ * seen by the filter.
+ */
+public class KeyFilterStorage implements IJsonStorage, Closeable {
+
+	public static final String FILTER_IDENTIFIER = ".keyfilter";
+	private static final double FALSE_POSITIVE_RATE = 0.01;
+
+	private IJsonStorage mStorage;
+	private int mExpectedKeys;
+	// the newest filter takes the adds, replaced as a whole when it grows
+	private volatile BloomFilter[] mFilters;
+	private boolean mClosed;
+
+	/**
+	 * @param expectedKeys
+	 *            the least number of identifiers a new filter is sized for
+	 */
+	public KeyFilterStorage(IJsonStorage storage, int expectedKeys)
+			throws IOException {
+		this.mStorage = storage;
+		this.mExpectedKeys = expectedKeys;
+		BloomFilter filter = readFilter();
+		if (filter == null || filter.isSaturated())
+			filter = buildFilter();
+		this.mFilters = new BloomFilter[] { filter };
+	}
+
+	@Override
+	public boolean remove(String identifier) throws IOException {
+		return mightContain(identifier)
+				&& mStorage.remove(identifier);
+	}
+
+	@Override
+	public boolean contains(String identifier) {
+		return mightContain(identifier)
+				&& mStorage.contains(identifier);
+	}
+
+	@Override
+	public void storeJson(String identifier, String json) throws IOException {
+		add(identifier);
+		mStorage.storeJson(identifier, json);
+	}
+
+	@Override
+	public String getJson(String identifier) throws IOException {
+		return mightContain(identifier) ? mStorage
+				.getJson(identifier) : null;
+	}
+
+	@Override
+	public Writer openWriter(String identifier) throws IOException {
+		add(identifier);
+		return mStorage.openWriter(identifier);
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		return mightContain(identifier) ? mStorage
+				.openReader(identifier) : null;
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier)
+			throws IOException {
+		add(identifier);
+		return mStorage.openOutputStream(identifier);
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		return mightContain(identifier) ? mStorage
+				.openInputStream(identifier) : null;
+	}
+
+	@Override
+	public OutputStream openAppendStream(String identifier)
+			throws IOException {
+		add(identifier);
+		return mStorage.openAppendStream(identifier);
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		for (String identifier : values.keySet()) {
+			add(identifier);
+		}
+		mStorage.storeAllJson(values);
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		return mStorage.getAllJson(filter(identifiers));
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		return mStorage.removeAll(filter(identifiers));
+	}
+
+	@Override
+	public CloseableIterator<String> keys() throws IOException {
+		return valueKeys(mStorage.keys());
+	}
+
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException {
+		return valueKeys(mStorage.keysWithPrefix(prefix));
+	}
+
+	@Override
+	public long sizeOf(String identifier) throws IOException {
+		return mightContain(identifier) ? mStorage.sizeOf(identifier)
+				: -1;
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		return mStorage.removeWithPrefix(prefix);
+	}
+
+	/**
+	 * Keyed maps are passed through, the filter only holds values.
+	 */
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		mStorage.storeEntryJson(identifier, key, json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return mStorage.getEntryJson(identifier, key);
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		return mStorage.removeEntry(identifier, key);
+	}
+
+	@Override
+	public int getEntryCount(String identifier) throws IOException {
+		return mStorage.getEntryCount(identifier);
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		return mStorage.getAllEntriesJson(identifier);
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		return mStorage.removeEntries(identifier);
+	}
+
+	/**
+	 * Stores the filter. The storage must not be written afterwards.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (mClosed)
+			return;
+		mClosed = true;
+		// no writes are in progress any more, so the grown filters can be
+		// replaced by one built from the stored identifiers
+		BloomFilter filter = mFilters.length == 1 ? mFilters[0]
+				: buildFilter();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				mStorage.openOutputStream(FILTER_IDENTIFIER)));
+		try {
+			filter.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private boolean mightContain(String identifier) {
+		BloomFilter[] filters = mFilters;
+		for (int i = filters.length - 1; i >= 0; i--) {
+			if (filters[i].mightContain(identifier))
+				return true;
+		}
+		return false;
+	}
+
+	private synchronized void add(String identifier) throws IOException {
+		if (mClosed)
+			throw new IOException("storage already closed");
+		BloomFilter[] filters = mFilters;
+		BloomFilter filter = filters[filters.length - 1];
+		if (filter.isSaturated()) {
+			long capacity = 0;
+			for (BloomFilter f : filters) {
+				capacity += f.getCapacity(FALSE_POSITIVE_RATE);
+			}
+			filter = new BloomFilter((int) Math.min(Integer.MAX_VALUE,
+					capacity * 2), FALSE_POSITIVE_RATE);
+			BloomFilter[] grown = Arrays.copyOf(filters, filters.length + 1);
+			grown[filters.length] = filter;
+			mFilters = grown;
+		}
+		filter.add(identifier);
+	}
+
+	/**
+	 * Hides the stored filter, which is part of the keyspace of the storage.
+	 */
+	private static CloseableIterator<String> valueKeys(
+			CloseableIterator<String> keys) {
+		return new KeyIterator(keys) {
+			@Override
+			protected boolean accept(String key) {
+				return !FILTER_IDENTIFIER.equals(key);
+			}
+		};
+	}
+
+	private Collection<String> filter(Collection<String> identifiers) {
+		List<String> filtered = new ArrayList<String>();
+		for (String identifier : identifiers) {
+			if (mightContain(identifier))
+				filtered.add(identifier);
+		}
+		return filtered;
+	}
+
+	/**
+	 * Reads the stored filter and removes it, so it is not used again once
+	 * the storage was written without being closed.
+	 */
+	private BloomFilter readFilter() throws IOException {
+		InputStream in = mStorage.openInputStream(FILTER_IDENTIFIER);
+		if (in == null)
+			return null;
+		try {
+			return BloomFilter.readFrom(new DataInputStream(
+					new BufferedInputStream(in)));
+		} catch (IOException e) {
+			// a damaged filter is rebuilt
+			return null;
+		} finally {
+			in.close();
+			mStorage.remove(FILTER_IDENTIFIER);
+		}
+	}
+
+	private BloomFilter buildFilter() throws IOException {
+		List<String> identifiers = new ArrayList<String>();
+		CloseableIterator<String> keys = mStorage.keys();
+		try {
+			while (keys.hasNext()) {
+				identifiers.add(keys.next());
+			}
+		} finally {
+			keys.close();
+		}
+		BloomFilter filter = new BloomFilter(Math.max(mExpectedKeys,
+				identifiers.size() * 2), FALSE_POSITIVE_RATE);
+		for (String identifier : identifiers) {
+			filter.add(identifier);
+		}
+		return filter;
+	}
+
+}
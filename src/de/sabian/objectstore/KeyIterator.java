@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterates the identifiers of a storage which are accepted by
+ * {@link #accept(String)}, all of them by default. Closing it closes the
+ * wrapped iterator if that is closeable.
+ */
+class KeyIterator implements CloseableIterator<String> {
+
+	private Iterator<String> mKeys;
+	private String mNext;
+
+	public KeyIterator(Iterator<String> keys) {
+		this.mKeys = keys;
+	}
+
+	@Override
+	public boolean hasNext() {
+		while (mNext == null && mKeys.hasNext()) {
+			String key = mKeys.next();
+			if (accept(key))
+				mNext = key;
+		}
+		return mNext != null;
+	}
+
+	@Override
+	public String next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		String next = mNext;
+		mNext = null;
+		return next;
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (mKeys instanceof Closeable)
+			((Closeable) mKeys).close();
+	}
+
+	protected boolean accept(String key) {
+		return true;
+	}
+
+}
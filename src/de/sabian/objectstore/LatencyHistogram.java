@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts latencies in buckets of powers of two nanoseconds. Recording is
+ * lock free, percentiles are the upper bounds of their buckets, so they are
+ * at most twice the exact value.
+ */
+public class LatencyHistogram {
+
+	private static final int BUCKETS = 64;
+
+	private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong mTotalNanos = new AtomicLong();
+	private final AtomicLong mMaxNanos = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		mCounts.incrementAndGet(bucketOf(nanos));
+		mTotalNanos.addAndGet(nanos);
+		long max;
+		while ((max = mMaxNanos.get()) < nanos
+				&& !mMaxNanos.compareAndSet(max, nanos)) {
+		}
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			count += mCounts.get(i);
+		}
+		return count;
+	}
+
+	public long getTotalNanos() {
+		return mTotalNanos.get();
+	}
+
+	public long getMaxNanos() {
+		return mMaxNanos.get();
+	}
+
+	public long getMeanNanos() {
+		long count = getCount();
+		return count == 0 ? 0 : mTotalNanos.get() / count;
+	}
+
+	/**
+	 * Returns the latency which the given share of the recorded latencies,
+	 * between 0 and 1, does not exceed.
+	 */
+	public long getPercentileNanos(double share) {
+		long[] counts = getBucketCounts();
+		long total = 0;
+		for (long count : counts) {
+			total += count;
+		}
+		long rank = (long) Math.ceil(share * total);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts[i];
+			if (seen >= rank && counts[i] > 0)
+				return Math.min(upperBoundOf(i), mMaxNanos.get());
+		}
+		return 0;
+	}
+
+	/**
+	 * Returns the counts of the buckets. Bucket 0 holds latencies of 0, bucket
+	 * i latencies from 2^(i-1) up to 2^i - 1 nanoseconds.
+	 */
+	public long[] getBucketCounts() {
+		long[] counts = new long[BUCKETS];
+		for (int i = 0; i < BUCKETS; i++) {
+			counts[i] = mCounts.get(i);
+		}
+		return counts;
+	}
+
+	@Override
+	public String toString() {
+		return "count: " + getCount() + ", mean: " + getMeanNanos()
+				+ "ns, p50: " + getPercentileNanos(0.5) + "ns, p99: "
+				+ getPercentileNanos(0.99) + "ns, max: " + getMaxNanos() + "ns";
+	}
+
+	private static int bucketOf(long nanos) {
+		return BUCKETS - Long.numberOfLeadingZeros(nanos);
+	}
+
+	private static long upperBoundOf(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+
+}
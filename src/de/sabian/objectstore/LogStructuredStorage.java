@@ -0,0 +1,711 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps all values in a single append-only data file. Every store appends a
+ * record, every remove appends a tombstone, and an in-memory index maps each
+ * identifier to the position of its latest value, so reads need a single
+ * positioned read. The index is saved to a hint file on {@link #close()} and
+ * compaction, which makes reopening fast; records appended after the hint was
+ * written are replayed from the data file. A torn record at the end of the
+ * data file is dropped on opening, a corrupt record before it fails the open.
+ * <p>
+ * Overwritten and removed records are reclaimed by a compaction on a
+ * background thread, which starts once the dead records take more space than
+ * the live ones and at least compactionThreshold bytes.
+ * <p>
+ * Entries of keyed maps are records of their own, keyed by the identifier of
+ * the map and the key of the entry. The index is sorted, so the entries of a
+ * map are found by a range lookup.
+ */
+public class LogStructuredStorage extends AbstractJsonStorage implements
+		Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Logger LOG = Logger
+			.getLogger(LogStructuredStorage.class.getName());
+	private static final String DATA_FILE = "data.log";
+	private static final String HINT_FILE = "data.hint";
+	private static final int HINT_VERSION = 1;
+	private static final byte TYPE_PUT = 1;
+	private static final byte TYPE_DELETE = 2;
+	// type, key length, value length and crc
+	private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+	// separates the identifier of a keyed map from the keys of its entries
+	private static final char ENTRY_SEPARATOR = '\u0000';
+
+	private static class Location {
+		private final long mValueOffset;
+		private final int mValueLength;
+		private final int mRecordLength;
+
+		public Location(long valueOffset, int valueLength, int recordLength) {
+			this.mValueOffset = valueOffset;
+			this.mValueLength = valueLength;
+			this.mRecordLength = recordLength;
+		}
+	}
+
+	private File mDirectory;
+	private long mCompactionThreshold;
+	private RandomAccessFile mFile;
+	private FileChannel mChannel;
+	private long mLength;
+	private long mDeadBytes;
+	// replaced as a whole by compaction, as contains and keys read it
+	// without a lock
+	private volatile ConcurrentNavigableMap<String, Location> mIndex;
+	// serializes appends, held by compaction while it swaps the files
+	private final ReentrantLock mAppendLock = new ReentrantLock();
+	// reads hold the read lock, swapping the data file the write lock
+	private final ReentrantReadWriteLock mFileLock =
+			new ReentrantReadWriteLock();
+	private ExecutorService mCompactionExecutor;
+	private boolean mCompactionScheduled;
+	private boolean mClosed;
+
+	public LogStructuredStorage(File directory) throws IOException {
+		this(directory, 4 * 1024 * 1024);
+	}
+
+	public LogStructuredStorage(File directory, long compactionThreshold)
+			throws IOException {
+		this.mDirectory = directory;
+		this.mCompactionThreshold = compactionThreshold;
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory " + directory);
+		mIndex = new ConcurrentSkipListMap<String, Location>();
+		mCompactionExecutor = Executors
+				.newSingleThreadExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "LogStructuredStorage");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		open();
+	}
+
+	@Override
+	public boolean remove(String identifier) throws IOException {
+		return removeAll(Collections.singleton(identifier)) == 1;
+	}
+
+	@Override
+	public boolean contains(String identifier) {
+		return mIndex.containsKey(identifier);
+	}
+
+	@Override
+	public void storeJson(String identifier, String json) throws IOException {
+		append(Collections.singletonMap(identifier, json));
+	}
+
+	@Override
+	public String getJson(String identifier) throws IOException {
+		byte[] value = readValue(identifier);
+		return value != null ? new String(value, UTF8) : null;
+	}
+
+	@Override
+	public Writer openWriter(String identifier) {
+		return new AbortableWriter(openOutputStream(identifier));
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		InputStream in = openInputStream(identifier);
+		return in != null ? new InputStreamReader(in, UTF8) : null;
+	}
+
+	/**
+	 * The value is collected in memory and appended as one record when the
+	 * stream is closed.
+	 */
+	@Override
+	public OutputStream openOutputStream(final String identifier) {
+		return new BufferedValueStream() {
+			@Override
+			protected void commit() throws IOException {
+				appendRecords(Collections.singletonList(record(TYPE_PUT,
+						identifier, toByteArray())));
+			}
+		};
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		byte[] value = readValue(identifier);
+		return value != null ? new ByteArrayInputStream(value) : null;
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		append(values);
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>();
+		mAppendLock.lock();
+		try {
+			for (String identifier : identifiers) {
+				if (mIndex.containsKey(identifier))
+					records.add(record(TYPE_DELETE, identifier, new byte[0]));
+			}
+			appendRecords(records);
+		} finally {
+			mAppendLock.unlock();
+		}
+		return records.size();
+	}
+
+	@Override
+	public CloseableIterator<String> keys() {
+		return valueKeys(mIndex.keySet());
+	}
+
+	/**
+	 * Iterates the key range of the prefix in the sorted index.
+	 */
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix) {
+		return valueKeys(getPrefixIndex(prefix).keySet());
+	}
+
+	@Override
+	public long sizeOf(String identifier) {
+		Location location = mIndex.get(identifier);
+		return location != null ? location.mValueLength : -1;
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		List<String> identifiers = new ArrayList<String>(getPrefixIndex(
+				prefix).keySet());
+		int values = 0;
+		for (String identifier : identifiers) {
+			if (identifier.indexOf(ENTRY_SEPARATOR) == -1)
+				values++;
+		}
+		removeAll(identifiers);
+		return values;
+	}
+
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		storeJson(entryIdentifier(identifier, key), json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return getJson(entryIdentifier(identifier, key));
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		return remove(entryIdentifier(identifier, key));
+	}
+
+	@Override
+	public int getEntryCount(String identifier) {
+		return getEntryIndex(identifier).size();
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		Map<String, String> entries = new HashMap<String, String>();
+		int prefixLength = identifier.length() + 1;
+		for (String entryIdentifier : getEntryIndex(identifier).keySet()) {
+			String json = getJson(entryIdentifier);
+			if (json != null)
+				entries.put(entryIdentifier.substring(prefixLength), json);
+		}
+		return entries;
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		return removeAll(new ArrayList<String>(getEntryIndex(identifier)
+				.keySet())) > 0;
+	}
+
+	/**
+	 * Rewrites the data file with the live records only. Runs in the calling
+	 * thread, stores and removes are blocked only while the files are swapped.
+	 */
+	public synchronized void compact() throws IOException {
+		if (mClosed)
+			throw new IOException("Storage is closed");
+		File compactFile = new File(mDirectory, DATA_FILE + ".compact");
+		Map<String, Location> snapshot;
+		long snapshotLength;
+		mAppendLock.lock();
+		try {
+			snapshot = new HashMap<String, Location>(mIndex);
+			snapshotLength = mLength;
+		} finally {
+			mAppendLock.unlock();
+		}
+
+		Map<String, Location> compactIndex = new HashMap<String, Location>();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(compactFile)));
+		long compactLength = 0;
+		try {
+			for (Entry<String, Location> entry : snapshot.entrySet()) {
+				byte[] value = readAt(entry.getValue());
+				byte[] record = record(TYPE_PUT, entry.getKey(), value);
+				out.write(record);
+				compactIndex.put(entry.getKey(), new Location(compactLength
+						+ record.length - value.length, value.length,
+						record.length));
+				compactLength += record.length;
+			}
+
+			mAppendLock.lock();
+			try {
+				// copy what was appended while the snapshot was copied
+				long deadBytes = 0;
+				DataInputStream in = openDataStream(snapshotLength);
+				try {
+					long offset = snapshotLength;
+					while (offset < mLength) {
+						byte[] record = readRecord(in, mLength - offset);
+						Location previous = applyRecord(compactIndex, record,
+								compactLength);
+						if (previous != null)
+							deadBytes += previous.mRecordLength;
+						if (record[0] == TYPE_DELETE)
+							deadBytes += record.length;
+						out.write(record);
+						offset += record.length;
+						compactLength += record.length;
+					}
+				} finally {
+					in.close();
+				}
+				out.close();
+
+				mFileLock.writeLock().lock();
+				try {
+					// the hint describes the old data file, it must not be
+					// applied to the new one after a crash
+					File hintFile = new File(mDirectory, HINT_FILE);
+					if (!hintFile.delete() && hintFile.exists())
+						throw new IOException("Could not delete " + hintFile);
+					mChannel.close();
+					mFile.close();
+					File dataFile = new File(mDirectory, DATA_FILE);
+					if (!compactFile.renameTo(dataFile))
+						throw new IOException("Could not replace " + dataFile);
+					openDataFile();
+					mIndex = new ConcurrentSkipListMap<String, Location>(
+							compactIndex);
+					mDeadBytes = deadBytes;
+				} finally {
+					mFileLock.writeLock().unlock();
+				}
+				writeHint();
+			} finally {
+				mAppendLock.unlock();
+			}
+		} finally {
+			out.close();
+			compactFile.delete();
+		}
+	}
+
+	public long getDeadBytes() {
+		return mDeadBytes;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (mClosed)
+			return;
+		mClosed = true;
+		mCompactionExecutor.shutdown();
+		mAppendLock.lock();
+		try {
+			writeHint();
+			mChannel.close();
+			mFile.close();
+		} finally {
+			mAppendLock.unlock();
+		}
+	}
+
+	private void open() throws IOException {
+		openDataFile();
+		long replayFrom = readHint();
+		DataInputStream in = openDataStream(replayFrom);
+		long offset = replayFrom;
+		try {
+			while (offset < mLength) {
+				byte[] record;
+				try {
+					record = readRecord(in, mLength - offset);
+				} catch (EOFException e) {
+					// a torn write at the end of the log, drop it
+					break;
+				} catch (IOException e) {
+					// the records behind it are intact, keep them for a
+					// repair instead of truncating the log
+					throw new IOException("Corrupt record at offset " + offset
+							+ " of " + new File(mDirectory, DATA_FILE), e);
+				}
+				Location previous = applyRecord(mIndex, record, offset);
+				if (previous != null)
+					mDeadBytes += previous.mRecordLength;
+				if (record[0] == TYPE_DELETE)
+					mDeadBytes += record.length;
+				offset += record.length;
+			}
+		} finally {
+			in.close();
+		}
+		if (offset < mLength) {
+			mChannel.truncate(offset);
+			mLength = offset;
+		}
+	}
+
+	private void openDataFile() throws IOException {
+		mFile = new RandomAccessFile(new File(mDirectory, DATA_FILE), "rw");
+		mChannel = mFile.getChannel();
+		mLength = mChannel.size();
+	}
+
+	private DataInputStream openDataStream(long offset) throws IOException {
+		FileInputStream fis = new FileInputStream(new File(mDirectory,
+				DATA_FILE));
+		fis.getChannel().position(offset);
+		return new DataInputStream(new BufferedInputStream(fis, 64 * 1024));
+	}
+
+	/**
+	 * Loads the index from the hint file and returns the offset up to which
+	 * it covers the data file. A damaged hint file is ignored, lengths and
+	 * offsets are checked against the files before they are used.
+	 */
+	private long readHint() {
+		File hintFile = new File(mDirectory, HINT_FILE);
+		if (!hintFile.exists())
+			return 0;
+		long hintLength = hintFile.length();
+		Map<String, Location> index = new HashMap<String, Location>();
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(hintFile), 64 * 1024));
+			try {
+				if (in.readInt() != HINT_VERSION)
+					return 0;
+				long coveredLength = in.readLong();
+				long deadBytes = in.readLong();
+				int count = in.readInt();
+				if (coveredLength > mLength)
+					return 0;
+				for (int i = 0; i < count; i++) {
+					int keyLength = in.readInt();
+					if (keyLength < 0 || keyLength > hintLength)
+						throw new IOException("Corrupt hint");
+					byte[] key = new byte[keyLength];
+					in.readFully(key);
+					Location location = new Location(in.readLong(),
+							in.readInt(), in.readInt());
+					if (location.mValueOffset < 0 || location.mValueLength < 0
+							|| location.mRecordLength < location.mValueLength
+							|| location.mValueOffset + location.mValueLength
+									> coveredLength)
+						throw new IOException("Corrupt hint");
+					index.put(new String(key, UTF8), location);
+				}
+				mIndex.putAll(index);
+				mDeadBytes = deadBytes;
+				return coveredLength;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// fall back to scanning the whole data file
+			mIndex.clear();
+			mDeadBytes = 0;
+			return 0;
+		}
+	}
+
+	private void writeHint() throws IOException {
+		File tmpFile = new File(mDirectory, HINT_FILE + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(tmpFile), 64 * 1024));
+		try {
+			out.writeInt(HINT_VERSION);
+			out.writeLong(mLength);
+			out.writeLong(mDeadBytes);
+			out.writeInt(mIndex.size());
+			for (Entry<String, Location> entry : mIndex.entrySet()) {
+				byte[] key = entry.getKey().getBytes(UTF8);
+				out.writeInt(key.length);
+				out.write(key);
+				out.writeLong(entry.getValue().mValueOffset);
+				out.writeInt(entry.getValue().mValueLength);
+				out.writeInt(entry.getValue().mRecordLength);
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmpFile.renameTo(new File(mDirectory, HINT_FILE)))
+			throw new IOException("Could not write hint file");
+	}
+
+	private void append(Map<String, String> values) throws IOException {
+		List<byte[]> records = new ArrayList<byte[]>(values.size());
+		for (Entry<String, String> entry : values.entrySet()) {
+			records.add(record(TYPE_PUT, entry.getKey(), entry.getValue()
+					.getBytes(UTF8)));
+		}
+		appendRecords(records);
+	}
+
+	/**
+	 * Appends the records with a single write and updates the index.
+	 */
+	private void appendRecords(List<byte[]> records) throws IOException {
+		if (records.isEmpty())
+			return;
+		int size = 0;
+		for (byte[] record : records) {
+			size += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for (byte[] record : records) {
+			buffer.put(record);
+		}
+		((Buffer) buffer).flip();
+
+		mAppendLock.lock();
+		try {
+			long offset = mLength;
+			while (buffer.hasRemaining()) {
+				mChannel.write(buffer, offset + buffer.position());
+			}
+			for (byte[] record : records) {
+				Location previous = applyRecord(mIndex, record, offset);
+				if (previous != null)
+					mDeadBytes += previous.mRecordLength;
+				if (record[0] == TYPE_DELETE)
+					mDeadBytes += record.length;
+				offset += record.length;
+			}
+			mLength = offset;
+			if (mDeadBytes > mCompactionThreshold
+					&& mDeadBytes > mLength - mDeadBytes)
+				scheduleCompaction();
+		} finally {
+			mAppendLock.unlock();
+		}
+	}
+
+	private void scheduleCompaction() {
+		if (mCompactionScheduled || mCompactionExecutor.isShutdown())
+			return;
+		mCompactionScheduled = true;
+		mCompactionExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					synchronized (LogStructuredStorage.this) {
+						if (!mClosed)
+							compact();
+					}
+				} catch (IOException e) {
+					// the log stays as it was, compaction is tried again
+					// once more records are dead
+					LOG.log(Level.WARNING, "Compacting " + mDirectory
+							+ " failed", e);
+				} finally {
+					mAppendLock.lock();
+					mCompactionScheduled = false;
+					mAppendLock.unlock();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Applies a record at the given offset to the index and returns the
+	 * location it replaced.
+	 */
+	private static Location applyRecord(Map<String, Location> index,
+			byte[] record, long offset) {
+		ByteBuffer buffer = ByteBuffer.wrap(record);
+		byte type = buffer.get();
+		int keyLength = buffer.getInt();
+		int valueLength = buffer.getInt();
+		String key = new String(record, HEADER_SIZE, keyLength, UTF8);
+		if (type == TYPE_PUT)
+			return index.put(key, new Location(offset + HEADER_SIZE
+					+ keyLength, valueLength, record.length));
+		else
+			return index.remove(key);
+	}
+
+	private static byte[] record(byte type, String identifier, byte[] value) {
+		byte[] key = identifier.getBytes(UTF8);
+		CRC32 crc = new CRC32();
+		crc.update(key);
+		crc.update(value);
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + key.length
+				+ value.length);
+		buffer.put(type);
+		buffer.putInt(key.length);
+		buffer.putInt(value.length);
+		buffer.putInt((int) crc.getValue());
+		buffer.put(key);
+		buffer.put(value);
+		return buffer.array();
+	}
+
+	/**
+	 * Reads the next complete record and verifies its checksum. Lengths
+	 * which exceed the remaining bytes of the data file are rejected before
+	 * anything is allocated.
+	 * 
+	 * @throws EOFException
+	 *             if the record is cut short by the end of the file, or it
+	 *             is the last record and its checksum does not match, as a
+	 *             torn write leaves it
+	 * @throws IOException
+	 *             if the record is corrupt
+	 */
+	private static byte[] readRecord(DataInputStream in, long remaining)
+			throws IOException {
+		byte type = in.readByte();
+		int keyLength = in.readInt();
+		int valueLength = in.readInt();
+		int checksum = in.readInt();
+		if ((type != TYPE_PUT && type != TYPE_DELETE) || keyLength < 0
+				|| valueLength < 0)
+			throw new IOException("Corrupt record");
+		long length = (long) HEADER_SIZE + keyLength + valueLength;
+		if (length > remaining)
+			throw new EOFException("Truncated record");
+		byte[] record = new byte[(int) length];
+		in.readFully(record, HEADER_SIZE, keyLength + valueLength);
+		CRC32 crc = new CRC32();
+		crc.update(record, HEADER_SIZE, keyLength + valueLength);
+		if ((int) crc.getValue() != checksum) {
+			if (length == remaining)
+				throw new EOFException("Torn record");
+			throw new IOException("Corrupt record");
+		}
+		ByteBuffer.wrap(record).put(type).putInt(keyLength)
+				.putInt(valueLength).putInt(checksum);
+		return record;
+	}
+
+	private static String entryIdentifier(String identifier, String key) {
+		return identifier + ENTRY_SEPARATOR + key;
+	}
+
+	private Map<String, Location> getPrefixIndex(String prefix) {
+		String end = prefixEnd(prefix);
+		return end != null ? mIndex.subMap(prefix, end) : mIndex
+				.tailMap(prefix);
+	}
+
+	private static CloseableIterator<String> valueKeys(Set<String> keys) {
+		return new KeyIterator(keys.iterator()) {
+			@Override
+			protected boolean accept(String key) {
+				return key.indexOf(ENTRY_SEPARATOR) == -1;
+			}
+		};
+	}
+
+	private Map<String, Location> getEntryIndex(String identifier) {
+		return mIndex.subMap(identifier + ENTRY_SEPARATOR,
+				identifier + (char) (ENTRY_SEPARATOR + 1));
+	}
+
+	private byte[] readValue(String identifier) throws IOException {
+		mFileLock.readLock().lock();
+		try {
+			Location location = mIndex.get(identifier);
+			return location != null ? readAt(location) : null;
+		} finally {
+			mFileLock.readLock().unlock();
+		}
+	}
+
+	private byte[] readAt(Location location) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(location.mValueLength);
+		long position = location.mValueOffset;
+		while (buffer.hasRemaining()) {
+			if (mChannel.read(buffer, position + buffer.position()) == -1)
+				throw new EOFException();
+		}
+		return buffer.array();
+	}
+
+}
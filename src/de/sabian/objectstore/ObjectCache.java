@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Bounded LRU cache for values read by an {@link ObjectStoreRaw}. Entries are
+ * keyed by identifier and requested type and limited by count as well as by
+ * an estimated size, which is derived from the length of the stored json.
+ */
+public class ObjectCache {
+
+	public static enum Policy {
+		/**
+		 * The parsed json tree is cached and every read binds fresh objects,
+		 * so callers may modify what they get.
+		 */
+		COPY_ON_READ,
+		/**
+		 * The bound objects are cached and handed out to every reader. Only
+		 * use this for values which are never modified after reading.
+		 * Collections and maps are copied, their elements are shared.
+		 */
+		SHARED
+	}
+
+	private static class CacheKey {
+		private final String mIdentifier;
+		private final String mTypeKey;
+
+		public CacheKey(String identifier, String typeKey) {
+			this.mIdentifier = identifier;
+			this.mTypeKey = typeKey;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * mIdentifier.hashCode() + mTypeKey.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof CacheKey))
+				return false;
+			CacheKey other = (CacheKey) o;
+			return mIdentifier.equals(other.mIdentifier)
+					&& mTypeKey.equals(other.mTypeKey);
+		}
+	}
+
+	private static class CacheEntry {
+		private final Object mValue;
+		private final long mSize;
+
+		public CacheEntry(Object value, long size) {
+			this.mValue = value;
+			this.mSize = size;
+		}
+	}
+
+	private int mMaxEntries;
+	private long mMaxBytes;
+	private Policy mPolicy;
+	private LinkedHashMap<CacheKey, CacheEntry> mEntries;
+	private Map<String, Set<CacheKey>> mKeysByIdentifier;
+	private long mBytes;
+	private long mInvalidations;
+	private long mHitCount;
+	private long mMissCount;
+	private long mEvictionCount;
+
+	public ObjectCache(int maxEntries, long maxBytes, Policy policy) {
+		if (maxEntries <= 0 || maxBytes <= 0)
+			throw new IllegalArgumentException(
+					"maxEntries and maxBytes have to be positive");
+		this.mMaxEntries = maxEntries;
+		this.mMaxBytes = maxBytes;
+		this.mPolicy = policy;
+		this.mEntries = new LinkedHashMap<CacheKey, CacheEntry>(16, 0.75f, true);
+		this.mKeysByIdentifier = new HashMap<String, Set<CacheKey>>();
+	}
+
+	public Policy getPolicy() {
+		return mPolicy;
+	}
+
+	public synchronized Object get(String identifier, String typeKey) {
+		CacheEntry entry = mEntries.get(new CacheKey(identifier, typeKey));
+		if (entry != null) {
+			mHitCount++;
+			return entry.mValue;
+		} else {
+			mMissCount++;
+			return null;
+		}
+	}
+
+	/**
+	 * Returns a stamp which has to be passed to
+	 * {@link #put(String, String, Object, long, long)} for a value loaded
+	 * afterwards. Values loaded while an invalidation happened are dropped.
+	 */
+	public synchronized long beginLoad() {
+		return mInvalidations;
+	}
+
+	public synchronized void put(String identifier, String typeKey,
+			Object value, long size, long stamp) {
+		if (value == null || stamp != mInvalidations || size > mMaxBytes)
+			return;
+		CacheKey key = new CacheKey(identifier, typeKey);
+		CacheEntry previous = mEntries.put(key, new CacheEntry(value, size));
+		if (previous != null)
+			mBytes -= previous.mSize;
+		mBytes += size;
+		Set<CacheKey> keys = mKeysByIdentifier.get(identifier);
+		if (keys == null) {
+			keys = new HashSet<CacheKey>();
+			mKeysByIdentifier.put(identifier, keys);
+		}
+		keys.add(key);
+		trim();
+	}
+
+	public synchronized void invalidate(String identifier) {
+		mInvalidations++;
+		Set<CacheKey> keys = mKeysByIdentifier.remove(identifier);
+		if (keys != null) {
+			for (CacheKey key : keys) {
+				mBytes -= mEntries.remove(key).mSize;
+			}
+		}
+	}
+
+	public synchronized void invalidateWithPrefix(String prefix) {
+		mInvalidations++;
+		Iterator<Map.Entry<String, Set<CacheKey>>> it = mKeysByIdentifier
+				.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Set<CacheKey>> entry = it.next();
+			if (entry.getKey().startsWith(prefix)) {
+				for (CacheKey key : entry.getValue()) {
+					mBytes -= mEntries.remove(key).mSize;
+				}
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		mInvalidations++;
+		mEntries.clear();
+		mKeysByIdentifier.clear();
+		mBytes = 0;
+	}
+
+	public synchronized CacheStats getStats() {
+		return new CacheStats(mHitCount, mMissCount, mEvictionCount,
+				mEntries.size(), mBytes);
+	}
+
+	private void trim() {
+		Iterator<Map.Entry<CacheKey, CacheEntry>> iterator = mEntries
+				.entrySet().iterator();
+		while ((mEntries.size() > mMaxEntries || mBytes > mMaxBytes)
+				&& iterator.hasNext()) {
+			Map.Entry<CacheKey, CacheEntry> eldest = iterator.next();
+			iterator.remove();
+			mBytes -= eldest.getValue().mSize;
+			String identifier = eldest.getKey().mIdentifier;
+			Set<CacheKey> keys = mKeysByIdentifier.get(identifier);
+			keys.remove(eldest.getKey());
+			if (keys.isEmpty())
+				mKeysByIdentifier.remove(identifier);
+			mEvictionCount++;
+		}
+	}
+
+}
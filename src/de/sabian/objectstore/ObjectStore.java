@@ -19,6 +19,7 @@ import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 
 import android.content.Context;
@@ -83,6 +84,53 @@ public class ObjectStore extends ObjectStoreRaw {
 		}
 	}
 
+	public <T> boolean appendToList(String identifier, Collection<T> elements) {
+		try {
+			return super.appendToList(identifier, elements);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public boolean compactList(String identifier) {
+		try {
+			return super.compactList(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public void addIndex(String identifier, String field) {
+		try {
+			super.addIndex(identifier, field);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public void removeIndex(String identifier, String field) {
+		try {
+			super.removeIndex(identifier, field);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public <T> List<T> findBy(String identifier, String field, Object value,
+			Class<T> classOfElements) {
+		try {
+			return super.findBy(identifier, field, value, classOfElements);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 	public <T> Set<T> getSet(String identifier, Class<T> classOfElements) {
 		try {
 			return super.getSet(identifier, classOfElements);
@@ -121,6 +169,189 @@ public class ObjectStore extends ObjectStoreRaw {
 		}
 	}
 
+	public <T, X> boolean putInMap(String identifier, T key, X value) {
+		try {
+			return super.putInMap(identifier, key, value);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public <T, X> X getFromMap(String identifier, T key,
+			Class<X> classOfValues) {
+		try {
+			return super.getFromMap(identifier, key, classOfValues);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public <T> boolean removeFromMap(String identifier, T key) {
+		try {
+			return super.removeFromMap(identifier, key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public int mapSize(String identifier) {
+		try {
+			return super.mapSize(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	public <T, X> Map<T, X> getKeyedMap(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues) {
+		try {
+			return super.getKeyedMap(identifier, classOfKeys, classOfValues);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public boolean removeKeyedMap(String identifier) {
+		try {
+			return super.removeKeyedMap(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public boolean storeIntArray(String identifier, int[] values) {
+		try {
+			return super.storeIntArray(identifier, values);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public int[] getIntArray(String identifier) {
+		try {
+			return super.getIntArray(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public boolean storeLongArray(String identifier, long[] values) {
+		try {
+			return super.storeLongArray(identifier, values);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public long[] getLongArray(String identifier) {
+		try {
+			return super.getLongArray(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public boolean storeDoubleArray(String identifier, double[] values) {
+		try {
+			return super.storeDoubleArray(identifier, values);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	public double[] getDoubleArray(String identifier) {
+		try {
+			return super.getDoubleArray(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public int storeAll(Map<String, ?> objects) {
+		try {
+			return super.storeAll(objects);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	public <T> Map<String, T> getAll(Collection<String> identifiers,
+			Class<T> clazz) {
+		try {
+			return super.getAll(identifiers, clazz);
+		} catch (JsonSyntaxException e) {
+			e.printStackTrace();
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public int removeAll(Collection<String> identifiers) {
+		try {
+			return super.removeAll(identifiers);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
+	public CloseableIterator<String> keys() {
+		try {
+			return super.keys();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public CloseableIterator<String> keysWithPrefix(String prefix) {
+		try {
+			return super.keysWithPrefix(prefix);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public long sizeOf(String identifier) {
+		try {
+			return super.sizeOf(identifier);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+	}
+
+	public int removeWithPrefix(String prefix) {
+		try {
+			return super.removeWithPrefix(prefix);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return 0;
+		}
+	}
+
 	public <T> boolean fillCollection(String identifier, Class<T> clazz,
 			Collection<T> collection) {
 		try {
@@ -142,4 +373,24 @@ public class ObjectStore extends ObjectStoreRaw {
 
 	}
 
+	public <T> CloseableIterator<T> iterate(String identifier,
+			Class<T> classOfElements) {
+		try {
+			return super.iterate(identifier, classOfElements);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public <T, X> CloseableIterator<Entry<T, X>> iterateMap(String identifier,
+			Class<T> classOfKeys, Class<X> classOfValues) {
+		try {
+			return super.iterateMap(identifier, classOfKeys, classOfValues);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Array;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Stores primitive arrays packed in little endian byte order: the tag, the
+ * element type, the element count as a four byte integer and the elements.
+ * Elements are converted in chunks through NIO buffers, without boxing.
+ */
+final class PackedArrays {
+
+	static final int TAG = 0x03;
+	static final int TYPE_INT = 1;
+	static final int TYPE_LONG = 2;
+	static final int TYPE_DOUBLE = 3;
+
+	private static final int CHUNK_SIZE = 64 * 1024;
+	private static final int HEADER_SIZE = 1 + 1 + 4;
+
+	private PackedArrays() {
+	}
+
+	public static void write(OutputStream out, Object array)
+			throws IOException {
+		int type = typeOf(array);
+		int length = Array.getLength(array);
+		int elementSize = elementSize(type);
+		ByteBuffer buffer = ByteBuffer.allocate(
+				(int) Math.max(HEADER_SIZE,
+						Math.min(CHUNK_SIZE, (long) length * elementSize)))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.put((byte) TAG).put((byte) type).putInt(length);
+		out.write(buffer.array(), 0, buffer.position());
+
+		int chunkLength = buffer.capacity() / elementSize;
+		for (int offset = 0; offset < length; offset += chunkLength) {
+			int count = Math.min(chunkLength, length - offset);
+			((Buffer) buffer).clear();
+			switch (type) {
+			case TYPE_INT:
+				buffer.asIntBuffer().put((int[]) array, offset, count);
+				break;
+			case TYPE_LONG:
+				buffer.asLongBuffer().put((long[]) array, offset, count);
+				break;
+			default:
+				buffer.asDoubleBuffer().put((double[]) array, offset, count);
+			}
+			out.write(buffer.array(), 0, count * elementSize);
+		}
+	}
+
+	/**
+	 * Reads an array of the given type from a stream which is positioned
+	 * after the tag.
+	 */
+	public static Object read(InputStream in, int type) throws IOException {
+		byte[] header = new byte[HEADER_SIZE - 1];
+		readFully(in, header, header.length);
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header).order(
+				ByteOrder.LITTLE_ENDIAN);
+		int storedType = headerBuffer.get();
+		int length = headerBuffer.getInt();
+		if (storedType != type)
+			throw new IOException("Expected an array of " + typeName(type)
+					+ " but was " + typeName(storedType));
+		if (length < 0)
+			throw new IOException("Invalid array length " + length);
+
+		int elementSize = elementSize(type);
+		ByteBuffer buffer = ByteBuffer.allocate(
+				(int) Math.max(elementSize,
+						Math.min(CHUNK_SIZE, (long) length * elementSize)))
+				.order(ByteOrder.LITTLE_ENDIAN);
+		int chunkLength = buffer.capacity() / elementSize;
+		// grown as the elements arrive, so a damaged length fails at the end
+		// of the stream instead of allocating the whole array up front
+		Object array = newArray(type, Math.min(length, chunkLength));
+		for (int offset = 0; offset < length; offset += chunkLength) {
+			int count = Math.min(chunkLength, length - offset);
+			readFully(in, buffer.array(), count * elementSize);
+			if (offset + count > Array.getLength(array))
+				array = resize(type, array,
+						(int) Math.min(length, 2L * (offset + count)));
+			((Buffer) buffer).clear();
+			switch (type) {
+			case TYPE_INT:
+				buffer.asIntBuffer().get((int[]) array, offset, count);
+				break;
+			case TYPE_LONG:
+				buffer.asLongBuffer().get((long[]) array, offset, count);
+				break;
+			default:
+				buffer.asDoubleBuffer().get((double[]) array, offset, count);
+			}
+		}
+		return array;
+	}
+
+	/**
+	 * Reads a json array of numbers, as written by storeList and appendToList,
+	 * into an array of the given type.
+	 */
+	public static Object read(JsonReader reader, int type) throws IOException {
+		Object array = newArray(type, 16);
+		int length = 0;
+		reader.beginArray();
+		while (reader.hasNext() || nextSegment(reader)) {
+			if (length == Array.getLength(array))
+				array = resize(type, array, length * 2);
+			switch (type) {
+			case TYPE_INT:
+				((int[]) array)[length++] = reader.nextInt();
+				break;
+			case TYPE_LONG:
+				((long[]) array)[length++] = reader.nextLong();
+				break;
+			default:
+				((double[]) array)[length++] = reader.nextDouble();
+			}
+		}
+		return resize(type, array, length);
+	}
+
+	/**
+	 * Moves the reader to the first element of the next appended array,
+	 * returns false if there is none.
+	 */
+	private static boolean nextSegment(JsonReader reader) throws IOException {
+		reader.endArray();
+		while (JsonArrayIterator.peekSegment(reader)
+				== JsonToken.BEGIN_ARRAY) {
+			reader.beginArray();
+			if (reader.hasNext())
+				return true;
+			reader.endArray();
+		}
+		return false;
+	}
+
+	private static Object resize(int type, Object array, int length) {
+		switch (type) {
+		case TYPE_INT:
+			return Arrays.copyOf((int[]) array, length);
+		case TYPE_LONG:
+			return Arrays.copyOf((long[]) array, length);
+		default:
+			return Arrays.copyOf((double[]) array, length);
+		}
+	}
+
+	private static Object newArray(int type, int length) {
+		switch (type) {
+		case TYPE_INT:
+			return new int[length];
+		case TYPE_LONG:
+			return new long[length];
+		default:
+			return new double[length];
+		}
+	}
+
+	private static int typeOf(Object array) {
+		if (array instanceof int[])
+			return TYPE_INT;
+		if (array instanceof long[])
+			return TYPE_LONG;
+		if (array instanceof double[])
+			return TYPE_DOUBLE;
+		throw new IllegalArgumentException("Unsupported array "
+				+ array.getClass());
+	}
+
+	private static int elementSize(int type) {
+		return type == TYPE_INT ? 4 : 8;
+	}
+
+	private static String typeName(int type) {
+		switch (type) {
+		case TYPE_INT:
+			return "int";
+		case TYPE_LONG:
+			return "long";
+		case TYPE_DOUBLE:
+			return "double";
+		default:
+			return "unknown type " + type;
+		}
+	}
+
+	private static void readFully(InputStream in, byte[] buffer, int count)
+			throws IOException {
+		int offset = 0;
+		while (offset < count) {
+			int read = in.read(buffer, offset, count - offset);
+			if (read == -1)
+				throw new EOFException();
+			offset += read;
+		}
+	}
+
+}
@@ -15,19 +15,58 @@
  */
 package de.sabian.objectstore;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 
-public class SQLiteStorage implements IJsonStorage {
+/**
+ * Stores values as optionally deflate compressed BLOBs, json as UTF-8. Values
+ * are split into chunks of {@value #CHUNK_SIZE} bytes which are written and
+ * read one at a time, so large values neither have to fit into a cursor window
+ * nor into memory as a whole. Every entry of a keyed map is a row of its own.
+ * Every rewrite of a value increments its version, a stream which reads a
+ * value fails if the value is replaced meanwhile.
+ */
+public class SQLiteStorage extends AbstractJsonStorage implements Closeable {
+
+	public static final int CHUNK_SIZE = 256 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int ENCODING_PLAIN = 0;
+	private static final int ENCODING_DEFLATE = 1;
+	// stays below the default limit of 999 host parameters per statement
+	private static final int MAX_QUERY_PARAMETERS = 500;
 
 	private class SQLiteStorageOpenHelper extends SQLiteOpenHelper {
-		public static final int DATABASE_VERSION = 1;
-		private static final String SQL_CREATE_TABLE = "CREATE TABLE key_value_store (key TEXT PRIMARY KEY, value TEXT)";
+		public static final int DATABASE_VERSION = 4;
+		private static final String SQL_CREATE_TABLE = "CREATE TABLE key_value_store (key TEXT PRIMARY KEY, encoding INTEGER NOT NULL, length INTEGER NOT NULL, version INTEGER NOT NULL DEFAULT 0)";
+		private static final String SQL_CREATE_CHUNK_TABLE = "CREATE TABLE value_chunks (key TEXT NOT NULL, chunk INTEGER NOT NULL, data BLOB NOT NULL, PRIMARY KEY (key, chunk))";
+		private static final String SQL_CREATE_ENTRY_TABLE = "CREATE TABLE map_entries (key TEXT NOT NULL, entry TEXT NOT NULL, value TEXT NOT NULL, PRIMARY KEY (key, entry))";
 
 		public SQLiteStorageOpenHelper(Context context, String dbFilename) {
 			super(context, dbFilename, null, DATABASE_VERSION);
@@ -36,72 +75,841 @@ public class SQLiteStorage implements IJsonStorage {
 		@Override
 		public void onCreate(SQLiteDatabase db) {
 			db.execSQL(SQL_CREATE_TABLE);
+			db.execSQL(SQL_CREATE_CHUNK_TABLE);
+			db.execSQL(SQL_CREATE_ENTRY_TABLE);
 		}
 
 		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2) {
+				db.execSQL("ALTER TABLE key_value_store RENAME TO key_value_store_v1");
+				onCreate(db);
+				migrateTextValues(db);
+				db.execSQL("DROP TABLE key_value_store_v1");
+				return;
+			}
+			if (oldVersion < 3)
+				db.execSQL(SQL_CREATE_ENTRY_TABLE);
+			if (oldVersion < 4)
+				db.execSQL("ALTER TABLE key_value_store ADD COLUMN version INTEGER NOT NULL DEFAULT 0");
+		}
+
+		/**
+		 * Copies the TEXT values of version 1 chunk by chunk. substr() works
+		 * on bytes for BLOBs, so no value has to be loaded as a whole.
+		 */
+		private void migrateTextValues(SQLiteDatabase db) {
+			SQLiteStatement insertChunk = db
+					.compileStatement("INSERT INTO value_chunks (key, chunk, data) SELECT key, ?, substr(CAST(value AS BLOB), ?, ?) FROM key_value_store_v1 WHERE key = ?");
+			Cursor c = db
+					.rawQuery(
+							"SELECT key, length(CAST(value AS BLOB)) FROM key_value_store_v1 WHERE value IS NOT NULL",
+							null);
+			while (c.moveToNext()) {
+				String key = c.getString(0);
+				long length = c.getLong(1);
+				long chunk = 0;
+				for (long offset = 0; offset < length; offset += CHUNK_SIZE) {
+					insertChunk.bindLong(1, chunk++);
+					insertChunk.bindLong(2, offset + 1);
+					insertChunk.bindLong(3, CHUNK_SIZE);
+					insertChunk.bindString(4, key);
+					insertChunk.executeInsert();
+				}
+				db.execSQL(
+						"INSERT INTO key_value_store (key, encoding, length) VALUES (?, ?, ?)",
+						new Object[] { key, ENCODING_PLAIN, length });
+			}
+			c.close();
+			insertChunk.close();
+		}
+	}
+
+	/**
+	 * Writes a value within a transaction which is committed on close and
+	 * rolled back on abort. The write lock is held from construction until
+	 * then. When appending to a plain value, the written bytes are added as
+	 * further chunks and the version stays the same.
+	 */
+	private class ChunkOutputStream extends OutputStream implements IAbortable {
+		private SQLiteDatabase mDb;
+		private String mIdentifier;
+		private int mEncoding;
+		private boolean mAppend;
+		private byte[] mBuffer;
+		private int mCount;
+		private int mChunk;
+		private long mLength;
+		private boolean mClosed;
+
+		public ChunkOutputStream(String identifier, int encoding,
+				boolean append) {
+			this.mIdentifier = identifier;
+			this.mEncoding = encoding;
+			this.mBuffer = new byte[CHUNK_SIZE];
+			mWriteLock.lock();
+			try {
+				mDb = getDatabase();
+				mDb.beginTransaction();
+			} catch (RuntimeException e) {
+				mWriteLock.unlock();
+				throw e;
+			}
+			try {
+				mAppend = append && continuePlainValue();
+				if (!mAppend) {
+					mDeleteChunksStatement.bindString(1, identifier);
+					mDeleteChunksStatement.executeUpdateDelete();
+				}
+			} catch (RuntimeException e) {
+				mDb.endTransaction();
+				mWriteLock.unlock();
+				throw e;
+			}
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (mCount == mBuffer.length)
+				writeChunk();
+			mBuffer[mCount++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (mCount == mBuffer.length)
+					writeChunk();
+				int n = Math.min(len, mBuffer.length - mCount);
+				System.arraycopy(b, off, mBuffer, mCount, n);
+				mCount += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				if (mCount > 0)
+					writeChunk();
+				mInsertValueStatement.bindString(1, mIdentifier);
+				mInsertValueStatement.bindLong(2, mEncoding);
+				mInsertValueStatement.bindLong(3, mLength);
+				mInsertValueStatement.bindString(4, mIdentifier);
+				mInsertValueStatement.bindLong(5, mAppend ? 0 : 1);
+				if (mInsertValueStatement.executeInsert() == -1)
+					throw new IOException("Error while writing to database");
+				mDb.setTransactionSuccessful();
+			} finally {
+				mDb.endTransaction();
+				mWriteLock.unlock();
+			}
+		}
+
+		@Override
+		public void abort() {
+			if (mClosed)
+				return;
+			mClosed = true;
+			try {
+				mDb.endTransaction();
+			} finally {
+				mWriteLock.unlock();
+			}
+		}
+
+		/**
+		 * Positions this stream behind the stored plain value, returns false
+		 * if there is none.
+		 */
+		private boolean continuePlainValue() {
+			Cursor c = mDb.rawQuery(
+					"SELECT length, (SELECT COUNT(*) FROM value_chunks WHERE key = ?) FROM key_value_store WHERE key = ? AND encoding = ?",
+					new String[] { mIdentifier, mIdentifier,
+							String.valueOf(ENCODING_PLAIN) });
+			try {
+				if (!c.moveToFirst())
+					return false;
+				mLength = c.getLong(0);
+				mChunk = c.getInt(1);
+				return true;
+			} finally {
+				c.close();
+			}
+		}
+
+		private void writeChunk() throws IOException {
+			byte[] data = mCount == mBuffer.length ? mBuffer : Arrays.copyOf(
+					mBuffer, mCount);
+			mInsertChunkStatement.bindString(1, mIdentifier);
+			mInsertChunkStatement.bindLong(2, mChunk);
+			mInsertChunkStatement.bindBlob(3, data);
+			if (mInsertChunkStatement.executeInsert() == -1)
+				throw new IOException("Error while writing to database");
+			mLength += mCount;
+			mCount = 0;
+			mChunk++;
+		}
+	}
+
+	/**
+	 * Compresses a value into a chunk stream, which is rolled back on abort.
+	 */
+	private static class DeflatingChunkOutputStream extends
+			DeflaterOutputStream implements IAbortable {
+		public DeflatingChunkOutputStream(ChunkOutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void abort() {
+			def.end();
+			((ChunkOutputStream) out).abort();
+		}
+	}
+
+	/**
+	 * Reads a value one chunk at a time. Every chunk is only read together
+	 * with the version of the value at the time the stream was opened, so a
+	 * value replaced meanwhile fails instead of mixing two versions. Chunks
+	 * appended meanwhile are not read.
+	 */
+	private class ChunkInputStream extends InputStream {
+		private String mIdentifier;
+		private long mVersion;
+		private long mRemaining;
+		private byte[] mChunk;
+		private int mPosition;
+		private int mNextChunk;
+
+		public ChunkInputStream(String identifier, long length, long version) {
+			this.mIdentifier = identifier;
+			this.mRemaining = length;
+			this.mVersion = version;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!ensureChunk())
+				return -1;
+			return mChunk[mPosition++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0)
+				return 0;
+			if (!ensureChunk())
+				return -1;
+			int n = Math.min(len, mChunk.length - mPosition);
+			System.arraycopy(mChunk, mPosition, b, off, n);
+			mPosition += n;
+			return n;
+		}
+
+		private boolean ensureChunk() throws IOException {
+			while (mChunk == null || mPosition == mChunk.length) {
+				if (mRemaining == 0)
+					return false;
+				Cursor c = getDatabase().rawQuery(
+						"SELECT c.data FROM value_chunks c, key_value_store v WHERE c.key = ? AND c.chunk = ? AND v.key = c.key AND v.version = ?",
+						new String[] { mIdentifier, String.valueOf(mNextChunk),
+								String.valueOf(mVersion) });
+				try {
+					if (!c.moveToFirst())
+						throw new IOException("Value " + mIdentifier
+								+ " was replaced while it was read");
+					mChunk = c.getBlob(0);
+				} finally {
+					c.close();
+				}
+				if (mChunk.length > mRemaining)
+					mChunk = Arrays.copyOf(mChunk, (int) mRemaining);
+				mRemaining -= mChunk.length;
+				mPosition = 0;
+				mNextChunk++;
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Iterates the keys of a range query, row by row.
+	 */
+	private static class CursorKeyIterator implements
+			CloseableIterator<String> {
+		private Cursor mCursor;
+		private boolean mHasNext;
+
+		public CursorKeyIterator(Cursor cursor) {
+			this.mCursor = cursor;
+			this.mHasNext = cursor.moveToFirst();
+		}
+
+		@Override
+		public boolean hasNext() {
+			return mHasNext;
+		}
+
+		@Override
+		public String next() {
+			if (!mHasNext)
+				throw new NoSuchElementException();
+			String key = mCursor.getString(0);
+			mHasNext = mCursor.moveToNext();
+			return key;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			mHasNext = false;
+			mCursor.close();
 		}
 	}
 
 	private Context mContext;
 	private String mDbFilename;
+	private boolean mCompress;
+	private SQLiteStorageOpenHelper mOpenHelper;
 	private SQLiteDatabase mDatabase;
+	private SQLiteStatement mContainsStatement;
+	private SQLiteStatement mEncodingStatement;
+	private SQLiteStatement mLengthStatement;
+	private SQLiteStatement mEntryStatement;
+	private SQLiteStatement mEntryCountStatement;
+	// the write statements are only used while holding mWriteLock
+	private final ReentrantLock mWriteLock = new ReentrantLock();
+	private SQLiteStatement mInsertValueStatement;
+	private SQLiteStatement mInsertChunkStatement;
+	private SQLiteStatement mDeleteValueStatement;
+	private SQLiteStatement mDeleteChunksStatement;
+	private SQLiteStatement mInsertEntryStatement;
+	private SQLiteStatement mDeleteEntryStatement;
+	private SQLiteStatement mDeleteEntriesStatement;
 
 	public SQLiteStorage(Context context, String dbFilename) {
+		this(context, dbFilename, false);
+	}
+
+	/**
+	 * @param compress
+	 *            whether new values are deflate compressed. Values written
+	 *            with the other setting stay readable.
+	 */
+	public SQLiteStorage(Context context, String dbFilename, boolean compress) {
 		this.mContext = context;
 		this.mDbFilename = dbFilename + ".objectstore.sqlite";
+		this.mCompress = compress;
 	}
 
-	private SQLiteDatabase getDatabase() {
+	/**
+	 * Returns the connection of this storage, which is opened on first use
+	 * and kept open until {@link #close()}. Write-ahead logging is enabled,
+	 * so reads are not blocked by a running write.
+	 */
+	private synchronized SQLiteDatabase getDatabase() {
 		if (mDatabase != null && mDatabase.isOpen())
 			return mDatabase;
-		else
-			return new SQLiteStorageOpenHelper(mContext, mDbFilename)
-					.getWritableDatabase();
+		mOpenHelper = new SQLiteStorageOpenHelper(mContext, mDbFilename);
+		mDatabase = mOpenHelper.getWritableDatabase();
+		mDatabase.enableWriteAheadLogging();
+		mContainsStatement = mDatabase
+				.compileStatement("SELECT COUNT(*) FROM key_value_store WHERE key = ?");
+		mEncodingStatement = mDatabase
+				.compileStatement("SELECT encoding FROM key_value_store WHERE key = ?");
+		mLengthStatement = mDatabase
+				.compileStatement("SELECT length FROM key_value_store WHERE key = ?");
+		mInsertValueStatement = mDatabase
+				.compileStatement("INSERT OR REPLACE INTO key_value_store (key, encoding, length, version) VALUES (?, ?, ?, COALESCE((SELECT version FROM key_value_store WHERE key = ?), 0) + ?)");
+		mInsertChunkStatement = mDatabase
+				.compileStatement("INSERT INTO value_chunks (key, chunk, data) VALUES (?, ?, ?)");
+		mDeleteValueStatement = mDatabase
+				.compileStatement("DELETE FROM key_value_store WHERE key = ?");
+		mDeleteChunksStatement = mDatabase
+				.compileStatement("DELETE FROM value_chunks WHERE key = ?");
+		mEntryStatement = mDatabase
+				.compileStatement("SELECT value FROM map_entries WHERE key = ? AND entry = ?");
+		mEntryCountStatement = mDatabase
+				.compileStatement("SELECT COUNT(*) FROM map_entries WHERE key = ?");
+		mInsertEntryStatement = mDatabase
+				.compileStatement("INSERT OR REPLACE INTO map_entries (key, entry, value) VALUES (?, ?, ?)");
+		mDeleteEntryStatement = mDatabase
+				.compileStatement("DELETE FROM map_entries WHERE key = ? AND entry = ?");
+		mDeleteEntriesStatement = mDatabase
+				.compileStatement("DELETE FROM map_entries WHERE key = ?");
+		return mDatabase;
+	}
+
+	/**
+	 * Closes the connection and its cached statements. The storage reopens
+	 * the connection when it is used again.
+	 */
+	@Override
+	public synchronized void close() {
+		if (mDatabase != null) {
+			mContainsStatement.close();
+			mEncodingStatement.close();
+			mLengthStatement.close();
+			mInsertValueStatement.close();
+			mInsertChunkStatement.close();
+			mDeleteValueStatement.close();
+			mDeleteChunksStatement.close();
+			mEntryStatement.close();
+			mEntryCountStatement.close();
+			mInsertEntryStatement.close();
+			mDeleteEntryStatement.close();
+			mDeleteEntriesStatement.close();
+			mOpenHelper.close();
+			mDatabase = null;
+			mOpenHelper = null;
+		}
 	}
 
 	public void closeDatabase() {
-		if (mDatabase != null && mDatabase.isOpen())
-			mDatabase.close();
+		close();
 	}
 
 	@Override
 	public boolean remove(String identifier) throws IOException {
-		return getDatabase().delete("key_value_store", "key = ?",
-				new String[] { identifier }) == 1;
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = getDatabase();
+			db.beginTransaction();
+			try {
+				boolean removed = deleteValue(identifier);
+				db.setTransactionSuccessful();
+				return removed;
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
 	}
 
 	@Override
 	public boolean contains(String identifier) {
-		Cursor c = getDatabase().query("key_value_store",
-				new String[] { "key" }, "key = ?", new String[] { identifier },
-				null, null, null, "1");
-		boolean contained = c.getCount() == 1;
-		c.close();
-		return contained;
+		getDatabase();
+		synchronized (mContainsStatement) {
+			mContainsStatement.bindString(1, identifier);
+			return mContainsStatement.simpleQueryForLong() == 1;
+		}
 	}
 
 	@Override
 	public void storeJson(String identifier, String json) throws IOException {
-		ContentValues values = new ContentValues();
-		values.put("key", identifier);
-		values.put("value", json);
-		if (getDatabase().insertWithOnConflict("key_value_store", null, values,
-				SQLiteDatabase.CONFLICT_REPLACE) == -1) {
-			throw new IOException("Error while writing to database");
+		Writer writer = openWriter(identifier);
+		boolean written = false;
+		try {
+			writer.write(json);
+			writer.close();
+			written = true;
+		} finally {
+			if (!written)
+				abort(writer);
 		}
 	}
 
 	@Override
 	public String getJson(String identifier) throws IOException {
-		Cursor c = getDatabase().query("key_value_store",
-				new String[] { "value" }, "key = ?",
-				new String[] { identifier }, null, null, null, "1");
-		String value = null;
-		if (c.moveToFirst()) {
-			value = c.getString(0);
-		}
-		c.close();
-		return value;
+		Reader reader = openReader(identifier);
+		if (reader == null)
+			return null;
+		try {
+			StringBuilder sb = new StringBuilder();
+			char[] buffer = new char[8192];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, read);
+			}
+			return sb.toString();
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Override
+	public Writer openWriter(String identifier) {
+		return new AbortableWriter(openOutputStream(identifier));
+	}
+
+	@Override
+	public Reader openReader(String identifier) {
+		InputStream in = openInputStream(identifier);
+		return in != null ? new InputStreamReader(in, UTF8) : null;
+	}
+
+	@Override
+	public OutputStream openOutputStream(String identifier) {
+		if (mCompress)
+			return new DeflatingChunkOutputStream(new ChunkOutputStream(
+					identifier, ENCODING_DEFLATE, false));
+		else
+			return new ChunkOutputStream(identifier, ENCODING_PLAIN, false);
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) {
+		Cursor c = getDatabase().rawQuery(
+				"SELECT encoding, length, version FROM key_value_store WHERE key = ?",
+				new String[] { identifier });
+		InputStream in;
+		try {
+			if (!c.moveToFirst())
+				return null;
+			in = new ChunkInputStream(identifier, c.getLong(1), c.getLong(2));
+			if (c.getInt(0) == ENCODING_DEFLATE)
+				in = new InflaterInputStream(in);
+		} finally {
+			c.close();
+		}
+		return in;
+	}
+
+	/**
+	 * Plain values are appended to in place. A deflate stream can not be
+	 * continued, so compressed values are rewritten.
+	 */
+	@Override
+	public OutputStream openAppendStream(String identifier) throws IOException {
+		long encoding = getEncoding(identifier);
+		if (encoding == -1)
+			return openOutputStream(identifier);
+		if (encoding != ENCODING_PLAIN)
+			return super.openAppendStream(identifier);
+		return new ChunkOutputStream(identifier, ENCODING_PLAIN, true);
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = getDatabase();
+			db.beginTransaction();
+			try {
+				for (Entry<String, String> entry : values.entrySet()) {
+					storeJson(entry.getKey(), entry.getValue());
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the values with chunked IN (...) queries. They run without a
+	 * transaction, as every transaction takes the single write connection
+	 * and would block writers and other batch reads despite the WAL. A
+	 * value which was changed while a large result was read is read again
+	 * on its own, see {@link #queryValues(SQLiteDatabase, List, Map, List)}.
+	 */
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		List<String> changed = new ArrayList<String>();
+		List<String> batch = new ArrayList<String>(MAX_QUERY_PARAMETERS);
+		SQLiteDatabase db = getDatabase();
+		for (String identifier : identifiers) {
+			batch.add(identifier);
+			if (batch.size() == MAX_QUERY_PARAMETERS) {
+				queryValues(db, batch, values, changed);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			queryValues(db, batch, values, changed);
+		for (String identifier : changed) {
+			String json = getJson(identifier);
+			if (json != null)
+				values.put(identifier, json);
+		}
+		return values;
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		int removed = 0;
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = getDatabase();
+			db.beginTransaction();
+			try {
+				for (String identifier : identifiers) {
+					if (deleteValue(identifier))
+						removed++;
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+		return removed;
+	}
+
+	@Override
+	public CloseableIterator<String> keys() {
+		return new CursorKeyIterator(getDatabase().rawQuery(
+				"SELECT key FROM key_value_store ORDER BY key", null));
+	}
+
+	/**
+	 * Runs a range query on the primary key index, from the prefix to the
+	 * first key behind it.
+	 */
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix) {
+		String end = prefixEnd(prefix);
+		Cursor c;
+		if (end != null)
+			c = getDatabase().rawQuery(
+					"SELECT key FROM key_value_store WHERE key >= ? AND key < ? ORDER BY key",
+					new String[] { prefix, end });
+		else
+			c = getDatabase().rawQuery(
+					"SELECT key FROM key_value_store WHERE key >= ? ORDER BY key",
+					new String[] { prefix });
+		return new CursorKeyIterator(c);
+	}
+
+	/**
+	 * Returns the stored length, which is the compressed length of deflate
+	 * compressed values.
+	 */
+	@Override
+	public long sizeOf(String identifier) {
+		getDatabase();
+		synchronized (mLengthStatement) {
+			mLengthStatement.bindString(1, identifier);
+			try {
+				return mLengthStatement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Deletes the key range of the prefix from all tables in one transaction.
+	 */
+	@Override
+	public int removeWithPrefix(String prefix) {
+		String end = prefixEnd(prefix);
+		String range = end != null ? " WHERE key >= ? AND key < ?"
+				: " WHERE key >= ?";
+		mWriteLock.lock();
+		try {
+			SQLiteDatabase db = getDatabase();
+			db.beginTransaction();
+			try {
+				deleteRange(db, "value_chunks", range, prefix, end);
+				int removed = deleteRange(db, "key_value_store", range,
+						prefix, end);
+				deleteRange(db, "map_entries", range, prefix, end);
+				db.setTransactionSuccessful();
+				return removed;
+			} finally {
+				db.endTransaction();
+			}
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	@Override
+	public void storeEntryJson(String identifier, String key, String json) {
+		mWriteLock.lock();
+		try {
+			getDatabase();
+			mInsertEntryStatement.bindString(1, identifier);
+			mInsertEntryStatement.bindString(2, key);
+			mInsertEntryStatement.bindString(3, json);
+			mInsertEntryStatement.executeInsert();
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key) {
+		getDatabase();
+		synchronized (mEntryStatement) {
+			mEntryStatement.bindString(1, identifier);
+			mEntryStatement.bindString(2, key);
+			try {
+				return mEntryStatement.simpleQueryForString();
+			} catch (SQLiteDoneException e) {
+				return null;
+			}
+		}
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key) {
+		mWriteLock.lock();
+		try {
+			getDatabase();
+			mDeleteEntryStatement.bindString(1, identifier);
+			mDeleteEntryStatement.bindString(2, key);
+			return mDeleteEntryStatement.executeUpdateDelete() == 1;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	@Override
+	public int getEntryCount(String identifier) {
+		getDatabase();
+		synchronized (mEntryCountStatement) {
+			mEntryCountStatement.bindString(1, identifier);
+			return (int) mEntryCountStatement.simpleQueryForLong();
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier) {
+		Map<String, String> entries = new HashMap<String, String>();
+		Cursor c = getDatabase().rawQuery(
+				"SELECT entry, value FROM map_entries WHERE key = ?",
+				new String[] { identifier });
+		try {
+			while (c.moveToNext()) {
+				entries.put(c.getString(0), c.getString(1));
+			}
+		} finally {
+			c.close();
+		}
+		return entries;
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) {
+		mWriteLock.lock();
+		try {
+			getDatabase();
+			mDeleteEntriesStatement.bindString(1, identifier);
+			return mDeleteEntriesStatement.executeUpdateDelete() > 0;
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the encoding of the stored value or -1 if there is none.
+	 */
+	private long getEncoding(String identifier) {
+		getDatabase();
+		synchronized (mEncodingStatement) {
+			mEncodingStatement.bindString(1, identifier);
+			try {
+				return mEncodingStatement.simpleQueryForLong();
+			} catch (SQLiteDoneException e) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Reads the chunks of the values in order and joins them. A cursor which
+	 * outgrows its window runs the query again for the next window, so the
+	 * rows of a value may come from two versions of it. Such values, and
+	 * values whose chunks do not add up to their length, are added to
+	 * changed instead.
+	 */
+	private static void queryValues(SQLiteDatabase db,
+			List<String> identifiers, Map<String, String> values,
+			List<String> changed) throws IOException {
+		StringBuilder sql = new StringBuilder(
+				"SELECT v.key, v.encoding, v.length, v.version, c.data FROM key_value_store v LEFT JOIN value_chunks c ON c.key = v.key WHERE v.key IN (");
+		for (int i = 0; i < identifiers.size(); i++) {
+			sql.append(i == 0 ? "?" : ", ?");
+		}
+		sql.append(") ORDER BY v.key, c.chunk");
+		Cursor c = db.rawQuery(sql.toString(),
+				identifiers.toArray(new String[identifiers.size()]));
+		try {
+			String key = null;
+			int encoding = ENCODING_PLAIN;
+			long length = 0;
+			long version = 0;
+			boolean consistent = true;
+			ByteArrayOutputStream value = new ByteArrayOutputStream();
+			while (c.moveToNext()) {
+				if (!c.getString(0).equals(key)) {
+					if (key != null)
+						putValue(key, value, encoding, length, consistent,
+								values, changed);
+					key = c.getString(0);
+					encoding = c.getInt(1);
+					length = c.getLong(2);
+					version = c.getLong(3);
+					consistent = true;
+					value.reset();
+				} else if (c.getLong(3) != version || c.getLong(2) != length) {
+					consistent = false;
+				}
+				if (!c.isNull(4))
+					value.write(c.getBlob(4));
+			}
+			if (key != null)
+				putValue(key, value, encoding, length, consistent, values,
+						changed);
+		} finally {
+			c.close();
+		}
+	}
+
+	private static void putValue(String key, ByteArrayOutputStream value,
+			int encoding, long length, boolean consistent,
+			Map<String, String> values, List<String> changed)
+			throws IOException {
+		if (!consistent || value.size() != length) {
+			changed.add(key);
+			return;
+		}
+		values.put(key, decodeValue(value.toByteArray(), encoding));
+	}
+
+	private static String decodeValue(byte[] value, int encoding)
+			throws IOException {
+		if (encoding == ENCODING_DEFLATE)
+			value = readFully(new InflaterInputStream(
+					new ByteArrayInputStream(value)));
+		return new String(value, UTF8);
+	}
+
+	private static int deleteRange(SQLiteDatabase db, String table,
+			String range, String start, String end) {
+		SQLiteStatement delete = db.compileStatement("DELETE FROM " + table
+				+ range);
+		try {
+			delete.bindString(1, start);
+			if (end != null)
+				delete.bindString(2, end);
+			return delete.executeUpdateDelete();
+		} finally {
+			delete.close();
+		}
+	}
+
+	private boolean deleteValue(String identifier) {
+		mDeleteChunksStatement.bindString(1, identifier);
+		mDeleteChunksStatement.executeUpdateDelete();
+		mDeleteValueStatement.bindString(1, identifier);
+		return mDeleteValueStatement.executeUpdateDelete() == 1;
 	}
 
 }
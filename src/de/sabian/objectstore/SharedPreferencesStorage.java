@@ -15,10 +15,20 @@
  */
 package de.sabian.objectstore;
 
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
 import android.content.Context;
 import android.content.SharedPreferences;
 
-public class SharedPreferencesStorage implements IJsonStorage {
+public class SharedPreferencesStorage extends AbstractJsonStorage {
 
 	private SharedPreferences mPreferences;
 
@@ -38,9 +48,10 @@ public class SharedPreferencesStorage implements IJsonStorage {
 
 	@Override
 	public boolean remove(String identifier) {
-		boolean contained = contains(identifier);
+		if (!contains(identifier))
+			return false;
 		mPreferences.edit().remove(identifier).commit();
-		return contained;
+		return true;
 	}
 
 	@Override
@@ -48,4 +59,85 @@ public class SharedPreferencesStorage implements IJsonStorage {
 		return mPreferences.contains(identifier);
 	}
 
+	@Override
+	public Writer openWriter(String identifier) {
+		return new DeferredJsonWriter(this, identifier);
+	}
+
+	@Override
+	public Reader openReader(String identifier) {
+		String json = getJson(identifier);
+		return json != null ? new StringReader(json) : null;
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) {
+		SharedPreferences.Editor editor = mPreferences.edit();
+		for (Entry<String, String> entry : values.entrySet()) {
+			editor.putString(entry.getKey(), entry.getValue());
+		}
+		editor.commit();
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers) {
+		Map<String, String> values = new HashMap<String, String>();
+		for (String identifier : identifiers) {
+			String json = mPreferences.getString(identifier, null);
+			if (json != null)
+				values.put(identifier, json);
+		}
+		return values;
+	}
+
+	@Override
+	public CloseableIterator<String> keys() {
+		return keysWithPrefix("");
+	}
+
+	/**
+	 * Filters a snapshot of all preference names. The entries of keyed maps
+	 * are left out, unless the prefix is the one of a map's entries.
+	 */
+	@Override
+	public CloseableIterator<String> keysWithPrefix(final String prefix) {
+		Set<String> names = new HashSet<String>(mPreferences.getAll()
+				.keySet());
+		return new KeyIterator(names.iterator()) {
+			@Override
+			protected boolean accept(String key) {
+				return key.startsWith(prefix) && !isEntryKey(key, prefix);
+			}
+		};
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) {
+		SharedPreferences.Editor editor = mPreferences.edit();
+		int removed = 0;
+		for (String name : mPreferences.getAll().keySet()) {
+			if (name.startsWith(prefix)) {
+				editor.remove(name);
+				if (!isEntryKey(name, prefix))
+					removed++;
+			}
+		}
+		editor.commit();
+		return removed;
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) {
+		SharedPreferences.Editor editor = mPreferences.edit();
+		int removed = 0;
+		for (String identifier : identifiers) {
+			if (mPreferences.contains(identifier)) {
+				editor.remove(identifier);
+				removed++;
+			}
+		}
+		editor.commit();
+		return removed;
+	}
+
 }
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of an asynchronous store operation. Listeners are notified once the
+ * operation completed, which allows to combine several operations without
+ * blocking a thread for each of them, for example with
+ * {@link #allOf(StoreFuture...)}.
+ */
+public class StoreFuture<T> implements Future<T> {
+
+	public static interface Listener<T> {
+		public void onComplete(StoreFuture<T> future);
+	}
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private T mResult;
+	private Throwable mError;
+	private boolean mDone;
+	private boolean mCancelled;
+	private List<Runnable> mListeners = new ArrayList<Runnable>();
+
+	/**
+	 * Returns a future which completes when all given futures completed. It
+	 * fails with the error of the first failed future.
+	 */
+	public static StoreFuture<Void> allOf(final StoreFuture<?>... futures) {
+		final StoreFuture<Void> all = new StoreFuture<Void>();
+		if (futures.length == 0) {
+			all.complete(null);
+			return all;
+		}
+		Listener<Object> listener = new Listener<Object>() {
+			private int mRemaining = futures.length;
+
+			@Override
+			public void onComplete(StoreFuture<Object> future) {
+				synchronized (this) {
+					mRemaining--;
+					if (future.mError != null)
+						all.fail(future.mError);
+					else if (future.mCancelled)
+						all.cancel(false);
+					else if (mRemaining == 0)
+						all.complete(null);
+				}
+			}
+		};
+		for (StoreFuture<?> future : futures) {
+			@SuppressWarnings("unchecked")
+			StoreFuture<Object> f = (StoreFuture<Object>) future;
+			f.addListener(listener);
+		}
+		return all;
+	}
+
+	/**
+	 * Notifies the listener on the thread which completes this future, or
+	 * immediately if it is already done.
+	 */
+	public void addListener(Listener<T> listener) {
+		addListener(listener, DIRECT);
+	}
+
+	public void addListener(final Listener<T> listener,
+			final Executor executor) {
+		Runnable notification = new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						listener.onComplete(StoreFuture.this);
+					}
+				});
+			}
+		};
+		synchronized (this) {
+			if (!mDone) {
+				mListeners.add(notification);
+				return;
+			}
+		}
+		notification.run();
+	}
+
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (mDone)
+				return false;
+			mCancelled = true;
+			listeners = markDone();
+		}
+		notifyListeners(listeners);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mCancelled;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mDone;
+	}
+
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (!mDone) {
+			wait();
+		}
+		return getResult();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (!mDone) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0)
+				throw new TimeoutException();
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return getResult();
+	}
+
+	boolean complete(T result) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (mDone)
+				return false;
+			mResult = result;
+			listeners = markDone();
+		}
+		notifyListeners(listeners);
+		return true;
+	}
+
+	boolean fail(Throwable error) {
+		List<Runnable> listeners;
+		synchronized (this) {
+			if (mDone)
+				return false;
+			mError = error;
+			listeners = markDone();
+		}
+		notifyListeners(listeners);
+		return true;
+	}
+
+	void run(Callable<T> operation) {
+		if (isDone())
+			return;
+		try {
+			complete(operation.call());
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Returns the error the operation failed with, or null.
+	 */
+	synchronized Throwable getError() {
+		return mError;
+	}
+
+	private T getResult() throws ExecutionException {
+		if (mCancelled)
+			throw new CancellationException();
+		if (mError != null)
+			throw new ExecutionException(mError);
+		return mResult;
+	}
+
+	private List<Runnable> markDone() {
+		mDone = true;
+		notifyAll();
+		List<Runnable> listeners = mListeners;
+		mListeners = null;
+		return listeners;
+	}
+
+	private static void notifyListeners(List<Runnable> listeners) {
+		for (Runnable listener : listeners) {
+			listener.run();
+		}
+	}
+
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the measurements in memory: latency histograms per operation,
+ * the bytes read and written by storages, the number of values per type,
+ * cache lookups and the queue wait of asynchronous operations.
+ */
+public class StoreMetrics implements IStoreMetrics {
+
+	private final Map<Operation, LatencyHistogram> mOperations;
+	private final Map<StorageOperation, LatencyHistogram> mStorageOperations;
+	private final LatencyHistogram mQueueWait = new LatencyHistogram();
+	private final ConcurrentMap<Class<?>, AtomicLong> mValueCounts =
+			new ConcurrentHashMap<Class<?>, AtomicLong>();
+	private final AtomicLong mBytesRead = new AtomicLong();
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	private final AtomicLong mCacheHits = new AtomicLong();
+	private final AtomicLong mCacheMisses = new AtomicLong();
+
+	public StoreMetrics() {
+		// filled up front, so the maps are only read afterwards
+		mOperations = new EnumMap<Operation, LatencyHistogram>(
+				Operation.class);
+		for (Operation operation : Operation.values()) {
+			mOperations.put(operation, new LatencyHistogram());
+		}
+		mStorageOperations = new EnumMap<StorageOperation, LatencyHistogram>(
+				StorageOperation.class);
+		for (StorageOperation operation : StorageOperation.values()) {
+			mStorageOperations.put(operation, new LatencyHistogram());
+		}
+	}
+
+	@Override
+	public void onOperation(Operation operation, String identifier,
+			Class<?> type, long nanos) {
+		mOperations.get(operation).record(nanos);
+		if (type == null)
+			return;
+		AtomicLong count = mValueCounts.get(type);
+		if (count == null) {
+			AtomicLong newCount = new AtomicLong();
+			count = mValueCounts.putIfAbsent(type, newCount);
+			if (count == null)
+				count = newCount;
+		}
+		count.incrementAndGet();
+	}
+
+	@Override
+	public void onStorageOperation(StorageOperation operation,
+			String identifier, long bytes, long nanos) {
+		mStorageOperations.get(operation).record(nanos);
+		switch (operation) {
+		case READ:
+		case READ_ENTRY:
+			mBytesRead.addAndGet(bytes);
+			break;
+		case WRITE:
+		case APPEND:
+		case WRITE_ENTRY:
+			mBytesWritten.addAndGet(bytes);
+			break;
+		default:
+			break;
+		}
+	}
+
+	@Override
+	public void onCacheLookup(String identifier, boolean hit) {
+		(hit ? mCacheHits : mCacheMisses).incrementAndGet();
+	}
+
+	@Override
+	public void onQueueWait(String identifier, boolean read, long nanos) {
+		mQueueWait.record(nanos);
+	}
+
+	public LatencyHistogram getHistogram(Operation operation) {
+		return mOperations.get(operation);
+	}
+
+	public LatencyHistogram getHistogram(StorageOperation operation) {
+		return mStorageOperations.get(operation);
+	}
+
+	public LatencyHistogram getQueueWait() {
+		return mQueueWait;
+	}
+
+	/**
+	 * Returns how many values of each type were stored or read.
+	 */
+	public Map<Class<?>, Long> getValueCounts() {
+		Map<Class<?>, Long> counts = new HashMap<Class<?>, Long>();
+		for (Entry<Class<?>, AtomicLong> entry : mValueCounts.entrySet()) {
+			counts.put(entry.getKey(), entry.getValue().get());
+		}
+		return counts;
+	}
+
+	public long getBytesRead() {
+		return mBytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
+	public long getCacheHitCount() {
+		return mCacheHits.get();
+	}
+
+	public long getCacheMissCount() {
+		return mCacheMisses.get();
+	}
+
+	public double getCacheHitRate() {
+		long hits = mCacheHits.get();
+		long lookups = hits + mCacheMisses.get();
+		return lookups == 0 ? 1.0 : (double) hits / lookups;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Entry<Operation, LatencyHistogram> entry : mOperations
+				.entrySet()) {
+			if (entry.getValue().getCount() > 0)
+				sb.append(entry.getKey()).append(": ")
+						.append(entry.getValue()).append('\n');
+		}
+		for (Entry<StorageOperation, LatencyHistogram> entry :
+				mStorageOperations.entrySet()) {
+			if (entry.getValue().getCount() > 0)
+				sb.append("storage ").append(entry.getKey()).append(": ")
+						.append(entry.getValue()).append('\n');
+		}
+		sb.append("bytes read: ").append(mBytesRead.get())
+				.append(", bytes written: ").append(mBytesWritten.get())
+				.append(", cache hit rate: ").append(getCacheHitRate())
+				.append(", queue wait: ").append(mQueueWait);
+		return sb.toString();
+	}
+
+}
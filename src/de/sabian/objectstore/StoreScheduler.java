@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Executes the background operations of an object store on its own worker
+ * threads. Operations on the same identifier run one after another in the
+ * order they were submitted, operations on different identifiers run in
+ * parallel. Reads which are ready to run are preferred over writes. At most
+ * queueCapacity operations can be pending, further submits are rejected
+ * instead of blocking the calling thread. Operations submitted by an operation
+ * on a worker are always queued, so the workers can not block each other.
+ */
+public class StoreScheduler {
+
+	private static final Logger LOG = Logger.getLogger(StoreScheduler.class
+			.getName());
+
+	private static class Task implements Comparable<Task> {
+		private final String mIdentifier;
+		private final boolean mRead;
+		private final long mSequence;
+		private final Runnable mRunnable;
+		// whether the task holds a permit of the queue capacity
+		private final boolean mCounted;
+
+		public Task(String identifier, boolean read, long sequence,
+				Runnable runnable, boolean counted) {
+			this.mIdentifier = identifier;
+			this.mRead = read;
+			this.mSequence = sequence;
+			this.mRunnable = runnable;
+			this.mCounted = counted;
+		}
+
+		@Override
+		public int compareTo(Task other) {
+			if (mRead != other.mRead)
+				return mRead ? -1 : 1;
+			return mSequence < other.mSequence ? -1
+					: (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+
+	private static final Task STOP = new Task(null, false, Long.MAX_VALUE,
+			null, false);
+
+	private PriorityBlockingQueue<Task> mReady;
+	// tasks waiting for an earlier task on the same identifier
+	private Map<String, ArrayDeque<Task>> mWaiting;
+	private Semaphore mCapacity;
+	private Thread[] mWorkers;
+	private long mSequence;
+	private boolean mShutdown;
+
+	public StoreScheduler(int threadCount, int queueCapacity) {
+		if (threadCount <= 0 || queueCapacity <= 0)
+			throw new IllegalArgumentException(
+					"threadCount and queueCapacity have to be positive");
+		mReady = new PriorityBlockingQueue<Task>();
+		mWaiting = new HashMap<String, ArrayDeque<Task>>();
+		mCapacity = new Semaphore(queueCapacity);
+		mWorkers = new Thread[threadCount];
+		for (int i = 0; i < threadCount; i++) {
+			mWorkers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					work();
+				}
+			}, "StoreScheduler-" + (i + 1));
+			mWorkers[i].setDaemon(true);
+			mWorkers[i].start();
+		}
+	}
+
+	public void executeRead(String identifier, Runnable runnable) {
+		execute(identifier, true, runnable);
+	}
+
+	public void executeWrite(String identifier, Runnable runnable) {
+		execute(identifier, false, runnable);
+	}
+
+	/**
+	 * Stops the workers after all already submitted operations are finished.
+	 */
+	public synchronized void shutdown() {
+		if (!mShutdown) {
+			mShutdown = true;
+			for (int i = 0; i < mWorkers.length; i++) {
+				mReady.add(STOP);
+			}
+		}
+	}
+
+	/**
+	 * @throws RejectedExecutionException
+	 *             if the scheduler is shut down or the queue is full
+	 */
+	private void execute(String identifier, boolean read, Runnable runnable) {
+		boolean counted = !isWorker(Thread.currentThread());
+		if (counted && !mCapacity.tryAcquire())
+			throw new RejectedExecutionException("queue is full");
+		synchronized (this) {
+			if (mShutdown) {
+				if (counted)
+					mCapacity.release();
+				throw new RejectedExecutionException("scheduler is shut down");
+			}
+			Task task = new Task(identifier, read, mSequence++, runnable,
+					counted);
+			ArrayDeque<Task> waiting = mWaiting.get(identifier);
+			if (waiting == null) {
+				mWaiting.put(identifier, new ArrayDeque<Task>());
+				mReady.add(task);
+			} else {
+				waiting.add(task);
+			}
+		}
+	}
+
+	private void work() {
+		while (true) {
+			Task task;
+			try {
+				task = mReady.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			if (task == STOP)
+				return;
+			try {
+				task.mRunnable.run();
+			} catch (Throwable e) {
+				// the worker stays alive for the following operations
+				LOG.log(Level.SEVERE, "Operation on " + task.mIdentifier
+						+ " failed", e);
+			} finally {
+				finish(task);
+			}
+		}
+	}
+
+	private boolean isWorker(Thread thread) {
+		for (Thread worker : mWorkers) {
+			if (worker == thread)
+				return true;
+		}
+		return false;
+	}
+
+	private void finish(Task task) {
+		synchronized (this) {
+			ArrayDeque<Task> waiting = mWaiting.get(task.mIdentifier);
+			Task next = waiting.poll();
+			if (next != null)
+				mReady.add(next);
+			else
+				mWaiting.remove(task.mIdentifier);
+		}
+		if (task.mCounted)
+			mCapacity.release();
+	}
+
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A fixed number of read write locks, picked by the hash of an identifier.
+ * Operations on different identifiers only wait for each other if their
+ * identifiers share a stripe.
+ */
+final class StripedLocks {
+
+	private final ReentrantReadWriteLock[] mLocks;
+
+	/**
+	 * @param stripes
+	 *            the number of locks, rounded up to a power of two
+	 */
+	public StripedLocks(int stripes) {
+		int size = 1;
+		while (size < stripes) {
+			size <<= 1;
+		}
+		mLocks = new ReentrantReadWriteLock[size];
+		for (int i = 0; i < size; i++) {
+			mLocks[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	public ReadWriteLock get(String identifier) {
+		return mLocks[indexOf(identifier)];
+	}
+
+	/**
+	 * Returns the write locks of the stripes of all identifiers, each once
+	 * and in the order in which they have to be locked to avoid deadlocks.
+	 */
+	public List<Lock> getWriteLocks(Collection<String> identifiers) {
+		return getLocks(identifiers, true);
+	}
+
+	/**
+	 * Returns the read locks of the stripes of all identifiers, like
+	 * {@link #getWriteLocks(Collection)}.
+	 */
+	public List<Lock> getReadLocks(Collection<String> identifiers) {
+		return getLocks(identifiers, false);
+	}
+
+	private List<Lock> getLocks(Collection<String> identifiers, boolean write) {
+		boolean[] used = new boolean[mLocks.length];
+		for (String identifier : identifiers) {
+			used[indexOf(identifier)] = true;
+		}
+		List<Lock> locks = new ArrayList<Lock>();
+		for (int i = 0; i < used.length; i++) {
+			if (used[i])
+				locks.add(write ? mLocks[i].writeLock() : mLocks[i]
+						.readLock());
+		}
+		return locks;
+	}
+
+	private int indexOf(String identifier) {
+		int h = identifier.hashCode();
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		return h & (mLocks.length - 1);
+	}
+
+}
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2014 Andreas Sabitzer.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.sabian.objectstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers writes to another storage in memory and writes them out in batches.
+ * Repeated writes of the same identifier are coalesced, only the last one is
+ * written. Pending writes are flushed once maxPendingWrites identifiers are
+ * dirty, flushDelayMillis after the first pending write and on
+ * {@link #flush()} or {@link #close()}. Reads are served from the pending
+ * writes first, so the buffering is not visible to users of this storage.
+ */
+public class WriteBehindStorage implements IJsonStorage, Closeable {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final Logger LOG = Logger
+			.getLogger(WriteBehindStorage.class.getName());
+	// returned by getBuffered for an identifier without a buffered write
+	private static final byte[] NOT_BUFFERED = new byte[0];
+
+	private IJsonStorage mStorage;
+	private int mMaxPendingWrites;
+	private long mFlushDelayMillis;
+	private ScheduledExecutorService mExecutor;
+	private ScheduledFuture<?> mScheduledFlush;
+	private final Object mFlushLock = new Object();
+	// a null value marks a pending remove
+	private Map<String, byte[]> mPending;
+	private Map<String, byte[]> mFlushing;
+	private boolean mClosed;
+
+	private final Runnable mFlushTask = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				// the writes were requeued and are retried after the delay
+				LOG.log(Level.WARNING, "Flushing pending writes failed", e);
+			}
+		}
+	};
+
+	public WriteBehindStorage(IJsonStorage storage, int maxPendingWrites,
+			long flushDelayMillis) {
+		this.mStorage = storage;
+		this.mMaxPendingWrites = maxPendingWrites;
+		this.mFlushDelayMillis = flushDelayMillis;
+		this.mPending = new LinkedHashMap<String, byte[]>();
+		this.mFlushing = new LinkedHashMap<String, byte[]>();
+		this.mExecutor = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "WriteBehindStorage");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public boolean remove(String identifier) throws IOException {
+		boolean contained = contains(identifier);
+		enqueue(identifier, null);
+		return contained;
+	}
+
+	@Override
+	public boolean contains(String identifier) {
+		byte[] value = getBuffered(identifier);
+		if (value == NOT_BUFFERED)
+			return mStorage.contains(identifier);
+		return value != null;
+	}
+
+	@Override
+	public void storeJson(String identifier, String json) throws IOException {
+		enqueue(identifier, json.getBytes(UTF8));
+	}
+
+	@Override
+	public String getJson(String identifier) throws IOException {
+		byte[] value = getBuffered(identifier);
+		if (value == NOT_BUFFERED)
+			return mStorage.getJson(identifier);
+		return value != null ? new String(value, UTF8) : null;
+	}
+
+	@Override
+	public Writer openWriter(String identifier) {
+		return new AbortableWriter(openOutputStream(identifier));
+	}
+
+	@Override
+	public Reader openReader(String identifier) throws IOException {
+		InputStream in = openInputStream(identifier);
+		return in != null ? new InputStreamReader(in, UTF8) : null;
+	}
+
+	@Override
+	public OutputStream openOutputStream(final String identifier) {
+		return new BufferedValueStream() {
+			@Override
+			protected void commit() throws IOException {
+				enqueue(identifier, toByteArray());
+			}
+		};
+	}
+
+	@Override
+	public OutputStream openAppendStream(final String identifier) {
+		return new BufferedValueStream() {
+			@Override
+			protected void commit() throws IOException {
+				enqueueAppend(identifier, toByteArray());
+			}
+		};
+	}
+
+	@Override
+	public InputStream openInputStream(String identifier) throws IOException {
+		byte[] value = getBuffered(identifier);
+		if (value == NOT_BUFFERED)
+			return mStorage.openInputStream(identifier);
+		return value != null ? new ByteArrayInputStream(value) : null;
+	}
+
+	@Override
+	public void storeAllJson(Map<String, String> values) throws IOException {
+		for (Entry<String, String> entry : values.entrySet()) {
+			enqueue(entry.getKey(), entry.getValue().getBytes(UTF8));
+		}
+	}
+
+	@Override
+	public Map<String, String> getAllJson(Collection<String> identifiers)
+			throws IOException {
+		Map<String, String> values = new HashMap<String, String>();
+		List<String> unbuffered = new ArrayList<String>();
+		synchronized (this) {
+			for (String identifier : identifiers) {
+				byte[] value = getBuffered(identifier);
+				if (value == NOT_BUFFERED)
+					unbuffered.add(identifier);
+				else if (value != null)
+					values.put(identifier, new String(value, UTF8));
+			}
+		}
+		if (!unbuffered.isEmpty())
+			values.putAll(mStorage.getAllJson(unbuffered));
+		return values;
+	}
+
+	@Override
+	public int removeAll(Collection<String> identifiers) throws IOException {
+		int removed = 0;
+		for (String identifier : identifiers) {
+			if (remove(identifier))
+				removed++;
+		}
+		return removed;
+	}
+
+	/**
+	 * Flushes the pending writes, so the listing of the storage is complete.
+	 */
+	@Override
+	public CloseableIterator<String> keys() throws IOException {
+		flush();
+		return mStorage.keys();
+	}
+
+	@Override
+	public CloseableIterator<String> keysWithPrefix(String prefix)
+			throws IOException {
+		flush();
+		return mStorage.keysWithPrefix(prefix);
+	}
+
+	@Override
+	public long sizeOf(String identifier) throws IOException {
+		byte[] value = getBuffered(identifier);
+		if (value == NOT_BUFFERED)
+			return mStorage.sizeOf(identifier);
+		return value != null ? value.length : -1;
+	}
+
+	@Override
+	public int removeWithPrefix(String prefix) throws IOException {
+		flush();
+		return mStorage.removeWithPrefix(prefix);
+	}
+
+	/**
+	 * Entries of keyed maps are written through, they are not buffered.
+	 */
+	@Override
+	public void storeEntryJson(String identifier, String key, String json)
+			throws IOException {
+		mStorage.storeEntryJson(identifier, key, json);
+	}
+
+	@Override
+	public String getEntryJson(String identifier, String key)
+			throws IOException {
+		return mStorage.getEntryJson(identifier, key);
+	}
+
+	@Override
+	public boolean removeEntry(String identifier, String key)
+			throws IOException {
+		return mStorage.removeEntry(identifier, key);
+	}
+
+	@Override
+	public int getEntryCount(String identifier) throws IOException {
+		return mStorage.getEntryCount(identifier);
+	}
+
+	@Override
+	public Map<String, String> getAllEntriesJson(String identifier)
+			throws IOException {
+		return mStorage.getAllEntriesJson(identifier);
+	}
+
+	@Override
+	public boolean removeEntries(String identifier) throws IOException {
+		return mStorage.removeEntries(identifier);
+	}
+
+	/**
+	 * Writes all pending writes to the underlying storage and blocks until
+	 * they are written.
+	 */
+	public void flush() throws IOException {
+		synchronized (mFlushLock) {
+			synchronized (this) {
+				if (mScheduledFlush != null) {
+					mScheduledFlush.cancel(false);
+					mScheduledFlush = null;
+				}
+				mFlushing = mPending;
+				mPending = new LinkedHashMap<String, byte[]>();
+			}
+			Map<String, String> stores = new LinkedHashMap<String, String>();
+			Map<String, byte[]> binaryStores =
+					new LinkedHashMap<String, byte[]>();
+			List<String> removes = new ArrayList<String>();
+			for (Entry<String, byte[]> entry : mFlushing.entrySet()) {
+				if (entry.getValue() == null) {
+					removes.add(entry.getKey());
+					continue;
+				}
+				String json = AbstractJsonStorage.decodeText(entry.getValue());
+				if (json != null)
+					stores.put(entry.getKey(), json);
+				else
+					binaryStores.put(entry.getKey(), entry.getValue());
+			}
+			try {
+				if (!stores.isEmpty())
+					mStorage.storeAllJson(stores);
+				// values which are not text can not be batched
+				for (Entry<String, byte[]> entry : binaryStores.entrySet()) {
+					OutputStream out = mStorage.openOutputStream(entry
+							.getKey());
+					boolean written = false;
+					try {
+						out.write(entry.getValue());
+						out.close();
+						written = true;
+					} finally {
+						if (!written)
+							AbstractJsonStorage.abort(out);
+					}
+				}
+				if (!removes.isEmpty())
+					mStorage.removeAll(removes);
+			} catch (IOException e) {
+				requeueUnflushed();
+				throw e;
+			} catch (RuntimeException e) {
+				requeueUnflushed();
+				throw e;
+			}
+			synchronized (this) {
+				mFlushing = new LinkedHashMap<String, byte[]>();
+			}
+		}
+	}
+
+	public synchronized int getPendingWriteCount() {
+		return mPending.size();
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			mClosed = true;
+		}
+		try {
+			flush();
+		} finally {
+			mExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * Returns the pending or flushing value, null for a pending remove or
+	 * {@link #NOT_BUFFERED}. Reads only hold the lock for this lookup, the
+	 * underlying storage is read without it. A write to the storage which
+	 * gets in between is one that was concurrent to the read.
+	 */
+	private synchronized byte[] getBuffered(String identifier) {
+		if (mPending.containsKey(identifier))
+			return mPending.get(identifier);
+		if (mFlushing.containsKey(identifier))
+			return mFlushing.get(identifier);
+		return NOT_BUFFERED;
+	}
+
+	private synchronized void requeueUnflushed() {
+		// writes which arrived during the flush are newer and win
+		Map<String, byte[]> pending = mFlushing;
+		pending.keySet().removeAll(mPending.keySet());
+		pending.putAll(mPending);
+		mPending = pending;
+		mFlushing = new LinkedHashMap<String, byte[]>();
+		schedule(mFlushDelayMillis);
+	}
+
+	private synchronized void enqueue(String identifier, byte[] value)
+			throws IOException {
+		if (mClosed)
+			throw new IOException("storage already closed");
+		// re-insert to keep the map in order of the last write
+		mPending.remove(identifier);
+		mPending.put(identifier, value);
+		if (mPending.size() >= mMaxPendingWrites)
+			schedule(0);
+		else
+			schedule(mFlushDelayMillis);
+	}
+
+	/**
+	 * Appends to the buffered value. A value which is not buffered is read
+	 * from the underlying storage while holding the lock, so no write to the
+	 * same identifier can get in between.
+	 */
+	private synchronized void enqueueAppend(String identifier, byte[] bytes)
+			throws IOException {
+		byte[] stored = getBuffered(identifier);
+		if (stored == NOT_BUFFERED) {
+			InputStream in = mStorage.openInputStream(identifier);
+			stored = in != null ? AbstractJsonStorage.readFully(in) : null;
+		}
+		if (stored == null) {
+			enqueue(identifier, bytes);
+			return;
+		}
+		byte[] value = Arrays.copyOf(stored, stored.length + bytes.length);
+		System.arraycopy(bytes, 0, value, stored.length, bytes.length);
+		enqueue(identifier, value);
+	}
+
+	private void schedule(long delayMillis) {
+		if (mScheduledFlush != null) {
+			if (delayMillis > 0
+					|| mScheduledFlush.getDelay(TimeUnit.MILLISECONDS) <= 0)
+				return;
+			mScheduledFlush.cancel(false);
+		}
+		if (!mExecutor.isShutdown())
+			mScheduledFlush = mExecutor.schedule(mFlushTask, delayMillis,
+					TimeUnit.MILLISECONDS);
+	}
+
+}